@@ -18,6 +18,7 @@
 
 package drl.data.print;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -30,6 +31,7 @@ import drl.mdp.api.Policy;
 import drl.mdp.api.QValue;
 import drl.mdp.api.State;
 import drl.mdp.utils.MdpUtils;
+import drl.mdp.utils.PolicyEvaluator;
 import drl.mdp.utils.Transition;
 
 /**
@@ -296,29 +298,19 @@ public class PrintUtils {
 
     private static <S extends State, A extends Action> void printStepsToGo2D(MDP<S, A> mdp,
             Policy<S, A> policy) {
-        Cell domain = mdp.getStateSpace();
-        Interval i1 = domain.getInterval(0);
-        Interval i2 = domain.getInterval(1);
+        List<List<S>> grid = gridStates(mdp);
+        // Note that a reading of 300 means that a terminal state was not
+        // reached in 299 steps. It does not necessarily mean that a terminal
+        // state was reached on the 300th step.
+        PolicyEvaluator.Statistics stats = PolicyEvaluator.of(mdp)
+                .setHorizon(300)
+                .evaluate(policy, flatten(grid));
         System.out.println();
         System.out.println();
-        for (double pos = i1.getStart(); pos < i1.getEnd(); pos += i1.getWidth() / CELLS) {
-            for (double vel = i2.getStart(); vel < i2.getEnd(); vel += i2.getWidth() / CELLS) {
-                S state = mdp.stateFromVector(Vector.asVector(pos, vel));
-                boolean nonTerminal = true;
-                for (int i = 0; i < 300; i++) {
-                    if (mdp.isTerminal(state)) {
-                        System.out.print(String.format(i + " "));
-                        nonTerminal = false;
-                        break;
-                    }
-                    state = mdp.simulate(state, policy.getAction(state));
-                }
-                if (nonTerminal) {
-                    // Note that a reading of 300 means that a terminal state
-                    // was not reached in 299 steps. It does not necessarily
-                    // mean that a terminal state was reached on the 300th step.
-                    System.out.print("300 ");
-                }
+        int i = 0;
+        for (List<S> row : grid) {
+            for (int j = 0; j < row.size(); j++) {
+                System.out.print(stats.getSteps(i++) + " ");
             }
             System.out.println();
         }
@@ -328,17 +320,16 @@ public class PrintUtils {
 
     private static <S extends State, A extends Action> void printTrueValue2D(MDP<S, A> mdp,
             Policy<S, A> policy) {
-        Cell domain = mdp.getStateSpace();
-        Interval i1 = domain.getInterval(0);
-        Interval i2 = domain.getInterval(1);
+        List<List<S>> grid = gridStates(mdp);
+        PolicyEvaluator.Statistics stats = PolicyEvaluator.of(mdp)
+                .setHorizon(100)
+                .evaluate(policy, flatten(grid));
         System.out.println();
         System.out.println();
-        for (double pos = i1.getStart(); pos < i1.getEnd(); pos += i1.getWidth() / CELLS) {
-            for (double vel = i2.getStart(); vel < i2.getEnd(); vel += i2.getWidth() / CELLS) {
-                S state = mdp.stateFromVector(Vector.asVector(pos, vel));
-                List<Transition<S, A>> trajectory = MdpUtils.rollout(mdp, state, 100, policy);
-                double val = MdpUtils.getValue(trajectory, mdp.getDiscountFactor());
-                System.out.print(String.format("%.3f ", val));
+        int i = 0;
+        for (List<S> row : grid) {
+            for (int j = 0; j < row.size(); j++) {
+                System.out.print(String.format("%.3f ", stats.getReturn(i++)));
             }
             System.out.println();
         }
@@ -346,6 +337,32 @@ public class PrintUtils {
         System.out.println();
     }
 
+    /**
+     * The states of the 2D grid printed by the 2D methods, one list per row.
+     */
+    private static <S extends State, A extends Action> List<List<S>> gridStates(MDP<S, A> mdp) {
+        Cell domain = mdp.getStateSpace();
+        Interval i1 = domain.getInterval(0);
+        Interval i2 = domain.getInterval(1);
+        List<List<S>> grid = new ArrayList<List<S>>();
+        for (double pos = i1.getStart(); pos < i1.getEnd(); pos += i1.getWidth() / CELLS) {
+            List<S> row = new ArrayList<S>();
+            for (double vel = i2.getStart(); vel < i2.getEnd(); vel += i2.getWidth() / CELLS) {
+                row.add(mdp.stateFromVector(Vector.asVector(pos, vel)));
+            }
+            grid.add(row);
+        }
+        return grid;
+    }
+
+    private static <S extends State> List<S> flatten(List<List<S>> grid) {
+        List<S> ret = new ArrayList<S>();
+        for (List<S> row : grid) {
+            ret.addAll(row);
+        }
+        return ret;
+    }
+
     private static <S extends State, A extends Action> void printPolicyND(MDP<S, A> mdp,
             Policy<S, A> policy) {
         HashMap<A, Integer> hist = new HashMap<A, Integer>();
@@ -385,28 +402,20 @@ public class PrintUtils {
 
     private static <S extends State, A extends Action> void printGroundTruthND(MDP<S, A> mdp,
             Policy<S, A> policy) {
-        int terminated = 0;
-        int steps = 0;
-        double rewards = 0;
-
         int n = 200;
         int cap = 350;
 
         System.out.println("Out of " + n
                 + " randomly sampled non-terminal points in the state space");
-        for (int i = 0; i < n; i++) {
-            S state = MdpUtils.sampleNonTermainalState(mdp, 100);
-            List<Transition<S, A>> trajectory = MdpUtils.rollout(mdp, state, cap, policy);
-            rewards += MdpUtils.getValue(trajectory, mdp.getDiscountFactor());
-            if (mdp.isTerminal(trajectory.get(trajectory.size() - 1).getEndState())) {
-                terminated++;
-                steps += trajectory.size();
-            }
-        }
+        PolicyEvaluator<S, A> evaluator = PolicyEvaluator.of(mdp).setHorizon(cap);
+        PolicyEvaluator.Statistics stats = evaluator.evaluate(policy,
+                evaluator.sampleStarts(n, 100));
+        int terminated = (int) Math.round(stats.getTerminationRate() * n);
         System.out.println(terminated + " runs converged.");
-        System.out.println("The runs that converged did so in " + (1.0 * steps / terminated)
-                + " steps on average.");
-        System.out.println("The average reward over all runs was " + (rewards / n));
+        System.out.println("The runs that converged did so in "
+                + stats.getMeanStepsToTermination() + " steps on average.");
+        System.out.println("The average reward over all runs was " + stats.getMeanReturn());
+        System.out.println(stats);
     }
 
 }
@@ -14,6 +14,7 @@ import drl.mdp.instance.acrobot.AcrobotAction;
 import drl.mdp.instance.acrobot.AcrobotMdp;
 import drl.mdp.instance.acrobot.AcrobotState;
 import drl.mdp.utils.MdpUtils;
+import drl.mdp.utils.PolicyEvaluator;
 import drl.mdp.utils.Transition;
 import drl.solver.ConcurrencyUtils;
 import drl.solver.StateSampler;
@@ -41,6 +42,8 @@ public class AcrobotKbrl {
         KernelQValue<S, A> qvf = KernelQValue.of(mdp, samples, adf, bandwidth);
         adf = null;
         for (int i = 0; i < rounds; i++) {
+            // The policy is evaluated by parallel rollouts, which query
+            // the metrics at states that are not memoized.
             adf = ConcurrencyUtils.parallelMakeAdfn(mdp,
                     qvf,
                     adf,
@@ -48,7 +51,7 @@ public class AcrobotKbrl {
                     new ArrayList<S>(),
                     exec,
                     alpha,
-                    false);
+                    true);
             qvf = MultithreadedKbrl.solve(qvf.withDistanceFunction(adf),
                     mdp,
                     samples,
@@ -69,19 +72,15 @@ public class AcrobotKbrl {
             }
             System.out.println();
             System.out.println();
-            int num = 0;
-            for (S state : tests) {
-                traj = MdpUtils.rollout(mdp, state, 500, qvf);
-                System.out.println("XTest: " + (num++) + " steps " + traj.size() + " rewards "
-                        + MdpUtils.getValue(traj, mdp.getDiscountFactor()) + " start "
-                        + mdp.vectorFromState(state).untruncated());
-                for (Transition<S, A> t : traj) {
-                    // frame.setState(t.getStartState());
-                    System.out.print(t.getAction());
-                    // MdpUtils.sleep(70);
-                }
-                System.out.println();
+            PolicyEvaluator.Statistics stats = PolicyEvaluator.of(mdp, exec, 14)
+                    .setHorizon(500)
+                    .evaluate(qvf, tests);
+            for (int num = 0; num < stats.size(); num++) {
+                System.out.println("XTest: " + num + " steps " + stats.getSteps(num) + " rewards "
+                        + stats.getReturn(num) + " start "
+                        + mdp.vectorFromState(tests.get(num)).untruncated());
             }
+            System.out.println("Tests: " + stats);
             System.out.println();
 
             System.out.println();
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.experiments;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+import drl.math.RandomSource;
+import drl.math.tfs.EuclideanDF;
+import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
+import drl.mdp.api.State;
+import drl.mdp.utils.MdpUtils;
+import drl.mdp.utils.Transition;
+import drl.solver.ConcurrencyUtils;
+import drl.solver.StateSampler;
+import drl.solver.smoothing.ActionDistanceFn;
+import drl.solver.smoothing.KbUtils;
+import drl.solver.smoothing.Kbrl;
+import drl.solver.smoothing.KernelQValue;
+import drl.solver.smoothing.MultithreadedKbrl;
+import drl.solver.smoothing.SampleDistances;
+import drl.solver.smoothing.SampleTransitions;
+
+/**
+ * Runs DKBRL over a grid of configurations (bandwidth, sample count,
+ * relaxation rate and rounds of representation adjustment) concurrently.
+ * Each run gets its own small pool of threads. Runs are admitted only while
+ * they fit in a global thread budget and an estimated memory budget, so the
+ * machine is kept busy without being oversubscribed. Sampled states and
+ * transitions are generated once per sample count and shared by every run
+ * that uses that count, and results are handed to a {@link Listener} as soon
+ * as each run finishes. Every run and every sample set draws from its own
+ * {@link RandomSource} stream, so a sweep is reproducible from the experiment
+ * seed.
+ * 
+ * @author Dawit
+ * 
+ */
+public class ParameterSweep<S extends State, A extends Action> {
+
+    // Rough heap cost of one sample transition, including the vectors cached
+    // by the relaxed metric of every action.
+    private static final long BYTES_PER_TRANSITION = 512;
+
+    private final MDP<S, A> mdp;
+    private final List<Config> configs = new ArrayList<Config>();
+    private final ConcurrentMap<Integer, FutureTask<SampleTransitions<S, A>>> inputs;
+    private List<S> tests = Collections.emptyList();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int threadsPerRun = 2;
+    private long memory = Runtime.getRuntime().maxMemory() / 4 * 3;
+    private int firstIters = 200;
+    private int laterIters = 50;
+    private int maxSteps = 500;
+    private double distanceCutoff = 0;
+
+    private ParameterSweep(MDP<S, A> mdp) {
+        this.mdp = mdp;
+        this.inputs = new ConcurrentHashMap<Integer, FutureTask<SampleTransitions<S, A>>>();
+    }
+
+    public static <S extends State, A extends Action> ParameterSweep<S, A> of(MDP<S, A> mdp) {
+        return new ParameterSweep<S, A>(mdp);
+    }
+
+    /**
+     * Adds one configuration to the sweep.
+     */
+    public ParameterSweep<S, A> add(Config config) {
+        configs.add(config);
+        return this;
+    }
+
+    /**
+     * Adds every combination of the given parameters to the sweep.
+     */
+    public ParameterSweep<S, A> addGrid(double[] bandwidths, int[] samples, double[] alphas,
+            int[] rounds) {
+        for (int n : samples) {
+            for (double b : bandwidths) {
+                for (double alpha : alphas) {
+                    for (int r : rounds) {
+                        add(Config.of(b, n, alpha, r));
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Sets the states at which the mean value of each solution is reported.
+     * The list is shared by every run and must not be modified.
+     */
+    public ParameterSweep<S, A> setTestStates(List<S> tests) {
+        this.tests = tests;
+        return this;
+    }
+
+    /**
+     * Sets the total number of solver threads shared by all concurrent runs.
+     * The default is the number of available processors.
+     */
+    public ParameterSweep<S, A> setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads each run solves with. The default is 2.
+     */
+    public ParameterSweep<S, A> setThreadsPerRun(int threadsPerRun) {
+        this.threadsPerRun = threadsPerRun;
+        return this;
+    }
+
+    /**
+     * Sets the memory, in bytes, that concurrent runs may use between them.
+     * The default is three quarters of the maximum heap size.
+     */
+    public ParameterSweep<S, A> setMemoryBudget(long bytes) {
+        this.memory = bytes;
+        return this;
+    }
+
+    /**
+     * Sets the rounds of value iteration for the first solve of a run and for
+     * every later solve. The defaults are 200 and 50.
+     */
+    public ParameterSweep<S, A> setIterations(int first, int later) {
+        this.firstIters = first;
+        this.laterIters = later;
+        return this;
+    }
+
+    /**
+     * Sets the maximum length of the rollout that scores each solution. The
+     * default is 500.
+     */
+    public ParameterSweep<S, A> setMaxSteps(int maxSteps) {
+        this.maxSteps = maxSteps;
+        return this;
+    }
+
+    /**
+     * Keeps the distances between samples from one round of a run to the
+     * next, updating them in place instead of evaluating each new metric, and
+     * solves with the compiled operator of {@link Kbrl}. Distances further
+     * than {@code cutoff} bandwidths are not kept. Set {@code cutoff} to
+     * {@code Double.POSITIVE_INFINITY} to keep all of them, or to 0 (the
+     * default) to recompute distances every round. Kept distances are not
+     * counted against the memory budget.
+     */
+    public ParameterSweep<S, A> setDistanceCutoff(double cutoff) {
+        this.distanceCutoff = cutoff;
+        return this;
+    }
+
+    /**
+     * Runs every configuration and blocks until all of them finish.
+     * 
+     * @param listener
+     *            Receives each result as soon as its run finishes. Calls are
+     *            serialized. May be {@code null}.
+     * @return The results, in the order the runs finished.
+     */
+    public List<Result> run(final Listener listener) {
+        final int perRun = Math.max(1, Math.min(threadsPerRun, threads));
+        final Semaphore threadPermits = new Semaphore(Math.max(perRun, threads), true);
+        // Memory permits are counted in KB to stay within an int.
+        final int memoryKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memory / 1024));
+        final Semaphore memoryPermits = new Semaphore(memoryKb, true);
+        final List<Result> results = new ArrayList<Result>();
+        ExecutorService drivers = Executors.newCachedThreadPool();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int c = 0; c < configs.size(); c++) {
+            final Config config = configs.get(c);
+            final int index = c;
+            futures.add(drivers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    SplittableRandom old = RandomSource.use(RandomSource.derive(
+                            RandomSource.SWEEP_RUN,
+                            index));
+                    try {
+                        SampleTransitions<S, A> samples = getSamples(config.samples, threadPermits);
+                        long bytes = BYTES_PER_TRANSITION * mdp.getActions().length
+                                * samples.size(0);
+                        int kb = (int) Math.min(memoryKb, Math.max(1, bytes / 1024));
+                        memoryPermits.acquire(kb);
+                        try {
+                            threadPermits.acquire(perRun);
+                            try {
+                                Result result = solve(config, samples, perRun);
+                                synchronized (results) {
+                                    results.add(result);
+                                    if (listener != null) {
+                                        listener.finished(result);
+                                    }
+                                }
+                            } finally {
+                                threadPermits.release(perRun);
+                            }
+                        } finally {
+                            memoryPermits.release(kb);
+                        }
+                        return null;
+                    } finally {
+                        RandomSource.use(old);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        } finally {
+            drivers.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Returns the shared transitions for the given sample count, generating
+     * them under one thread permit if this is the first run that needs them.
+     */
+    private SampleTransitions<S, A> getSamples(final int num, Semaphore threadPermits)
+            throws InterruptedException, ExecutionException {
+        FutureTask<SampleTransitions<S, A>> task = inputs.get(num);
+        if (task == null) {
+            FutureTask<SampleTransitions<S, A>> created = new FutureTask<SampleTransitions<S, A>>(
+                    new Callable<SampleTransitions<S, A>>() {
+                        @Override
+                        public SampleTransitions<S, A> call() {
+                            List<S> states = StateSampler.reachabilitySample(mdp, num);
+                            return KbUtils.generateSustainedTransitions(mdp,
+                                    states,
+                                    EuclideanDF.instance,
+                                    20,
+                                    .1);
+                        }
+                    });
+            task = inputs.putIfAbsent(num, created);
+            if (task == null) {
+                task = created;
+                threadPermits.acquire();
+                SplittableRandom old = RandomSource.use(RandomSource.derive(
+                        RandomSource.SWEEP_INPUT,
+                        num));
+                try {
+                    task.run();
+                } finally {
+                    RandomSource.use(old);
+                    threadPermits.release();
+                }
+            }
+        }
+        return task.get();
+    }
+
+    private Result solve(Config config, SampleTransitions<S, A> samples, int perRun) {
+        long time = System.currentTimeMillis();
+        Result result = new Result(config);
+        ExecutorService exec = Executors.newFixedThreadPool(perRun);
+        try {
+            ActionDistanceFn<A> adf = ActionDistanceFn.of(mdp.getActions(), EuclideanDF.instance);
+            KernelQValue<S, A> qvf = KernelQValue.of(mdp, samples, adf, config.bandwidth);
+            adf = null;
+            int iters = firstIters;
+            SampleDistances<S, A> distances = null;
+            for (int i = 0; i < config.rounds; i++) {
+                adf = ConcurrencyUtils.parallelMakeAdfn(mdp,
+                        qvf,
+                        adf,
+                        samples,
+                        new ArrayList<S>(),
+                        exec,
+                        config.alpha,
+                        false);
+                if (distanceCutoff <= 0) {
+                    qvf = MultithreadedKbrl.solve(qvf.withDistanceFunction(adf),
+                            mdp,
+                            samples,
+                            exec,
+                            perRun,
+                            iters);
+                } else {
+                    if (distances == null) {
+                        distances = distanceCutoff == Double.POSITIVE_INFINITY ? SampleDistances
+                                .dense(mdp, samples, adf) : SampleDistances.sparse(mdp,
+                                samples,
+                                adf,
+                                SampleDistances.initialRadius(distanceCutoff,
+                                        config.bandwidth,
+                                        config.alpha,
+                                        config.rounds - 1));
+                    } else {
+                        distances.relax(adf);
+                    }
+                    qvf = Kbrl.solveCompiled(qvf.withDistanceFunction(adf),
+                            mdp,
+                            samples,
+                            iters,
+                            0,
+                            distances);
+                }
+                List<Transition<S, A>> traj = MdpUtils.rollout(mdp, null, maxSteps, qvf);
+                result.steps.add(traj.size());
+                if (!tests.isEmpty()) {
+                    double sum = 0;
+                    for (S state : tests) {
+                        sum += qvf.getValue(state);
+                    }
+                    result.values.add(sum / tests.size());
+                }
+                iters = laterIters;
+            }
+        } finally {
+            exec.shutdown();
+        }
+        result.millis = System.currentTimeMillis() - time;
+        return result;
+    }
+
+    /**
+     * Receives the results of a sweep as they finish.
+     */
+    public interface Listener {
+
+        public void finished(Result result);
+    }
+
+    /**
+     * The parameters of one DKBRL run.
+     */
+    public static class Config {
+        private final double bandwidth;
+        private final int samples;
+        private final double alpha;
+        private final int rounds;
+
+        private Config(double bandwidth, int samples, double alpha, int rounds) {
+            this.bandwidth = bandwidth;
+            this.samples = samples;
+            this.alpha = alpha;
+            this.rounds = rounds;
+        }
+
+        /**
+         * @param bandwidth
+         *            The kernel bandwidth.
+         * @param samples
+         *            The number of states to sample.
+         * @param alpha
+         *            The relaxation rate.
+         * @param rounds
+         *            The number of rounds of representation adjustment.
+         */
+        public static Config of(double bandwidth, int samples, double alpha, int rounds) {
+            return new Config(bandwidth, samples, alpha, rounds);
+        }
+
+        public double getBandwidth() {
+            return bandwidth;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        public double getAlpha() {
+            return alpha;
+        }
+
+        public int getRounds() {
+            return rounds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("bandwidth=%.4f samples=%d alpha=%.2f rounds=%d",
+                    bandwidth,
+                    samples,
+                    alpha,
+                    rounds);
+        }
+    }
+
+    /**
+     * The outcome of one run: the length of the greedy rollout after each
+     * round and, when test states are set, the mean value of the test states
+     * after each round.
+     */
+    public static class Result {
+        private final Config config;
+        private final List<Integer> steps = new ArrayList<Integer>();
+        private final List<Double> values = new ArrayList<Double>();
+        private long millis;
+
+        private Result(Config config) {
+            this.config = config;
+        }
+
+        public Config getConfig() {
+            return config;
+        }
+
+        public List<Integer> getSteps() {
+            return steps;
+        }
+
+        public List<Double> getTestValues() {
+            return values;
+        }
+
+        /**
+         * @return The wall clock time of the run, in milliseconds.
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            return config + " " + steps + (values.isEmpty() ? "" : " " + values) + " ("
+                    + millis + " ms)";
+        }
+    }
+
+}
@@ -19,12 +19,12 @@
 package drl.experiments;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 import drl.data.vis.DisplayFrame;
-import drl.math.algs.GridFilter;
+import drl.math.RandomSource;
+import drl.math.algs.ConcurrentGridFilter;
 import drl.math.geom.Vector;
 import drl.math.tfs.EuclideanDF;
 import drl.mdp.api.Action;
@@ -35,11 +35,15 @@ import drl.mdp.instance.pinball.PinBallMdp;
 import drl.mdp.instance.pinball.PinBallParams;
 import drl.mdp.instance.pinball.PinBallState;
 import drl.mdp.utils.MdpUtils;
+import drl.mdp.utils.PolicyEvaluator;
 import drl.mdp.utils.Transition;
 import drl.solver.ConcurrencyUtils;
+import drl.solver.ReachabilitySampler;
 import drl.solver.smoothing.ActionDistanceFn;
+import drl.solver.smoothing.Kbrl;
 import drl.solver.smoothing.KernelQValue;
 import drl.solver.smoothing.MultithreadedKbrl;
+import drl.solver.smoothing.SampleDistances;
 import drl.solver.smoothing.SampleTransitions;
 
 /**
@@ -55,6 +59,10 @@ public class PinBallKbrl {
     // private static final int numSamples = 20000;
     private static final int rounds = 3;
     private static final double alpha = .5;
+    // Sample distances within this many bandwidths are kept between rounds,
+    // for instance KernelQValue.DEFAULT_CUTOFF, which truncates the kernels.
+    // 0 recomputes them every round and solves exactly.
+    private static final double distanceCutoff = 0;
     private static final String world = "data/pinball-easy.cfg";
 
     public static <S extends State, A extends Action> ComputationResult computeResultsKbrl(
@@ -67,7 +75,10 @@ public class PinBallKbrl {
         ActionDistanceFn<A> adf = ActionDistanceFn.of(mdp.getActions(), EuclideanDF.instance);
         KernelQValue<S, A> qvf = KernelQValue.of(mdp, samples, adf, bandwidth);
         adf = null;
+        SampleDistances<S, A> distances = null;
         for (int i = 0; i < rounds; i++) {
+            // The policy is evaluated by parallel rollouts, which query
+            // the metrics at states that are not memoized.
             adf = ConcurrencyUtils.parallelMakeAdfn(mdp,
                     qvf,
                     adf,
@@ -75,13 +86,33 @@ public class PinBallKbrl {
                     new ArrayList<S>(),
                     exec,
                     alpha,
-                    false);
-            qvf = MultithreadedKbrl.solve(qvf.withDistanceFunction(adf),
-                    mdp,
-                    samples,
-                    exec,
-                    14,
-                    iters);
+                    true);
+            if (distanceCutoff <= 0) {
+                qvf = MultithreadedKbrl.solve(qvf.withDistanceFunction(adf),
+                        mdp,
+                        samples,
+                        exec,
+                        14,
+                        iters);
+            } else {
+                if (distances == null) {
+                    distances = SampleDistances.sparse(mdp,
+                            samples,
+                            adf,
+                            SampleDistances.initialRadius(distanceCutoff,
+                                    bandwidth,
+                                    alpha,
+                                    rounds - 1));
+                } else {
+                    distances.relax(adf);
+                }
+                qvf = Kbrl.solveCompiled(qvf.withDistanceFunction(adf),
+                        mdp,
+                        samples,
+                        iters,
+                        0,
+                        distances);
+            }
             // PrintUtils.printValueFunction(mdp, qvf);
             // PrintUtils.printPolicy(mdp, QValuePolicy.of(qvf));
             List<Transition<S, A>> traj = MdpUtils.rollout(mdp, null, 500, qvf);
@@ -96,19 +127,15 @@ public class PinBallKbrl {
             }
             System.out.println();
             System.out.println();
-            int num = 0;
-            for (S state : tests) {
-                traj = MdpUtils.rollout(mdp, state, 500, qvf);
-                System.out.println("XTest: " + (num++) + " steps " + traj.size() + " rewards "
-                        + MdpUtils.getValue(traj, mdp.getDiscountFactor()) + " start "
-                        + mdp.vectorFromState(state).untruncated());
-                for (Transition<S, A> t : traj) {
-                    // frame.setState(t.getStartState());
-                    System.out.print(t.getAction());
-                    // MdpUtils.sleep(70);
-                }
-                System.out.println();
+            PolicyEvaluator.Statistics stats = PolicyEvaluator.of(mdp, exec, 14)
+                    .setHorizon(500)
+                    .evaluate(qvf, tests);
+            for (int num = 0; num < stats.size(); num++) {
+                System.out.println("XTest: " + num + " steps " + stats.getSteps(num) + " rewards "
+                        + stats.getReturn(num) + " start "
+                        + mdp.vectorFromState(tests.get(num)).untruncated());
             }
+            System.out.println("Tests: " + stats);
             System.out.println();
 
             System.out.println();
@@ -130,32 +157,40 @@ public class PinBallKbrl {
         PinBall2D mdp = new PinBall2D(params);
         // List<Vector> repVels = MathUtils.tilingSample(8,
         // MathUtils.regularCell(2, -.5, .5));
-        // Collections.shuffle(repVels);
-        GridFilter filter = new GridFilter(mdp.getStateSpace(), 90);
-        filter.addAll(MdpUtils.toVectors(MdpUtils.randomWalk(mdp, null, 500000, 100000), mdp));
+        // RandomSource.shuffle(repVels);
+        ConcurrentGridFilter filter = ReachabilitySampler.of(mdp)
+                .setMaxSteps(500000)
+                .setRestart(100000)
+                .setBinCapacity(0)
+                .walk(90);
         System.out.println("Vectors to be created number " + filter.binsReached());
         List<Vector> repPos = filter.subsample(filter.binsReached());
         List<Vector> reps = new ArrayList<Vector>();
         for (int i = 0; i < repPos.size(); i++) {
             Vector v = repPos.get(i);
             // Vector v2 = repVels.get(i % repVels.size());
-            reps.add(Vector.asVector(v.get(0), v.get(1), Math.random() - .5, Math.random() - .5));
+            reps.add(Vector.asVector(v.get(0), v.get(1), RandomSource.nextDouble() - .5,
+                    RandomSource.nextDouble() - .5));
         }
         return reps;
     }
 
     public static List<Vector> generateTests(PinBallParams params) {
         PinBall2D mdp = new PinBall2D(params);
-        GridFilter filter = new GridFilter(mdp.getStateSpace(), 28);
-        filter.addAll(MdpUtils.toVectors(MdpUtils.randomWalk(mdp, null, 1000000, 1000000), mdp));
+        ConcurrentGridFilter filter = ReachabilitySampler.of(mdp)
+                .setMaxSteps(1000000)
+                .setRestart(1000000)
+                .setBinCapacity(0)
+                .walk(28);
         System.out.println("Test vectors to be created number " + filter.binsReached());
         List<Vector> repPos = filter.subsample(filter.binsReached());
         List<Vector> reps = new ArrayList<Vector>();
         for (int i = 0; i < repPos.size(); i++) {
             Vector v = repPos.get(i);
-            reps.add(Vector.asVector(v.get(0), v.get(1), Math.random() - .5, Math.random() - .5));
+            reps.add(Vector.asVector(v.get(0), v.get(1), RandomSource.nextDouble() - .5,
+                    RandomSource.nextDouble() - .5));
         }
-        Collections.shuffle(reps);
+        RandomSource.shuffle(reps);
         return reps;
     }
 
@@ -164,7 +199,7 @@ public class PinBallKbrl {
         PinBallParams params = PinBallParams.fromFile(world);
         PinBallMdp mdp = new PinBallMdp(params);
         List<PinBallState> states = MdpUtils.toStates(generateReps(params), mdp);
-        // Collections.shuffle(states);
+        // RandomSource.shuffle(states);
         // List<PinBallState> tests = new ArrayList<PinBallState>(500);
         /*
          * for (PinBallState state : MdpUtils.toStates(generateTests(params),
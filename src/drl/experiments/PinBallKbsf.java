@@ -19,13 +19,13 @@
 package drl.experiments;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import drl.math.MathUtils;
-import drl.math.algs.GridFilter;
+import drl.math.RandomSource;
+import drl.math.algs.ConcurrentGridFilter;
 import drl.math.geom.Vector;
 import drl.math.tfs.DistanceFunction;
 import drl.math.tfs.EuclideanDF;
@@ -38,6 +38,7 @@ import drl.mdp.utils.MdpUtils;
 import drl.mdp.utils.Transition;
 import drl.solver.ConcurrencyUtils;
 import drl.solver.KbrlCaller;
+import drl.solver.ReachabilitySampler;
 import drl.solver.smoothing.ActionDistanceFn;
 import drl.solver.smoothing.KbUtils;
 import drl.solver.smoothing.KernelQValue;
@@ -55,15 +56,17 @@ public class PinBallKbsf {
 
     private static List<Vector> generateSamples(PinBallParams params) {
         PinBall2D mdp = new PinBall2D(params);
-        GridFilter f2 = new GridFilter(mdp.getStateSpace(), 46);
-        List<Vector> allData = MdpUtils.toVectors(MdpUtils.randomWalk(mdp, null, 2000000, 130000),
-                mdp);
-        f2.addAll(allData);
+        ConcurrentGridFilter f2 = ReachabilitySampler.of(mdp)
+                .setMaxSteps(2000000)
+                .setRestart(130000)
+                .setBinCapacity(64)
+                .walk(46);
         List<Vector> pos = f2.subsample(samples);
         System.out.println("Points: " + pos.size());
         List<Vector> alls = new ArrayList<Vector>(pos.size());
         for (Vector v : pos) {
-            alls.add(Vector.asVector(v.get(0), v.get(1), Math.random() - .5, Math.random() - .5));
+            alls.add(Vector.asVector(v.get(0), v.get(1), RandomSource.nextDouble() - .5,
+                    RandomSource.nextDouble() - .5));
         }
         return alls;
     }
@@ -71,9 +74,12 @@ public class PinBallKbsf {
     public static List<Vector> generateReps(PinBallParams params) {
         PinBall2D mdp = new PinBall2D(params);
         List<Vector> repVels = MathUtils.tilingSample(8, MathUtils.regularCell(2, -.5, .5));
-        Collections.shuffle(repVels);
-        GridFilter filter = new GridFilter(mdp.getStateSpace(), 90);
-        filter.addAll(MdpUtils.toVectors(MdpUtils.randomWalk(mdp, null, 5000000, 1000000), mdp));
+        RandomSource.shuffle(repVels);
+        ConcurrentGridFilter filter = ReachabilitySampler.of(mdp)
+                .setMaxSteps(5000000)
+                .setRestart(1000000)
+                .setBinCapacity(0)
+                .walk(90);
         System.out.println("Vectors to be created number " + filter.binsReached());
         List<Vector> repPos = filter.subsample(filter.binsReached());
         List<Vector> reps = new ArrayList<Vector>();
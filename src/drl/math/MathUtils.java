@@ -141,7 +141,7 @@ public class MathUtils {
      * Return an element from {@code as} selected u.a.r.
      */
     public static <A> A sample(A[] as) {
-        return as[(int) (Math.random() * as.length)];
+        return as[RandomSource.nextInt(as.length)];
     }
 
     /**
@@ -196,7 +196,7 @@ public class MathUtils {
         double[] d = new double[domain.getDimensions()];
         for (int i = 0; i < d.length; i++) {
             Interval interval = domain.getInterval(i);
-            d[i] = Math.random() * interval.getWidth() + interval.getStart();
+            d[i] = RandomSource.nextDouble() * interval.getWidth() + interval.getStart();
         }
         return Vector.asVector(d);
     }
@@ -266,6 +266,47 @@ public class MathUtils {
         return sum;
     }
 
+    /**
+     * Finds the {@code k}-th largest of the first {@code n} elements of
+     * {@code array} by quickselect. {@code array} is not modified.
+     * 
+     * @param scratch
+     *            Working space of length at least {@code n}.
+     * @return The {@code k}-th largest element, where {@code k = 1} is the
+     *         maximum.
+     */
+    public static double kthLargest(double[] array, int n, int k, double[] scratch) {
+        System.arraycopy(array, 0, scratch, 0, n);
+        int lo = 0;
+        int hi = n - 1;
+        int target = k - 1;
+        while (hi > lo) {
+            double pivot = scratch[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (scratch[i] > pivot) {
+                    i++;
+                }
+                while (scratch[j] < pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    double d = scratch[i];
+                    scratch[i++] = scratch[j];
+                    scratch[j--] = d;
+                }
+            }
+            if (target <= j) {
+                hi = j;
+            } else if (target >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return scratch[target];
+    }
+
     /**
      * Clips {@code value} to lie within [min, max]
      */
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.math;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The source of every random number used by the simulators, samplers and
+ * solvers. Each thread draws from its own {@link SplittableRandom}, so threads
+ * never contend on a shared generator. All streams are derived from a single
+ * experiment seed.
+ * <p>
+ * A thread that has not been given a stream gets one derived from the seed and
+ * the order in which threads first asked for one, which is cheap but depends
+ * on scheduling. Parallel code that must be bitwise reproducible installs a
+ * stream derived from the task instead. Every consumer passes its own tag
+ * first, so that two components never derive the same stream from the same
+ * ids:
+ * 
+ * <pre>
+ * SplittableRandom old = RandomSource.use(RandomSource.derive(RandomSource.ROLLOUT_APPROXIMATOR,
+ *         round,
+ *         task));
+ * try {
+ *     ...
+ * } finally {
+ *     RandomSource.use(old);
+ * }
+ * </pre>
+ * 
+ * @author Dawit
+ * 
+ */
+public class RandomSource {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    // The tags that namespace the streams of each consumer.
+    public static final long DEFAULT_THREAD = 1;
+    public static final long SWEEP_INPUT = 2;
+    public static final long SWEEP_RUN = 3;
+    public static final long EVALUATOR = 4;
+    public static final long ROLLOUT_APPROXIMATOR = 5;
+    public static final long REACHABILITY = 6;
+
+    private static volatile long seed = System.nanoTime();
+    private static volatile long generation = 0;
+    private static final AtomicLong threads = new AtomicLong();
+    private static final ThreadLocal<Stream> local = new ThreadLocal<Stream>() {
+        @Override
+        protected Stream initialValue() {
+            return new Stream();
+        }
+    };
+
+    private RandomSource() {
+    }
+
+    private static class Stream {
+        private long generation = -1;
+        private SplittableRandom random;
+    }
+
+    /**
+     * Sets the experiment seed. Streams handed out afterwards, including the
+     * default stream of every thread, are derived from the new seed.
+     */
+    public static synchronized void setSeed(long newSeed) {
+        seed = newSeed;
+        threads.set(0);
+        generation++;
+    }
+
+    /**
+     * @return The experiment seed.
+     */
+    public static long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param tag
+     *            The tag of the consumer, such as {@link #EVALUATOR}.
+     * @param ids
+     *            Identifiers within the consumer, for instance a round number
+     *            and a task index.
+     * @return A new stream determined by the experiment seed, the tag and the
+     *         identifiers.
+     */
+    public static SplittableRandom derive(long tag, long... ids) {
+        long h = mix(seed + (tag + 1) * GOLDEN_GAMMA);
+        for (long id : ids) {
+            h = mix(h + (id + 1) * GOLDEN_GAMMA);
+        }
+        return new SplittableRandom(h);
+    }
+
+    /**
+     * Makes {@code stream} the stream of the calling thread.
+     * 
+     * @return The stream it replaces, to be restored with another call.
+     */
+    public static SplittableRandom use(SplittableRandom stream) {
+        Stream s = local.get();
+        SplittableRandom old = current(s);
+        s.random = stream;
+        s.generation = generation;
+        return old;
+    }
+
+    /**
+     * @return The stream of the calling thread. It must not be shared with
+     *         other threads.
+     */
+    public static SplittableRandom current() {
+        return current(local.get());
+    }
+
+    private static SplittableRandom current(Stream s) {
+        if (s.generation != generation || s.random == null) {
+            s.random = derive(DEFAULT_THREAD, threads.getAndIncrement());
+            s.generation = generation;
+        }
+        return s.random;
+    }
+
+    /**
+     * @return A double drawn u.a.r. from [0, 1).
+     */
+    public static double nextDouble() {
+        return current().nextDouble();
+    }
+
+    /**
+     * @return An int drawn u.a.r. from [0, n).
+     */
+    public static int nextInt(int n) {
+        return current().nextInt(n);
+    }
+
+    /**
+     * @return A standard normal sample.
+     */
+    public static double nextGaussian() {
+        SplittableRandom random = current();
+        double v1, v2, s;
+        do {
+            v1 = 2 * random.nextDouble() - 1;
+            v2 = 2 * random.nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s >= 1 || s == 0);
+        return v1 * Math.sqrt(-2 * Math.log(s) / s);
+    }
+
+    /**
+     * Shuffles {@code list} in place with the stream of the calling thread.
+     * Use this instead of {@link Collections#shuffle(List)}, whose generator
+     * is not derived from the experiment seed.
+     */
+    public static void shuffle(List<?> list) {
+        SplittableRandom random = current();
+        for (int i = list.size() - 1; i > 0; i--) {
+            Collections.swap(list, i, random.nextInt(i + 1));
+        }
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
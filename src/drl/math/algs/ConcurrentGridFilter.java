@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.math.algs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import drl.math.MathUtils;
+import drl.math.RandomSource;
+import drl.math.geom.Cell;
+import drl.math.geom.Vector;
+
+/**
+ * A thread safe {@code Filter} that bins the data on the same grid as
+ * {@link GridFilter}. Bins are looked up without locking and each bin is
+ * locked on its own, so many threads can add vectors at once. Every bin keeps
+ * the vector closest to its center plus a uniform reservoir sample of at most
+ * {@code capacity} of the vectors added to it; with an unbounded capacity it
+ * keeps everything, like {@code GridFilter}. {@link #subsample} and
+ * {@link #getNeighbors} only see the vectors that were kept.
+ * 
+ * @author Dawit
+ * 
+ */
+public class ConcurrentGridFilter implements Filter {
+
+    private final GridFilter grid;
+    private final Cell domain;
+    private final int cellsPerDim;
+    private final int capacity;
+    private final ConcurrentHashMap<Integer, Bin> table;
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * @param capacity
+     *            The number of vectors each bin keeps besides the one closest
+     *            to its center. Use {@code Integer.MAX_VALUE} to keep all of
+     *            them.
+     */
+    public ConcurrentGridFilter(Cell domain, int cellsPerDimension, int capacity) {
+        // Only used to map vectors to bins and back.
+        this.grid = new GridFilter(domain, cellsPerDimension);
+        this.domain = domain;
+        this.cellsPerDim = cellsPerDimension;
+        this.capacity = Math.max(0, capacity);
+        this.table = new ConcurrentHashMap<Integer, Bin>();
+    }
+
+    public final int getIndex(Vector v) {
+        return grid.getIndex(v);
+    }
+
+    public Vector getBinCenter(int bin) {
+        return grid.getBinCenter(bin);
+    }
+
+    public int getCellsPerDimension() {
+        return cellsPerDim;
+    }
+
+    /**
+     * @return The number of non-empty bins.
+     */
+    public int binsReached() {
+        return table.size();
+    }
+
+    /**
+     * @return The number of vectors added so far, including those that were
+     *         not kept.
+     */
+    public long size() {
+        return size.sum();
+    }
+
+    @Override
+    public void addAll(Collection<Vector> vs) {
+        SplittableRandom random = RandomSource.current();
+        for (Vector v : vs) {
+            add(v, random);
+        }
+    }
+
+    /**
+     * Adds {@code v}, drawing reservoir decisions from the calling thread's
+     * {@link RandomSource} stream.
+     */
+    @Override
+    public void add(Vector v) {
+        add(v, RandomSource.current());
+    }
+
+    /**
+     * Adds {@code v}, drawing reservoir decisions from {@code random}, which
+     * must not be shared with other threads.
+     */
+    public void add(Vector v, SplittableRandom random) {
+        getBin(getIndex(v)).add(v, random);
+        size.increment();
+    }
+
+    private Bin getBin(int index) {
+        Bin bin = table.get(index);
+        if (bin == null) {
+            Bin fresh = new Bin(getBinCenter(index), capacity);
+            bin = table.putIfAbsent(index, fresh);
+            if (bin == null) {
+                bin = fresh;
+            }
+        }
+        return bin;
+    }
+
+    /**
+     * @return All vectors currently kept, the one closest to the center of
+     *         each bin first.
+     */
+    public List<Vector> getKept() {
+        List<Vector> ret = new ArrayList<Vector>();
+        for (Bin bin : table.values()) {
+            bin.copyTo(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @return A {@code GridFilter} over the same grid holding the vectors
+     *         currently kept.
+     */
+    public GridFilter toGridFilter() {
+        GridFilter filter = new GridFilter(domain, cellsPerDim);
+        filter.addAll(getKept());
+        return filter;
+    }
+
+    /**
+     * Selects from the vectors currently kept, as {@link GridFilter#subsample}
+     * would if they were the only ones added.
+     */
+    @Override
+    public List<Vector> subsample(int numItems) {
+        return toGridFilter().subsample(numItems);
+    }
+
+    @Override
+    public List<Vector> getNeighbors(Vector v, double epsilon) {
+        List<Vector> ret = new ArrayList<Vector>();
+        double eps2 = epsilon * epsilon;
+        if (epsilon >= grid.getMinBinWidth()) {
+            for (Bin bin : table.values()) {
+                bin.addNeighbors(v, eps2, ret);
+            }
+            return ret;
+        }
+        for (Integer i : grid.getAdjacent(v, epsilon)) {
+            Bin bin = table.get(i);
+            if (bin != null) {
+                bin.addNeighbors(v, eps2, ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The vector closest to the center of a bin and a reservoir sample of the
+     * vectors added to it.
+     */
+    private static final class Bin {
+        private final Vector center;
+        private final int capacity;
+        private final List<Vector> reservoir;
+        private Vector best;
+        private double bestDistance = Double.POSITIVE_INFINITY;
+        private long count = 0;
+
+        Bin(Vector center, int capacity) {
+            this.center = center;
+            this.capacity = capacity;
+            this.reservoir = new ArrayList<Vector>(Math.min(capacity, 4));
+        }
+
+        synchronized void add(Vector v, SplittableRandom random) {
+            double d = MathUtils.squaredDistance(center, v);
+            count++;
+            if (d < bestDistance) {
+                // The old best goes back into the running for the reservoir.
+                Vector old = best;
+                bestDistance = d;
+                best = v;
+                if (old == null) {
+                    return;
+                }
+                v = old;
+            }
+            if (reservoir.size() < capacity) {
+                reservoir.add(v);
+                return;
+            }
+            if (capacity > 0) {
+                long j = random.nextLong(count - 1);
+                if (j < capacity) {
+                    reservoir.set((int) j, v);
+                }
+            }
+        }
+
+        synchronized void copyTo(List<Vector> out) {
+            // A bin is published before its first vector is added.
+            if (best != null) {
+                out.add(best);
+            }
+            out.addAll(reservoir);
+        }
+
+        synchronized void addNeighbors(Vector v, double eps2, List<Vector> out) {
+            if (best != null && MathUtils.squaredDistance(v, best) < eps2) {
+                out.add(best);
+            }
+            for (Vector v2 : reservoir) {
+                if (MathUtils.squaredDistance(v, v2) < eps2) {
+                    out.add(v2);
+                }
+            }
+        }
+    }
+
+}
@@ -19,16 +19,19 @@
 package drl.math.algs;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import drl.math.MathUtils;
 import drl.math.geom.Vector;
+import drl.math.tfs.EuclideanDF;
 
 /**
- * A static utility class for creating nearest neighbor graphs. It is deprecated
- * and untested. Use with caution.
+ * A static utility class for creating nearest neighbor graphs. The adjacency
+ * list methods are deprecated and untested. Use with caution.
+ * {@link #buildSparseGraph} scales to large sample sets.
  * 
  * @author Dawit
  * 
@@ -82,6 +85,204 @@ public class GraphBuilder {
         return ret;
     }
 
+    /**
+     * Builds the graph that connects every pair of vectors within {@code eps}
+     * of each other, using range queries in a {@link MetricTree} instead of
+     * comparing every pair. Like {@link #buildConnectedGraph}, components are
+     * then joined, here by repeatedly linking a component to the closest
+     * vector outside of it.
+     * 
+     * @return The symmetric adjacency matrix, whose entries are the Euclidean
+     *         lengths of the edges.
+     */
+    public static SparseMatrix buildSparseGraph(List<Vector> vecs, double eps) {
+        if (eps <= 0) {
+            throw new IllegalArgumentException("eps must be positive: " + eps);
+        }
+        int n = vecs.size();
+        MetricTree tree = MetricTree.of(vecs, EuclideanDF.instance);
+        SparseMatrix.Builder builder = new SparseMatrix.Builder(n, n, 16 * n);
+        Row row = new Row();
+        for (int i = 0; i < n; i++) {
+            row.clear(i);
+            tree.range(vecs.get(i), eps, row);
+            builder.addRow(row.cols, row.vals, row.size);
+        }
+        SparseMatrix graph = builder.build();
+        System.out.println("Computed adjacency");
+
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        int[] cols = graph.getColumns();
+        for (int i = 0; i < n; i++) {
+            for (int k = graph.getRowStart(i); k < graph.getRowStart(i + 1); k++) {
+                union(parent, i, cols[k]);
+            }
+        }
+        // Group the vertices by component, largest component first.
+        int[] count = new int[n];
+        for (int i = 0; i < n; i++) {
+            count[find(parent, i)]++;
+        }
+        int largest = 0;
+        int comps = 0;
+        for (int i = 0; i < n; i++) {
+            if (count[i] > 0) {
+                comps++;
+                if (count[i] > count[largest]) {
+                    largest = i;
+                }
+            }
+        }
+        if (comps <= 1) {
+            return graph;
+        }
+        System.out.println(comps + " connected components found. Trying to fix that");
+        int[] start = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            start[i + 1] = start[i] + count[i];
+        }
+        int[] members = new int[n];
+        int[] at = Arrays.copyOf(start, n);
+        for (int i = 0; i < n; i++) {
+            members[at[find(parent, i)]++] = i;
+        }
+
+        Link link = new Link(parent);
+        List<int[]> extra = new ArrayList<int[]>();
+        for (int c = 0; c < n; c++) {
+            if (count[c] == 0 || c == largest) {
+                continue;
+            }
+            link.clear();
+            for (double radius = 2 * eps; link.to < 0; radius *= 2) {
+                for (int k = start[c]; k < start[c + 1]; k++) {
+                    link.from(members[k]);
+                    tree.range(vecs.get(members[k]), radius, link);
+                }
+            }
+            extra.add(new int[] { link.bestFrom, link.to });
+            union(parent, link.bestFrom, link.to);
+        }
+        return addEdges(graph, vecs, extra);
+    }
+
+    private static SparseMatrix addEdges(SparseMatrix graph, List<Vector> vecs,
+            List<int[]> edges) {
+        int n = graph.getNumRows();
+        int[] degree = new int[n];
+        for (int[] e : edges) {
+            degree[e[0]]++;
+            degree[e[1]]++;
+        }
+        int[] cols = graph.getColumns();
+        double[] vals = graph.getValues();
+        int[][] added = new int[n][];
+        for (int i = 0; i < n; i++) {
+            if (degree[i] > 0) {
+                added[i] = new int[degree[i]];
+                degree[i] = 0;
+            }
+        }
+        for (int[] e : edges) {
+            added[e[0]][degree[e[0]]++] = e[1];
+            added[e[1]][degree[e[1]]++] = e[0];
+        }
+        SparseMatrix.Builder builder = new SparseMatrix.Builder(n,
+                n,
+                graph.getNumNonZeros() + 2 * edges.size());
+        Row row = new Row();
+        for (int i = 0; i < n; i++) {
+            row.clear(-1);
+            for (int k = graph.getRowStart(i); k < graph.getRowStart(i + 1); k++) {
+                row.visit(cols[k], vals[k]);
+            }
+            if (added[i] != null) {
+                for (int j : added[i]) {
+                    row.visit(j, Math.sqrt(MathUtils.squaredDistance(vecs.get(i), vecs.get(j))));
+                }
+            }
+            builder.addRow(row.cols, row.vals, row.size);
+        }
+        System.out.println("Computed graph.");
+        return builder.build();
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int i, int j) {
+        parent[find(parent, i)] = find(parent, j);
+    }
+
+    /**
+     * Collects the neighbors of one vertex, skipping the vertex itself.
+     */
+    private static class Row implements MetricTree.Visitor {
+        int self;
+        int size;
+        int[] cols = new int[16];
+        double[] vals = new double[16];
+
+        void clear(int self) {
+            this.self = self;
+            this.size = 0;
+        }
+
+        @Override
+        public void visit(int index, double distance) {
+            if (index == self) {
+                return;
+            }
+            if (size == cols.length) {
+                cols = Arrays.copyOf(cols, 2 * size);
+                vals = Arrays.copyOf(vals, 2 * size);
+            }
+            cols[size] = index;
+            vals[size++] = distance;
+        }
+    }
+
+    /**
+     * Finds the shortest edge from a component to a vertex outside of it.
+     */
+    private static class Link implements MetricTree.Visitor {
+        final int[] parent;
+        int from;
+        int bestFrom;
+        int to;
+        double best;
+
+        Link(int[] parent) {
+            this.parent = parent;
+        }
+
+        void clear() {
+            this.to = -1;
+            this.best = Double.POSITIVE_INFINITY;
+        }
+
+        void from(int from) {
+            this.from = from;
+        }
+
+        @Override
+        public void visit(int index, double distance) {
+            if (distance < best && find(parent, index) != find(parent, from)) {
+                best = distance;
+                bestFrom = from;
+                to = index;
+            }
+        }
+    }
+
     private static void connectClosest(Set<Integer> comp1, Set<Integer> comp2, List<Vector> vecs,
             List<Set<Integer>> graph) {
         double min = Double.POSITIVE_INFINITY;
@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Set;
 
 import drl.math.MathUtils;
+import drl.math.RandomSource;
 import drl.math.geom.Cell;
 import drl.math.geom.Interval;
 import drl.math.geom.Vector;
@@ -80,6 +81,13 @@ public class GridFilter implements Filter {
         return ret;
     }
 
+    /**
+     * @return The width of the narrowest side of a bin.
+     */
+    double getMinBinWidth() {
+        return width;
+    }
+
     /**
      * @return The number of non-empty bins in the GridFilter.
      */
@@ -162,7 +170,7 @@ public class GridFilter implements Filter {
                 ret.addAll(vs);
                 continue;
             }
-            Collections.shuffle(vs);
+            RandomSource.shuffle(vs);
             Vector v = closest(vs, getBinCenter(getIndex(vs.get(0))));
             int index = vs.indexOf(v);
             vs.set(index, vs.get(0));
@@ -172,7 +180,7 @@ public class GridFilter implements Filter {
             }
             temps.add(vs);
         }
-        Collections.shuffle(temps);
+        RandomSource.shuffle(temps);
         i = 0;
         for (; ret.size() < numItems; i++) {
             if (i == temps.size()) {
@@ -192,7 +200,7 @@ public class GridFilter implements Filter {
         List<Vector> ret = new ArrayList<Vector>(numItems);
         int bins = binsReached();
         for (int i : table.keySet()) {
-            if (Math.random() * bins-- > numItems) {
+            if (RandomSource.nextDouble() * bins-- > numItems) {
                 continue;
             }
             numItems--;
@@ -261,7 +269,12 @@ public class GridFilter implements Filter {
         return ret;
     }
 
-    private Set<Integer> getAdjacent(Vector v, double epsilon) {
+    /**
+     * @return The indices of the bins that may hold vectors within
+     *         {@code epsilon} of {@code v}, for {@code epsilon} below the
+     *         narrowest bin width.
+     */
+    Set<Integer> getAdjacent(Vector v, double epsilon) {
         Set<Integer> indicies = new HashSet<Integer>();
         double[] d = new double[v.getDimensions()];
         for (int i = 0; i < d.length; i++) {
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.math.algs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import drl.math.geom.Vector;
+import drl.math.tfs.DistanceFunction;
+
+/**
+ * A growable index over a list of Vectors, built from {@link MetricTree}s by
+ * the logarithmic method of Bentley and Saxe. Every tree covers a contiguous
+ * range of the list and the trees shrink from the oldest to the newest. A
+ * batch of new vectors becomes a new tree, which is merged with its neighbours
+ * while they are no larger, so each vector is rebuilt into a new tree
+ * O(log n) times and queries visit O(log n) trees.
+ * 
+ * @author Dawit
+ * 
+ */
+public class MetricForest {
+
+    private final DistanceFunction df;
+    private Vector[] vecs = new Vector[16];
+    private int size = 0;
+    private final List<MetricTree> trees = new ArrayList<MetricTree>();
+    // The tree at position t covers the vectors starting at starts.get(t).
+    private final List<Integer> starts = new ArrayList<Integer>();
+
+    private MetricForest(DistanceFunction df) {
+        this.df = df;
+    }
+
+    /**
+     * Creates an empty forest.
+     * 
+     * @param df
+     *            The metric. It must satisfy the triangle inequality for range
+     *            queries to be exact.
+     */
+    public static MetricForest of(DistanceFunction df) {
+        return new MetricForest(df);
+    }
+
+    /**
+     * @return The number of vectors in the forest.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of trees, which is logarithmic in {@link #size()}.
+     */
+    public int getNumTrees() {
+        return trees.size();
+    }
+
+    public DistanceFunction getDistanceFunction() {
+        return df;
+    }
+
+    /**
+     * @return The vector with the given index.
+     */
+    public Vector get(int index) {
+        return vecs[index];
+    }
+
+    /**
+     * Appends vectors to the forest. They get the indices following those
+     * already in the forest, in order.
+     */
+    public void addAll(List<Vector> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (size + batch.size() > vecs.length) {
+            vecs = Arrays.copyOf(vecs, Math.max(size + batch.size(), 2 * vecs.length));
+        }
+        int start = size;
+        for (Vector v : batch) {
+            vecs[size++] = v;
+        }
+        while (!trees.isEmpty() && trees.get(trees.size() - 1).size() <= size - start) {
+            trees.remove(trees.size() - 1);
+            start = starts.remove(starts.size() - 1);
+        }
+        trees.add(MetricTree.of(Arrays.asList(vecs).subList(start, size), df));
+        starts.add(start);
+    }
+
+    /**
+     * Reports every vector within distance {@code radius} of {@code q}.
+     * 
+     * @return The number of vectors reported.
+     */
+    public int range(Vector q, double radius, final MetricTree.Visitor visitor) {
+        int found = 0;
+        for (int t = 0; t < trees.size(); t++) {
+            final int offset = starts.get(t);
+            found += trees.get(t).range(q, radius, new MetricTree.Visitor() {
+
+                @Override
+                public void visit(int index, double distance) {
+                    visitor.visit(offset + index, distance);
+                }
+            });
+        }
+        return found;
+    }
+
+    /**
+     * @return The index of the vector closest to {@code q}, or -1 if the
+     *         forest is empty.
+     */
+    public int nearest(Vector q) {
+        int best = -1;
+        double min = Double.POSITIVE_INFINITY;
+        for (int t = 0; t < trees.size(); t++) {
+            int i = trees.get(t).nearest(q);
+            int index = starts.get(t) + i;
+            double d = df.distance(q, vecs[index]);
+            if (d < min) {
+                min = d;
+                best = index;
+            }
+        }
+        return best;
+    }
+
+}
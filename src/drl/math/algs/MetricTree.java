@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.math.algs;
+
+import java.util.List;
+
+import drl.math.geom.Vector;
+import drl.math.tfs.DistanceFunction;
+
+/**
+ * A vantage-point tree over a fixed list of Vectors. Unlike a k-d tree, the
+ * pruning only relies on the triangle inequality, so the tree works with any
+ * {@code DistanceFunction} that is a true metric (including the relaxed
+ * metrics built by DKBRL). Results are reported by the index of the vector in
+ * the list the tree was built from.
+ * 
+ * @author Dawit
+ * 
+ */
+public class MetricTree {
+
+    /**
+     * Receives the results of a range query.
+     */
+    public interface Visitor {
+
+        /**
+         * @param index
+         *            The index of a vector inside the query ball.
+         * @param distance
+         *            The distance from the query to that vector.
+         */
+        public void visit(int index, double distance);
+    }
+
+    private static final int LEAF_SIZE = 8;
+
+    private final DistanceFunction df;
+    private final Vector[] points;
+    private final int[] ids;
+    // For the node whose vantage point sits at position i, mu[i] is the
+    // splitting radius and split[i] is the first position of the outer child.
+    private final double[] mu;
+    private final int[] split;
+
+    private MetricTree(DistanceFunction df, Vector[] points, int[] ids) {
+        this.df = df;
+        this.points = points;
+        this.ids = ids;
+        this.mu = new double[points.length];
+        this.split = new int[points.length];
+        build(0, points.length, new double[points.length]);
+    }
+
+    /**
+     * Builds a tree over {@code vecs}.
+     * 
+     * @param vecs
+     *            The vectors to index. The list is not modified.
+     * @param df
+     *            The metric. It must satisfy the triangle inequality for range
+     *            queries to be exact.
+     * @return
+     */
+    public static MetricTree of(List<Vector> vecs, DistanceFunction df) {
+        Vector[] points = vecs.toArray(new Vector[vecs.size()]);
+        int[] ids = new int[points.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        return new MetricTree(df, points, ids);
+    }
+
+    /**
+     * @return The number of vectors in the tree.
+     */
+    public int size() {
+        return points.length;
+    }
+
+    /**
+     * @return The metric used by this tree.
+     */
+    public DistanceFunction getDistanceFunction() {
+        return df;
+    }
+
+    /**
+     * Reports every vector within distance {@code radius} of {@code q}.
+     * 
+     * @return The number of vectors reported.
+     */
+    public int range(Vector q, double radius, Visitor visitor) {
+        return range(0, points.length, q, radius, visitor);
+    }
+
+    /**
+     * @return The index of the vector closest to {@code q}, or -1 if the tree
+     *         is empty.
+     */
+    public int nearest(Vector q) {
+        double[] best = { Double.POSITIVE_INFINITY, -1 };
+        nearest(0, points.length, q, best);
+        return (int) best[1];
+    }
+
+    private void build(int lo, int hi, double[] dists) {
+        if (hi - lo <= LEAF_SIZE) {
+            if (lo < hi) {
+                split[lo] = -1;
+            }
+            return;
+        }
+        int v = lo + (hi - lo) / 2;
+        swap(lo, v);
+        for (int i = lo + 1; i < hi; i++) {
+            dists[i] = df.distance(points[lo], points[i]);
+        }
+        int mid = (lo + 1 + hi) / 2;
+        select(dists, lo + 1, hi - 1, mid);
+        mu[lo] = dists[mid];
+        split[lo] = mid;
+        build(lo + 1, mid, dists);
+        build(mid, hi, dists);
+    }
+
+    private int range(int lo, int hi, Vector q, double r, Visitor visitor) {
+        if (lo >= hi) {
+            return 0;
+        }
+        int found = 0;
+        if (split[lo] < 0) {
+            for (int i = lo; i < hi; i++) {
+                double d = df.distance(q, points[i]);
+                if (d <= r) {
+                    visitor.visit(ids[i], d);
+                    found++;
+                }
+            }
+            return found;
+        }
+        double d = df.distance(q, points[lo]);
+        if (d <= r) {
+            visitor.visit(ids[lo], d);
+            found++;
+        }
+        if (d - r <= mu[lo]) {
+            found += range(lo + 1, split[lo], q, r, visitor);
+        }
+        if (d + r >= mu[lo]) {
+            found += range(split[lo], hi, q, r, visitor);
+        }
+        return found;
+    }
+
+    private void nearest(int lo, int hi, Vector q, double[] best) {
+        if (lo >= hi) {
+            return;
+        }
+        if (split[lo] < 0) {
+            for (int i = lo; i < hi; i++) {
+                double d = df.distance(q, points[i]);
+                if (d < best[0]) {
+                    best[0] = d;
+                    best[1] = ids[i];
+                }
+            }
+            return;
+        }
+        double d = df.distance(q, points[lo]);
+        if (d < best[0]) {
+            best[0] = d;
+            best[1] = ids[lo];
+        }
+        if (d <= mu[lo]) {
+            nearest(lo + 1, split[lo], q, best);
+            if (d + best[0] >= mu[lo]) {
+                nearest(split[lo], hi, q, best);
+            }
+        } else {
+            nearest(split[lo], hi, q, best);
+            if (d - best[0] <= mu[lo]) {
+                nearest(lo + 1, split[lo], q, best);
+            }
+        }
+    }
+
+    /**
+     * Quickselect on positions [lo, hi] so that position k holds the k-th
+     * smallest distance, smaller distances precede it and larger ones follow.
+     */
+    private void select(double[] dists, int lo, int hi, int k) {
+        while (hi > lo) {
+            double pivot = dists[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (dists[i] < pivot) {
+                    i++;
+                }
+                while (dists[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(dists, i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(double[] dists, int i, int j) {
+        double d = dists[i];
+        dists[i] = dists[j];
+        dists[j] = d;
+        swap(i, j);
+    }
+
+    private void swap(int i, int j) {
+        Vector v = points[i];
+        points[i] = points[j];
+        points[j] = v;
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+
+}
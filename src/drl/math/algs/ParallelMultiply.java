@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.math.algs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * A static utility class for multiplying dense matrices on several threads.
+ * The rows of the product are split into bands that are computed in parallel,
+ * and each band is computed in cache sized blocks of the inner dimension and
+ * of the columns, so one product keeps every thread busy regardless of how
+ * many products there are.
+ * 
+ * @author Dawit
+ * 
+ */
+public class ParallelMultiply {
+
+    private static final int INNER_BLOCK = 128;
+    private static final int COL_BLOCK = 512;
+
+    private ParallelMultiply() {
+    }
+
+    /**
+     * Computes {@code a * b}.
+     * 
+     * @param exec
+     *            The executor that runs the row bands. This method blocks until
+     *            they finish, so it must not be called from a task of a
+     *            bounded {@code exec}.
+     * @param threads
+     *            The number of threads to spread the work over. With 1 the
+     *            product is computed on the calling thread.
+     */
+    public static SimpleMatrix multiply(SimpleMatrix a, SimpleMatrix b, ExecutorService exec,
+            int threads) {
+        if (a.numCols() != b.numRows()) {
+            throw new IllegalArgumentException("Cannot multiply " + a.numRows() + "x"
+                    + a.numCols() + " by " + b.numRows() + "x" + b.numCols());
+        }
+        int rows = a.numRows();
+        double[] c = new double[rows * b.numCols()];
+        double[] aData = a.getMatrix().getData();
+        double[] bData = b.getMatrix().getData();
+        int bands = Math.max(1, Math.min(rows, 4 * threads));
+        List<Band> tasks = new ArrayList<Band>(bands);
+        for (int t = 0; t < bands; t++) {
+            tasks.add(new Band(aData,
+                    bData,
+                    c,
+                    a.numCols(),
+                    b.numCols(),
+                    t * rows / bands,
+                    (t + 1) * rows / bands));
+        }
+        if (threads <= 1 || bands == 1) {
+            for (Band band : tasks) {
+                band.call();
+            }
+        } else {
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>(bands);
+                for (Band band : tasks) {
+                    futures.add(exec.submit(band));
+                }
+                for (Future<Void> f : futures) {
+                    f.get();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException(e);
+            }
+        }
+        return SimpleMatrix.wrap(DenseMatrix64F.wrap(rows, b.numCols(), c));
+    }
+
+    private static class Band implements Callable<Void> {
+        private final double[] a;
+        private final double[] b;
+        private final double[] c;
+        private final int inner;
+        private final int cols;
+        private final int start;
+        private final int end;
+
+        public Band(double[] a, double[] b, double[] c, int inner, int cols, int start, int end) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.inner = inner;
+            this.cols = cols;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Void call() {
+            if (cols == 1) {
+                for (int i = start; i < end; i++) {
+                    double sum = 0;
+                    int row = i * inner;
+                    for (int k = 0; k < inner; k++) {
+                        sum += a[row + k] * b[k];
+                    }
+                    c[i] = sum;
+                }
+                return null;
+            }
+            for (int j0 = 0; j0 < cols; j0 += COL_BLOCK) {
+                int j1 = Math.min(cols, j0 + COL_BLOCK);
+                for (int k0 = 0; k0 < inner; k0 += INNER_BLOCK) {
+                    int k1 = Math.min(inner, k0 + INNER_BLOCK);
+                    for (int i = start; i < end; i++) {
+                        int aRow = i * inner;
+                        int cRow = i * cols;
+                        for (int k = k0; k < k1; k++) {
+                            double aik = a[aRow + k];
+                            if (aik == 0) {
+                                continue;
+                            }
+                            int bRow = k * cols;
+                            for (int j = j0; j < j1; j++) {
+                                c[cRow + j] += aik * b[bRow + j];
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.math.algs;
+
+import java.util.Arrays;
+
+/**
+ * An immutable sparse matrix in compressed sparse row (CSR) format. Instances
+ * are created through a {@link Builder}, one row at a time.
+ * 
+ * @author Dawit
+ * 
+ */
+public class SparseMatrix {
+
+    private final int rows;
+    private final int cols;
+    private final int[] rowStart;
+    private final int[] columns;
+    private final double[] values;
+
+    private SparseMatrix(int rows, int cols, int[] rowStart, int[] columns, double[] values) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    public int getNumRows() {
+        return rows;
+    }
+
+    public int getNumCols() {
+        return cols;
+    }
+
+    /**
+     * @return The number of stored entries.
+     */
+    public int getNumNonZeros() {
+        return rowStart[rows];
+    }
+
+    /**
+     * @return The index into {@link #getColumns()} and {@link #getValues()} of
+     *         the first entry of {@code row}. The entries of the row end at
+     *         {@code getRowStart(row + 1)}.
+     */
+    public int getRowStart(int row) {
+        return rowStart[row];
+    }
+
+    /**
+     * @return The column indices of all stored entries. Do not modify the
+     *         returned array.
+     */
+    public int[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return All stored entries, in row order. Do not modify the returned
+     *         array.
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return The dot product of row {@code row} with {@code x}.
+     */
+    public double multiplyRow(int row, double[] x) {
+        double sum = 0;
+        for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+            sum += values[k] * x[columns[k]];
+        }
+        return sum;
+    }
+
+    /**
+     * Computes {@code y = this * x}.
+     */
+    public void multiply(double[] x, double[] y) {
+        for (int i = 0; i < rows; i++) {
+            y[i] = multiplyRow(i, x);
+        }
+    }
+
+    /**
+     * @return An estimate of the memory used by this matrix, in bytes.
+     */
+    public long getMemoryUsage() {
+        return 4L * rowStart.length + 12L * columns.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SparseMatrix<%dx%d, %d entries>", rows, cols, getNumNonZeros());
+    }
+
+    /**
+     * Assembles a SparseMatrix row by row.
+     */
+    public static class Builder {
+        private final int cols;
+        private int rows = 0;
+        private int[] rowStart;
+        private int[] columns;
+        private double[] values;
+
+        /**
+         * @param cols
+         *            The number of columns of the matrix.
+         * @param expectedRows
+         *            A hint for the number of rows.
+         * @param expectedEntries
+         *            A hint for the total number of stored entries.
+         */
+        public Builder(int cols, int expectedRows, int expectedEntries) {
+            this.cols = cols;
+            this.rowStart = new int[Math.max(expectedRows, 1) + 1];
+            this.columns = new int[Math.max(expectedEntries, 1)];
+            this.values = new double[columns.length];
+        }
+
+        /**
+         * Appends a row holding the first {@code n} entries of the given
+         * arrays.
+         * 
+         * @return {@code this}
+         */
+        public Builder addRow(int[] cols, double[] vals, int n) {
+            return addRow(cols, vals, 0, n);
+        }
+
+        /**
+         * Appends a row holding the {@code n} entries of the given arrays
+         * that start at {@code offset}.
+         * 
+         * @return {@code this}
+         */
+        public Builder addRow(int[] cols, double[] vals, int offset, int n) {
+            int end = rowStart[rows];
+            if (end + n > columns.length) {
+                int size = Math.max(end + n, 2 * columns.length);
+                columns = Arrays.copyOf(columns, size);
+                values = Arrays.copyOf(values, size);
+            }
+            System.arraycopy(cols, offset, columns, end, n);
+            System.arraycopy(vals, offset, values, end, n);
+            if (rows + 2 > rowStart.length) {
+                rowStart = Arrays.copyOf(rowStart, 2 * rowStart.length);
+            }
+            rowStart[++rows] = end + n;
+            return this;
+        }
+
+        /**
+         * @return The number of rows added so far.
+         */
+        public int getNumRows() {
+            return rows;
+        }
+
+        public SparseMatrix build() {
+            int nnz = rowStart[rows];
+            return new SparseMatrix(rows,
+                    cols,
+                    Arrays.copyOf(rowStart, rows + 1),
+                    Arrays.copyOf(columns, nnz),
+                    Arrays.copyOf(values, nnz));
+        }
+    }
+
+}
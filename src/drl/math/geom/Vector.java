@@ -30,6 +30,8 @@ public class Vector {
 
     private final double[] points;
     private final int dimensions;
+    // Lazily computed; 0 means not yet computed.
+    private int hash;
 
     private Vector(double[] points) {
         this.points = points;
@@ -78,9 +80,13 @@ public class Vector {
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + Arrays.hashCode(points);
+        int result = hash;
+        if (result == 0) {
+            final int prime = 31;
+            result = 1;
+            result = prime * result + Arrays.hashCode(points);
+            hash = result;
+        }
         return result;
     }
 
@@ -93,6 +99,8 @@ public class Vector {
         if (getClass() != obj.getClass())
             return false;
         Vector other = (Vector) obj;
+        if (hash != 0 && other.hash != 0 && hash != other.hash)
+            return false;
         if (!Arrays.equals(points, other.points))
             return false;
         return true;
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.math.tfs;
+
+/**
+ * A transform that shifts and scales each coordinate on its own, mapping
+ * {@code x} to {@code ((x_0 - o_0) * s_0, ..., (x_n - o_n) * s_n)}.
+ * {@link TransformDF} measures distances through such a transform as a
+ * weighted Euclidean distance, without creating the transformed vectors.
+ * 
+ * @author Dawit
+ * 
+ */
+public interface DiagonalTransform extends Transform {
+
+    /**
+     * @return The offsets {@code o_i}. Do not modify the returned array.
+     */
+    public double[] getOffsets();
+
+    /**
+     * @return The scales {@code s_i}. Do not modify the returned array.
+     */
+    public double[] getScales();
+
+}
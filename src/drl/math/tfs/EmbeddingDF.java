@@ -0,0 +1,281 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.math.tfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import drl.math.geom.Vector;
+
+/**
+ * A chain of {@link ValueSmoothingDF} metrics over a Euclidean base, flattened
+ * into one Euclidean metric. Each relaxation with weight {@code c1} and rate
+ * {@code alpha} maps an embedding {@code e(x)} of the old metric to
+ * {@code (e(x), sqrt(c1) * v(x)) / sqrt(1 + alpha^2)}, so after {@code k}
+ * rounds of DKBRL a vector is embedded as its base coordinates followed by
+ * one weighted value per round. The embedding of every registered vector is
+ * computed once and stored in a flat array, and a distance is a single loop
+ * over it instead of {@code k} nested calls.
+ * <p>
+ * The base is either {@link EuclideanDF} or a {@link TransformDF}, whose
+ * transform is applied before embedding. Each thread remembers the embedding
+ * of the last vector it measured from, so summing a kernel over registered
+ * samples embeds the query only once.
+ * 
+ * @author Dawit
+ * 
+ */
+public final class EmbeddingDF implements IndexedDistanceFunction {
+
+    private final Transform base;
+    private final double baseScale;
+    private final ValueSmoothingDF[] levels;
+    private final double[] weights;
+    private final VectorIndex index;
+    private volatile double[] coords = new double[0];
+    private int dimensions = -1;
+    private final ThreadLocal<Query> queries = new ThreadLocal<Query>() {
+
+        @Override
+        protected Query initialValue() {
+            return new Query();
+        }
+    };
+
+    private EmbeddingDF(Transform base, List<ValueSmoothingDF> levels, int expectedSize) {
+        this.base = base;
+        this.levels = levels.toArray(new ValueSmoothingDF[levels.size()]);
+        this.weights = new double[levels.size()];
+        // Later relaxations scale every coordinate that came before them.
+        double scale = 1;
+        for (int k = this.levels.length - 1; k >= 0; k--) {
+            scale *= this.levels[k].getScale();
+            weights[k] = Math.sqrt(this.levels[k].getValueWeight()) * scale;
+        }
+        this.baseScale = scale;
+        this.index = new VectorIndex(expectedSize);
+    }
+
+    /**
+     * @return Whether {@code df} is a chain of {@code ValueSmoothingDF}
+     *         metrics that {@link #of} can flatten.
+     */
+    public static boolean canFlatten(DistanceFunction df) {
+        while (df instanceof ValueSmoothingDF) {
+            df = ((ValueSmoothingDF) df).getOldMetric();
+        }
+        return df == EuclideanDF.instance || df instanceof TransformDF
+                || df instanceof EmbeddingDF;
+    }
+
+    /**
+     * @return The flattened form of {@code df} if it has one, and otherwise
+     *         {@code df} itself.
+     */
+    public static DistanceFunction flatten(DistanceFunction df) {
+        if (!(df instanceof ValueSmoothingDF) || !canFlatten(df)) {
+            return df;
+        }
+        return of(df);
+    }
+
+    /**
+     * Flattens {@code df} and registers, in order, every vector registered
+     * with it, so that they keep their ids.
+     * 
+     * @throws IllegalArgumentException
+     *             If {@link #canFlatten} is false for {@code df}.
+     */
+    public static EmbeddingDF of(DistanceFunction df) {
+        if (!canFlatten(df)) {
+            throw new IllegalArgumentException("Not a relaxation of a Euclidean metric: " + df);
+        }
+        List<ValueSmoothingDF> levels = new ArrayList<ValueSmoothingDF>();
+        DistanceFunction inner = df;
+        while (inner instanceof ValueSmoothingDF) {
+            levels.add((ValueSmoothingDF) inner);
+            inner = ((ValueSmoothingDF) inner).getOldMetric();
+        }
+        Collections.reverse(levels);
+        Transform base = null;
+        if (inner instanceof TransformDF) {
+            base = ((TransformDF) inner).getTransform();
+        } else if (inner instanceof EmbeddingDF) {
+            EmbeddingDF embedding = (EmbeddingDF) inner;
+            base = embedding.base;
+            levels.addAll(0, Arrays.asList(embedding.levels));
+        }
+        int size = df instanceof IndexedDistanceFunction ? ((IndexedDistanceFunction) df).size()
+                : 0;
+        EmbeddingDF ret = new EmbeddingDF(base, levels, size);
+        for (int id = 0; id < size; id++) {
+            ret.register(((IndexedDistanceFunction) df).getVector(id));
+        }
+        return ret;
+    }
+
+    /**
+     * @return The number of coordinates of the embedding, or -1 if no vector
+     *         has been registered yet.
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return The number of relaxations flattened into this metric.
+     */
+    public int getDepth() {
+        return levels.length;
+    }
+
+    /**
+     * @return The last relaxation flattened into this metric. Its old metric
+     *         is the metric of the previous round.
+     */
+    public ValueSmoothingDF getLastRelaxation() {
+        return levels[levels.length - 1];
+    }
+
+    private double[] embed(Vector v) {
+        Vector b = base == null ? v : base.transform(v);
+        int n = b.getDimensions();
+        double[] e = new double[n + levels.length];
+        for (int d = 0; d < n; d++) {
+            e[d] = baseScale * b.get(d);
+        }
+        for (int k = 0; k < levels.length; k++) {
+            e[n + k] = weights[k] * levels[k].getValue(v);
+        }
+        return e;
+    }
+
+    /**
+     * @return The embedding of {@code v}, which is not registered, cached for
+     *         the calling thread. It is not to be modified.
+     */
+    private double[] query(Vector v) {
+        Query q = queries.get();
+        if (q.vector != v) {
+            q.coords = embed(v);
+            q.vector = v;
+        }
+        return q.coords;
+    }
+
+    @Override
+    public synchronized int register(Vector v) {
+        int id = index.indexOf(v);
+        if (id >= 0) {
+            return id;
+        }
+        double[] e = embed(v);
+        if (dimensions < 0) {
+            dimensions = e.length;
+        }
+        int start = index.size() * dimensions;
+        double[] c = coords;
+        if (start + dimensions > c.length) {
+            c = Arrays.copyOf(c, VectorIndex.grownLength(c.length, start + dimensions));
+        }
+        System.arraycopy(e, 0, c, start, dimensions);
+        coords = c;
+        return index.add(v);
+    }
+
+    @Override
+    public int indexOf(Vector v) {
+        return index.indexOf(v);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Vector getVector(int id) {
+        return index.get(id);
+    }
+
+    @Override
+    public double distance(int id1, int id2) {
+        double[] c = coords;
+        int i = id1 * dimensions;
+        int j = id2 * dimensions;
+        double dist = 0;
+        for (int d = 0; d < dimensions; d++) {
+            double diff = c[i + d] - c[j + d];
+            dist += diff * diff;
+        }
+        return Math.sqrt(dist);
+    }
+
+    @Override
+    public double distance(Vector v, int id) {
+        int vid = index.indexOf(v);
+        if (vid >= 0) {
+            return distance(vid, id);
+        }
+        double[] e = query(v);
+        double[] c = coords;
+        int j = id * e.length;
+        double dist = 0;
+        for (int d = 0; d < e.length; d++) {
+            double diff = e[d] - c[j + d];
+            dist += diff * diff;
+        }
+        return Math.sqrt(dist);
+    }
+
+    @Override
+    public double distance(Vector v1, Vector v2) {
+        int id1 = index.indexOf(v1);
+        int id2 = index.indexOf(v2);
+        if (id2 >= 0) {
+            return id1 >= 0 ? distance(id1, id2) : distance(v1, id2);
+        } else if (id1 >= 0) {
+            return distance(v2, id1);
+        }
+        double[] e1 = query(v1);
+        double[] e2 = embed(v2);
+        double dist = 0;
+        for (int d = 0; d < e1.length; d++) {
+            double diff = e1[d] - e2[d];
+            dist += diff * diff;
+        }
+        return Math.sqrt(dist);
+    }
+
+    @Override
+    public void memoize(Vector v) {
+        register(v);
+    }
+
+    /**
+     * The last vector a thread measured from and its embedding.
+     */
+    private static final class Query {
+        private Vector vector;
+        private double[] coords;
+    }
+
+}
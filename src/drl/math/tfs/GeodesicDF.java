@@ -0,0 +1,541 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.math.tfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import drl.math.MathUtils;
+import drl.math.algs.GraphBuilder;
+import drl.math.algs.MetricTree;
+import drl.math.algs.SparseMatrix;
+import drl.math.geom.Vector;
+
+/**
+ * The shortest path distance in the graph that connects every pair of sample
+ * vectors within {@code epsilon} of each other. It replaces {@link GraphDF},
+ * which needs the all-pairs distance matrix, with O(n k) memory for n samples
+ * and k landmarks.
+ * <p>
+ * The graph is stored as a {@link SparseMatrix} built by
+ * {@link GraphBuilder#buildSparseGraph}. The exact distances from k landmarks,
+ * chosen by farthest point sampling, give lower bounds on every distance by
+ * the triangle inequality, and guide A* searches for single queries. Each
+ * thread also keeps one resumable Dijkstra search, so computing the distances
+ * from one vector to many others, as when a kernel matrix is built one row at
+ * a time, costs about one single-source search.
+ * Distances whose lower bound exceeds the cutoff (see {@link #setCutoff}) are
+ * not searched for. A vector that is not a sample is connected to the samples
+ * within {@code epsilon} of it, or to the closest sample if there are none.
+ * 
+ * @author Dawit
+ * 
+ */
+public final class GeodesicDF implements IndexedDistanceFunction {
+
+    private static final double[] ZERO = { 0 };
+
+    private final int nodes;
+    private final int[] rowStart;
+    private final int[] columns;
+    private final double[] lengths;
+    private final double epsilon;
+    private final int[] landmarks;
+    private final double[][] marks;
+    private final MetricTree tree;
+    private final VectorIndex index;
+    private volatile Endpoint[] endpoints;
+    private volatile double cutoff = Double.POSITIVE_INFINITY;
+    private final AtomicLong queryKeys = new AtomicLong();
+    private final ThreadLocal<Search> searches = new ThreadLocal<Search>() {
+
+        @Override
+        protected Search initialValue() {
+            return new Search();
+        }
+    };
+    private final ThreadLocal<Endpoint[]> queries = new ThreadLocal<Endpoint[]>() {
+
+        @Override
+        protected Endpoint[] initialValue() {
+            return new Endpoint[2];
+        }
+    };
+
+    private GeodesicDF(List<Vector> vecs, SparseMatrix graph, double epsilon, int numLandmarks) {
+        this.nodes = vecs.size();
+        this.rowStart = new int[nodes + 1];
+        for (int i = 0; i <= nodes; i++) {
+            rowStart[i] = graph.getRowStart(i);
+        }
+        this.columns = graph.getColumns();
+        this.lengths = graph.getValues();
+        this.epsilon = epsilon;
+        this.tree = MetricTree.of(vecs, EuclideanDF.instance);
+        this.index = new VectorIndex(nodes);
+        this.landmarks = new int[Math.min(numLandmarks, nodes)];
+
+        this.marks = new double[nodes][landmarks.length];
+        double[] spread = new double[nodes];
+        Arrays.fill(spread, Double.POSITIVE_INFINITY);
+        Search search = new Search();
+        // The first landmark is the sample farthest from the first sample.
+        int next = nodes == 0 ? -1 : search.farthest(0, null);
+        for (int l = 0; l < landmarks.length; l++) {
+            landmarks[l] = next;
+            next = search.farthest(next, spread);
+            for (int i = 0; i < nodes; i++) {
+                marks[i][l] = search.dist[i];
+            }
+        }
+        Endpoint[] eps = new Endpoint[Math.max(16, nodes)];
+        for (int i = 0; i < nodes; i++) {
+            double[] m = marks[i];
+            eps[i] = new Endpoint(vecs.get(i), i, new int[] { i }, ZERO, m, m, m);
+            index.add(vecs.get(i));
+        }
+        this.endpoints = eps;
+    }
+
+    /**
+     * @param vecs
+     *            The samples. Duplicates are ignored.
+     * @param epsilon
+     *            The longest edge of the graph, apart from the ones that
+     *            connect its components.
+     * @param numLandmarks
+     *            The number of landmarks to compute bounds from.
+     * @return
+     */
+    public static GeodesicDF of(List<Vector> vecs, double epsilon, int numLandmarks) {
+        List<Vector> distinct = new ArrayList<Vector>(new LinkedHashSet<Vector>(vecs));
+        SparseMatrix graph = GraphBuilder.buildSparseGraph(distinct, epsilon);
+        return new GeodesicDF(distinct, graph, epsilon, numLandmarks);
+    }
+
+    /**
+     * Distances whose lower bound exceeds {@code cutoff} are not computed
+     * exactly. A lower bound that is at least {@code cutoff} is returned
+     * instead. Set it to the distance beyond which kernel weights vanish.
+     * 
+     * @return {@code this}
+     */
+    public GeodesicDF setCutoff(double cutoff) {
+        this.cutoff = cutoff;
+        return this;
+    }
+
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    /**
+     * @return The number of samples in the graph. They have ids
+     *         {@code 0, ..., getNumNodes() - 1}.
+     */
+    public int getNumNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return The ids of the landmarks.
+     */
+    public int[] getLandmarks() {
+        return landmarks.clone();
+    }
+
+    @Override
+    public double distance(Vector v1, Vector v2) {
+        return distance(endpoint(v1, 0), endpoint(v2, 1));
+    }
+
+    @Override
+    public double distance(int id1, int id2) {
+        return distance(endpoints[id1], endpoints[id2]);
+    }
+
+    @Override
+    public double distance(Vector v, int id) {
+        return distance(endpoint(v, 0), endpoints[id]);
+    }
+
+    @Override
+    public synchronized int register(Vector v) {
+        int id = index.indexOf(v);
+        if (id >= 0) {
+            return id;
+        }
+        id = index.size();
+        Endpoint[] eps = endpoints;
+        if (id == eps.length) {
+            eps = Arrays.copyOf(eps, 2 * id);
+        }
+        eps[id] = attach(v, id);
+        endpoints = eps;
+        return index.add(v);
+    }
+
+    @Override
+    public int indexOf(Vector v) {
+        return index.indexOf(v);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Vector getVector(int id) {
+        return index.get(id);
+    }
+
+    @Override
+    public void memoize(Vector v) {
+        register(v);
+    }
+
+    /**
+     * @return The endpoint of a registered vector, or else the one cached in
+     *         the given slot for the calling thread.
+     */
+    private Endpoint endpoint(Vector v, int slot) {
+        int id = index.indexOf(v);
+        if (id >= 0) {
+            return endpoints[id];
+        }
+        Endpoint[] cached = queries.get();
+        if (cached[slot] == null || !cached[slot].v.equals(v)) {
+            cached[slot] = attach(v, queryKeys.decrementAndGet());
+        }
+        return cached[slot];
+    }
+
+    /**
+     * Connects a vector that is not a sample to the graph.
+     */
+    private Endpoint attach(Vector v, long key) {
+        final List<Integer> nbrs = new ArrayList<Integer>();
+        final List<Double> offsets = new ArrayList<Double>();
+        tree.range(v, epsilon, new MetricTree.Visitor() {
+
+            @Override
+            public void visit(int j, double distance) {
+                nbrs.add(j);
+                offsets.add(distance);
+            }
+        });
+        if (nbrs.isEmpty() && nodes > 0) {
+            int nearest = tree.nearest(v);
+            nbrs.add(nearest);
+            offsets.add(EuclideanDF.instance.distance(v, endpoints[nearest].v));
+        }
+        int[] ns = new int[nbrs.size()];
+        double[] os = new double[ns.length];
+        double[] marks = new double[landmarks.length];
+        double[] low = new double[landmarks.length];
+        double[] high = new double[landmarks.length];
+        Arrays.fill(marks, Double.POSITIVE_INFINITY);
+        Arrays.fill(low, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < ns.length; i++) {
+            ns[i] = nbrs.get(i);
+            os[i] = offsets.get(i);
+            double[] nodeMarks = this.marks[ns[i]];
+            for (int l = 0; l < marks.length; l++) {
+                marks[l] = Math.min(marks[l], os[i] + nodeMarks[l]);
+                low[l] = Math.min(low[l], nodeMarks[l]);
+                high[l] = Math.max(high[l], nodeMarks[l]);
+            }
+        }
+        return new Endpoint(v, key, ns, os, marks, low, high);
+    }
+
+    private double distance(Endpoint a, Endpoint b) {
+        if (a.key == b.key) {
+            return 0;
+        }
+        double direct = Math.sqrt(MathUtils.squaredDistance(a.v, b.v));
+        if (direct <= epsilon) {
+            return direct;
+        }
+        // A path between the endpoints leaves a through a vertex p and
+        // enters b through a vertex q, and d(p, q) >= |d(p, l) - d(q, l)|.
+        double gap = 0;
+        double upper = Double.POSITIVE_INFINITY;
+        for (int l = 0; l < landmarks.length; l++) {
+            gap = Math.max(gap, Math.max(a.low[l] - b.high[l], b.low[l] - a.high[l]));
+            upper = Math.min(upper, a.marks[l] + b.marks[l]);
+        }
+        double lower = Math.max(direct, a.minOffset + gap + b.minOffset);
+        double cut = cutoff;
+        if (lower > cut || lower >= upper) {
+            return lower;
+        }
+        Search search = searches.get();
+        if (search.source == b.key || (search.source != a.key && search.guided == b.key)) {
+            Endpoint swap = a;
+            a = b;
+            b = swap;
+        }
+        if (search.source != a.key) {
+            // A single query from a new source is answered by an A* search.
+            // Only a second one starts a search that later queries resume.
+            if (search.guided != a.key) {
+                return search.guide(a, b, lower, cut);
+            }
+            search.start(a);
+        }
+        return search.resume(b, lower, cut);
+    }
+
+    /**
+     * A vertex of the graph, or a vector connected to some of them.
+     */
+    private static final class Endpoint {
+        final Vector v;
+        final long key;
+        final int[] nodes;
+        final double[] offsets;
+        final double minOffset;
+        // The distances to the landmarks through the closest vertex, and the
+        // least and greatest distances from the vertices to the landmarks.
+        final double[] marks;
+        final double[] low;
+        final double[] high;
+
+        Endpoint(Vector v, long key, int[] nodes, double[] offsets, double[] marks, double[] low,
+                double[] high) {
+            this.v = v;
+            this.key = key;
+            this.nodes = nodes;
+            this.offsets = offsets;
+            this.marks = marks;
+            this.low = low;
+            this.high = high;
+            double min = Double.POSITIVE_INFINITY;
+            for (double o : offsets) {
+                min = Math.min(min, o);
+            }
+            this.minOffset = min;
+        }
+    }
+
+    /**
+     * A Dijkstra search that can be resumed to settle more vertices. Only the
+     * vertices it touched are reset when it restarts from a new source.
+     */
+    private final class Search {
+        private static final int UNSEEN = -1;
+        private static final int SETTLED = -2;
+
+        final double[] dist = new double[nodes];
+        // The heap keys: the distances, plus the heuristic in an A* search.
+        private final double[] keys = new double[nodes];
+        private final int[] pos = new int[nodes];
+        private final int[] heap = new int[nodes];
+        private final int[] touched = new int[nodes];
+        private int heapSize = 0;
+        private int numTouched = 0;
+        long source = Long.MAX_VALUE;
+        long guided = Long.MAX_VALUE;
+        private Endpoint target = null;
+
+        Search() {
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(pos, UNSEEN);
+        }
+
+        void start(Endpoint a) {
+            reset(a, null);
+            source = a.key;
+        }
+
+        /**
+         * Runs an A* search from {@code a} to {@code b}, guided by the landmark
+         * lower bounds. It cannot be resumed.
+         */
+        double guide(Endpoint a, Endpoint b, double lower, double cutoff) {
+            reset(a, b);
+            guided = a.key;
+            while (true) {
+                double best = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < b.nodes.length; i++) {
+                    best = Math.min(best, dist[b.nodes[i]] + b.offsets[i]);
+                }
+                if (heapSize == 0) {
+                    return best;
+                }
+                double top = keys[heap[0]];
+                if (top >= best) {
+                    return best;
+                }
+                if (top > cutoff) {
+                    return Math.max(lower, top);
+                }
+                settle();
+            }
+        }
+
+        private void reset(Endpoint a, Endpoint target) {
+            for (int i = 0; i < numTouched; i++) {
+                dist[touched[i]] = Double.POSITIVE_INFINITY;
+                pos[touched[i]] = UNSEEN;
+            }
+            numTouched = 0;
+            heapSize = 0;
+            source = Long.MAX_VALUE;
+            guided = Long.MAX_VALUE;
+            this.target = target;
+            for (int i = 0; i < a.nodes.length; i++) {
+                reach(a.nodes[i], a.offsets[i]);
+            }
+        }
+
+        /**
+         * @return A lower bound on the distance from vertex {@code v} to the
+         *         target. It is consistent, so A* settles each vertex once.
+         */
+        private double heuristic(int v) {
+            double[] m = marks[v];
+            double gap = 0;
+            for (int l = 0; l < m.length; l++) {
+                gap = Math.max(gap, Math.max(m[l] - target.high[l], target.low[l] - m[l]));
+            }
+            return gap + target.minOffset;
+        }
+
+        /**
+         * Settles vertices until the distance to {@code b} is known, or until
+         * every unsettled vertex is farther than {@code cutoff}.
+         */
+        double resume(Endpoint b, double lower, double cutoff) {
+            while (true) {
+                double best = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < b.nodes.length; i++) {
+                    best = Math.min(best, dist[b.nodes[i]] + b.offsets[i]);
+                }
+                if (heapSize == 0) {
+                    return best;
+                }
+                double top = keys[heap[0]];
+                if (top + b.minOffset >= best) {
+                    return best;
+                }
+                if (top > cutoff) {
+                    return Math.max(lower, top + b.minOffset);
+                }
+                settle();
+            }
+        }
+
+        /**
+         * Runs a full search from vertex {@code s}.
+         * 
+         * @param spread
+         *            If not null, lowered to the distances from {@code s}.
+         * @return The vertex farthest from {@code s}, or from all the sources
+         *         that {@code spread} holds the distances to.
+         */
+        int farthest(int s, double[] spread) {
+            reset(new Endpoint(null, s, new int[] { s }, ZERO, null, null, null), null);
+            while (heapSize > 0) {
+                settle();
+            }
+            int far = s;
+            double max = 0;
+            for (int i = 0; i < nodes; i++) {
+                double d = dist[i];
+                if (spread != null) {
+                    d = spread[i] = Math.min(spread[i], d);
+                }
+                if (d > max) {
+                    max = d;
+                    far = i;
+                }
+            }
+            return far;
+        }
+
+        private void settle() {
+            int v = heap[0];
+            pos[v] = SETTLED;
+            heapSize--;
+            if (heapSize > 0) {
+                heap[0] = heap[heapSize];
+                pos[heap[0]] = 0;
+                siftDown(0);
+            }
+            double d = dist[v];
+            for (int k = rowStart[v]; k < rowStart[v + 1]; k++) {
+                reach(columns[k], d + lengths[k]);
+            }
+        }
+
+        private void reach(int v, double d) {
+            if (pos[v] == SETTLED || d >= dist[v]) {
+                return;
+            }
+            dist[v] = d;
+            keys[v] = target == null ? d : d + heuristic(v);
+            if (pos[v] == UNSEEN) {
+                touched[numTouched++] = v;
+                heap[heapSize] = v;
+                pos[v] = heapSize++;
+            }
+            siftUp(pos[v]);
+        }
+
+        private void siftUp(int i) {
+            int v = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[heap[parent]] <= keys[v]) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                pos[heap[i]] = i;
+                i = parent;
+            }
+            heap[i] = v;
+            pos[v] = i;
+        }
+
+        private void siftDown(int i) {
+            int v = heap[i];
+            while (2 * i + 1 < heapSize) {
+                int child = 2 * i + 1;
+                if (child + 1 < heapSize && keys[heap[child + 1]] < keys[heap[child]]) {
+                    child++;
+                }
+                if (keys[v] <= keys[heap[child]]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                pos[heap[i]] = i;
+                i = child;
+            }
+            heap[i] = v;
+            pos[v] = i;
+        }
+    }
+
+}
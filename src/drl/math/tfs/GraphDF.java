@@ -38,7 +38,8 @@ import drl.math.geom.Vector;
  * A metric that infers distances using a graph embedding of the space. This is
  * code from an early attempt to make a graph-theoretic representation discovery
  * algorithm for KBRL. This class has been deprecated and is only kept for
- * posterity.
+ * posterity. {@link GeodesicDF} computes graph distances without the all-pairs
+ * matrix.
  * 
  * @author Dawit
  * 
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.math.tfs;
+
+import java.util.Arrays;
+
+import drl.math.geom.Vector;
+
+/**
+ * Gives a metric that does not keep data about registered vectors the
+ * {@link IndexedDistanceFunction} interface. Distances by id are those of the
+ * wrapped metric between the registered vectors. The coordinates of vectors
+ * registered with the Euclidean metric are copied into one flat array, so
+ * distances between them are computed without going through {@code Vector}.
+ * 
+ * @author Dawit
+ * 
+ */
+public final class IndexedDF implements IndexedDistanceFunction {
+
+    private final DistanceFunction df;
+    private final boolean euclidean;
+    private final VectorIndex index;
+    private volatile double[] coords = new double[0];
+    private int dimensions = -1;
+
+    private IndexedDF(DistanceFunction df, int expectedSize) {
+        this.df = df;
+        this.euclidean = df == EuclideanDF.instance;
+        this.index = new VectorIndex(expectedSize);
+    }
+
+    /**
+     * @return {@code df} itself if it already is an
+     *         {@code IndexedDistanceFunction}, and otherwise a view of it with
+     *         no vectors registered.
+     */
+    public static IndexedDistanceFunction of(DistanceFunction df) {
+        return of(df, 0);
+    }
+
+    /**
+     * @param expectedSize
+     *            The number of vectors to allocate room for up front.
+     * @see #of(DistanceFunction)
+     */
+    public static IndexedDistanceFunction of(DistanceFunction df, int expectedSize) {
+        if (df instanceof IndexedDistanceFunction) {
+            return (IndexedDistanceFunction) df;
+        }
+        return new IndexedDF(df, expectedSize);
+    }
+
+    @Override
+    public synchronized int register(Vector v) {
+        int id = index.indexOf(v);
+        if (id >= 0) {
+            return id;
+        }
+        df.memoize(v);
+        if (euclidean) {
+            if (dimensions < 0) {
+                dimensions = v.getDimensions();
+            }
+            int start = index.size() * dimensions;
+            double[] c = coords;
+            if (start + dimensions > c.length) {
+                c = Arrays.copyOf(c, VectorIndex.grownLength(c.length, start + dimensions));
+            }
+            for (int d = 0; d < dimensions; d++) {
+                c[start + d] = v.get(d);
+            }
+            coords = c;
+        }
+        return index.add(v);
+    }
+
+    @Override
+    public int indexOf(Vector v) {
+        return index.indexOf(v);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Vector getVector(int id) {
+        return index.get(id);
+    }
+
+    @Override
+    public double distance(int id1, int id2) {
+        if (!euclidean) {
+            return df.distance(index.get(id1), index.get(id2));
+        }
+        double[] c = coords;
+        int i = id1 * dimensions;
+        int j = id2 * dimensions;
+        double dist = 0;
+        for (int d = 0; d < dimensions; d++) {
+            double diff = c[i + d] - c[j + d];
+            dist += diff * diff;
+        }
+        return Math.sqrt(dist);
+    }
+
+    @Override
+    public double distance(Vector v, int id) {
+        if (!euclidean) {
+            return df.distance(v, index.get(id));
+        }
+        double[] c = coords;
+        int j = id * dimensions;
+        double dist = 0;
+        for (int d = 0; d < dimensions; d++) {
+            double diff = v.get(d) - c[j + d];
+            dist += diff * diff;
+        }
+        return Math.sqrt(dist);
+    }
+
+    @Override
+    public double distance(Vector v1, Vector v2) {
+        return df.distance(v1, v2);
+    }
+
+    @Override
+    public void memoize(Vector v) {
+        df.memoize(v);
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.math.tfs;
+
+import drl.math.geom.Vector;
+
+/**
+ * A metric over a set of registered vectors that are addressed by dense int
+ * ids. Solvers that work over a fixed set of samples register them once and
+ * then evaluate distances by id, so that data kept for each sample is found in
+ * an array rather than by hashing its coordinates on every call.
+ * <p>
+ * Ids handed out by {@link #register} may be used on any thread that the id
+ * was passed to safely, for instance through an executor.
+ * 
+ * @author Dawit
+ * 
+ */
+public interface IndexedDistanceFunction extends DistanceFunction {
+
+    /**
+     * Registers {@code v} if it is not registered yet.
+     * 
+     * @return The id of {@code v}. Ids are assigned in order starting from
+     *         zero.
+     */
+    public int register(Vector v);
+
+    /**
+     * @return The id of {@code v}, or -1 if it was never registered.
+     */
+    public int indexOf(Vector v);
+
+    /**
+     * @return The number of registered vectors.
+     */
+    public int size();
+
+    /**
+     * @return The vector registered under {@code id}.
+     */
+    public Vector getVector(int id);
+
+    /**
+     * The distance between the vectors registered under {@code id1} and
+     * {@code id2}.
+     */
+    public double distance(int id1, int id2);
+
+    /**
+     * The distance between {@code v}, which need not be registered, and the
+     * vector registered under {@code id}.
+     */
+    public double distance(Vector v, int id);
+
+}
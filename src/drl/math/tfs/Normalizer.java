@@ -28,23 +28,39 @@ import drl.math.geom.Vector;
  * @author Dawit
  * 
  */
-public class Normalizer implements Transform {
+public class Normalizer implements DiagonalTransform {
 
-    private final Cell domain;
+    private final double[] offsets;
+    private final double[] scales;
 
     public Normalizer(Cell domain) {
-        this.domain = domain;
+        this.offsets = new double[domain.getDimensions()];
+        this.scales = new double[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = domain.getInterval(i).getStart();
+            scales[i] = 1 / domain.getInterval(i).getWidth();
+        }
     }
 
     @Override
     public Vector transform(Vector v) {
-        double[] d = new double[domain.getDimensions()];
+        double[] d = new double[offsets.length];
         for (int i = 0; i < d.length; i++) {
-            d[i] = (v.get(i) - domain.getInterval(i).getStart()) / domain.getInterval(i).getWidth();
+            d[i] = (v.get(i) - offsets[i]) * scales[i];
         }
         return Vector.asVector(d);
     }
 
+    @Override
+    public double[] getOffsets() {
+        return offsets;
+    }
+
+    @Override
+    public double[] getScales() {
+        return scales;
+    }
+
     public static DistanceFunction df(Cell domain) {
         return new TransformDF(new Normalizer(domain));
     }
@@ -18,30 +18,150 @@
 
 package drl.math.tfs;
 
+import java.util.Arrays;
+
 import drl.math.MathUtils;
 import drl.math.geom.Vector;
 
 /**
  * The metric that corresponds to Euclidean distance in the transformed space.
+ * <p>
+ * Memoized vectors are registered and their transformed coordinates are kept
+ * in one flat array, so distances between them transform nothing. For a
+ * {@link DiagonalTransform} such as {@link Normalizer}, distances are instead
+ * computed as Euclidean distances weighted by the squared scales, which needs
+ * neither the transformed vectors nor the offsets.
  * 
  * @author Dawit
  * 
  */
-public class TransformDF implements DistanceFunction {
+public class TransformDF implements IndexedDistanceFunction {
 
     private final Transform tf;
+    // The squared scales of a diagonal transform, or null.
+    private final double[] weights;
+    private final double[] offsets;
+    private final double[] scales;
+    private final VectorIndex index = new VectorIndex(0);
+    private volatile double[] coords = new double[0];
+    private int dimensions = -1;
 
     public TransformDF(Transform tf) {
         this.tf = tf;
+        if (tf instanceof DiagonalTransform) {
+            DiagonalTransform diagonal = (DiagonalTransform) tf;
+            this.offsets = diagonal.getOffsets().clone();
+            this.scales = diagonal.getScales().clone();
+            this.weights = new double[scales.length];
+            for (int i = 0; i < scales.length; i++) {
+                weights[i] = scales[i] * scales[i];
+            }
+        } else {
+            this.offsets = null;
+            this.scales = null;
+            this.weights = null;
+        }
+    }
+
+    Transform getTransform() {
+        return tf;
     }
 
     @Override
     public double distance(Vector v1, Vector v2) {
+        if (weights != null) {
+            double dist = 0;
+            for (int i = 0; i < weights.length; i++) {
+                double diff = v1.get(i) - v2.get(i);
+                dist += weights[i] * diff * diff;
+            }
+            return Math.sqrt(dist);
+        }
+        int id1 = index.indexOf(v1);
+        int id2 = index.indexOf(v2);
+        if (id1 >= 0 && id2 >= 0) {
+            return distance(id1, id2);
+        } else if (id2 >= 0) {
+            return distance(v1, id2);
+        } else if (id1 >= 0) {
+            return distance(v2, id1);
+        }
         return Math.sqrt(MathUtils.squaredDistance(tf.transform(v1), tf.transform(v2)));
     }
 
+    @Override
+    public synchronized int register(Vector v) {
+        int id = index.indexOf(v);
+        if (id >= 0) {
+            return id;
+        }
+        Vector t = tf.transform(v);
+        if (dimensions < 0) {
+            dimensions = t.getDimensions();
+        }
+        int start = index.size() * dimensions;
+        double[] c = coords;
+        if (start + dimensions > c.length) {
+            c = Arrays.copyOf(c, VectorIndex.grownLength(c.length, start + dimensions));
+        }
+        for (int d = 0; d < dimensions; d++) {
+            c[start + d] = t.get(d);
+        }
+        coords = c;
+        return index.add(v);
+    }
+
+    @Override
+    public int indexOf(Vector v) {
+        return index.indexOf(v);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Vector getVector(int id) {
+        return index.get(id);
+    }
+
+    @Override
+    public double distance(int id1, int id2) {
+        double[] c = coords;
+        int i = id1 * dimensions;
+        int j = id2 * dimensions;
+        double dist = 0;
+        for (int d = 0; d < dimensions; d++) {
+            double diff = c[i + d] - c[j + d];
+            dist += diff * diff;
+        }
+        return Math.sqrt(dist);
+    }
+
+    @Override
+    public double distance(Vector v, int id) {
+        double[] c = coords;
+        int j = id * dimensions;
+        double dist = 0;
+        if (scales != null) {
+            for (int d = 0; d < dimensions; d++) {
+                double diff = (v.get(d) - offsets[d]) * scales[d] - c[j + d];
+                dist += diff * diff;
+            }
+        } else {
+            Vector t = tf.transform(v);
+            for (int d = 0; d < dimensions; d++) {
+                double diff = t.get(d) - c[j + d];
+                dist += diff * diff;
+            }
+        }
+        return Math.sqrt(dist);
+    }
+
     @Override
     public void memoize(Vector v) {
+        register(v);
     }
 
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.math.tfs;
+
+import drl.math.geom.Vector;
+
+/**
+ * A bounded map from vectors to doubles that stores its values unboxed. Keys
+ * live in open-addressing tables with linear probing, and once the cache holds
+ * {@code capacity} entries each insertion evicts one entry chosen by the CLOCK
+ * algorithm, so entries that keep being read survive. The thread safe variant
+ * splits the entries over independently locked segments.
+ * <p>
+ * {@code NaN} marks a missing entry, so {@code NaN} values are never cached.
+ * 
+ * @author Dawit
+ * 
+ */
+public final class ValueCache {
+
+    /**
+     * The capacity used when none is given.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private static final int CONCURRENT_SEGMENTS = 64;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final boolean threadSafe;
+    private final int capacity;
+
+    /**
+     * @param capacity
+     *            The maximum number of entries, rounded down to a multiple of
+     *            the number of segments.
+     * @param expectedSize
+     *            The number of entries to allocate room for up front.
+     * @param threadSafe
+     *            Set this to true if several threads will use the cache.
+     */
+    public ValueCache(int capacity, int expectedSize, boolean threadSafe) {
+        int numSegments = threadSafe ? CONCURRENT_SEGMENTS : 1;
+        int perSegment = Math.max(1, capacity / numSegments);
+        this.capacity = perSegment * numSegments;
+        this.threadSafe = threadSafe;
+        this.segments = new Segment[numSegments];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+        int initial = Math.min(perSegment, Math.max(expectedSize, 0) / numSegments);
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(perSegment, initial);
+        }
+    }
+
+    private static int hash(Vector v) {
+        int h = v.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int h) {
+        return segmentShift == 32 ? segments[0] : segments[h >>> segmentShift];
+    }
+
+    /**
+     * @return The value stored for {@code v}, or {@code NaN} if there is none.
+     */
+    public double get(Vector v) {
+        int h = hash(v);
+        Segment s = segmentFor(h);
+        if (threadSafe) {
+            synchronized (s) {
+                return s.get(v, h);
+            }
+        }
+        return s.get(v, h);
+    }
+
+    /**
+     * Stores {@code value} for {@code v}, evicting another entry if the cache
+     * is full.
+     */
+    public void put(Vector v, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        int h = hash(v);
+        Segment s = segmentFor(h);
+        if (threadSafe) {
+            synchronized (s) {
+                s.put(v, h, value);
+            }
+        } else {
+            s.put(v, h, value);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    public int size() {
+        int ret = 0;
+        for (Segment s : segments) {
+            ret += s.size;
+        }
+        return ret;
+    }
+
+    /**
+     * @return The number of calls to {@link #get} that found a value.
+     */
+    public long getHits() {
+        long ret = 0;
+        for (Segment s : segments) {
+            ret += s.hits;
+        }
+        return ret;
+    }
+
+    /**
+     * @return The number of calls to {@link #get} that found nothing.
+     */
+    public long getMisses() {
+        long ret = 0;
+        for (Segment s : segments) {
+            ret += s.misses;
+        }
+        return ret;
+    }
+
+    /**
+     * @return The number of entries evicted to make room for others.
+     */
+    public long getEvictions() {
+        long ret = 0;
+        for (Segment s : segments) {
+            ret += s.evictions;
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d entries, %d hits, %d misses, %d evictions",
+                size(),
+                capacity,
+                getHits(),
+                getMisses(),
+                getEvictions());
+    }
+
+    /**
+     * One open-addressing table. The table doubles until it can hold
+     * {@code maxSize} entries at a load factor of at most one half.
+     */
+    private static final class Segment {
+        private final int maxSize;
+        private Vector[] keys;
+        private int[] hashes;
+        private double[] values;
+        private boolean[] referenced;
+        private int size = 0;
+        private int hand = 0;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        Segment(int maxSize, int expectedSize) {
+            this.maxSize = maxSize;
+            allocate(Integer.highestOneBit(Math.max(8, 2 * expectedSize - 1)) << 1);
+        }
+
+        private void allocate(int length) {
+            keys = new Vector[length];
+            hashes = new int[length];
+            values = new double[length];
+            referenced = new boolean[length];
+        }
+
+        double get(Vector v, int h) {
+            int mask = keys.length - 1;
+            for (int i = h & mask;; i = (i + 1) & mask) {
+                Vector k = keys[i];
+                if (k == null) {
+                    misses++;
+                    return Double.NaN;
+                }
+                if (hashes[i] == h && (k == v || k.equals(v))) {
+                    referenced[i] = true;
+                    hits++;
+                    return values[i];
+                }
+            }
+        }
+
+        void put(Vector v, int h, double value) {
+            int mask = keys.length - 1;
+            int i = h & mask;
+            for (; keys[i] != null; i = (i + 1) & mask) {
+                if (hashes[i] == h && keys[i].equals(v)) {
+                    values[i] = value;
+                    return;
+                }
+            }
+            if (size >= maxSize) {
+                evict();
+            } else if (2 * (size + 1) > keys.length) {
+                grow();
+            } else {
+                insertAt(i, v, h, value);
+                return;
+            }
+            insert(v, h, value);
+        }
+
+        private void insert(Vector v, int h, double value) {
+            int mask = keys.length - 1;
+            int i = h & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            insertAt(i, v, h, value);
+        }
+
+        private void insertAt(int i, Vector v, int h, double value) {
+            keys[i] = v;
+            hashes[i] = h;
+            values[i] = value;
+            referenced[i] = false;
+            size++;
+        }
+
+        private void grow() {
+            Vector[] oldKeys = keys;
+            int[] oldHashes = hashes;
+            double[] oldValues = values;
+            boolean[] oldReferenced = referenced;
+            allocate(oldKeys.length << 1);
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == null) {
+                    continue;
+                }
+                int i = oldHashes[j] & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                hashes[i] = oldHashes[j];
+                values[i] = oldValues[j];
+                referenced[i] = oldReferenced[j];
+            }
+            hand = 0;
+        }
+
+        /**
+         * Sweeps the clock hand past recently read entries, clearing their
+         * flags, and removes the first entry that has not been read since the
+         * hand last passed it.
+         */
+        private void evict() {
+            int mask = keys.length - 1;
+            while (true) {
+                int i = hand;
+                hand = (hand + 1) & mask;
+                if (keys[i] == null) {
+                    continue;
+                }
+                if (referenced[i]) {
+                    referenced[i] = false;
+                    continue;
+                }
+                remove(i);
+                evictions++;
+                return;
+            }
+        }
+
+        /**
+         * Removes the entry in slot {@code i}, shifting later entries of the
+         * same probe run back so that lookups never stop early.
+         */
+        private void remove(int i) {
+            int mask = keys.length - 1;
+            keys[i] = null;
+            size--;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == null) {
+                    return;
+                }
+                int home = hashes[j] & mask;
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (stays) {
+                    continue;
+                }
+                keys[i] = keys[j];
+                hashes[i] = hashes[j];
+                values[i] = values[j];
+                referenced[i] = referenced[j];
+                keys[j] = null;
+                i = j;
+            }
+        }
+    }
+
+}
@@ -18,35 +18,49 @@
 
 package drl.math.tfs;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 
 import drl.math.geom.Vector;
 import drl.math.vfa.ValueFunction;
 
 /**
  * Implementation of a Dimension-Adding VCM Relaxation.
+ * <p>
+ * Memoized vectors are registered under dense ids and their values are kept
+ * in an array, for as long as the metric lives. Values of other vectors go
+ * into a bounded {@link ValueCache}. If the old metric is an
+ * {@link IndexedDistanceFunction} as well, memoized vectors are registered
+ * with it too, so that a chain of relaxations is evaluated by id all the way
+ * down.
  * 
  * @author Dawit
  * 
  */
-public class ValueSmoothingDF implements DistanceFunction {
+public class ValueSmoothingDF implements IndexedDistanceFunction {
 
     private final DistanceFunction df;
     private final ValueFunction vf;
     private final double c1;
-    private final Map<Vector, Double> cache;
+    private final ValueCache cache;
     private final double aa;
+    private final IndexedDistanceFunction indexedDf;
+    private final VectorIndex index;
+    private volatile double[] values;
+    // The ids of the registered vectors in indexedDf.
+    private volatile int[] innerIds;
 
     private ValueSmoothingDF(DistanceFunction df, ValueFunction vf, double targetSlope,
-            double alpha, boolean threadSafe) {
+            double alpha, boolean threadSafe, int expectedSize, int capacity) {
         this.df = df;
         this.vf = vf;
         this.aa = alpha * alpha;
         this.c1 = aa / targetSlope / targetSlope;
-        this.cache = threadSafe ? new ConcurrentHashMap<Vector, Double>()
-                : new HashMap<Vector, Double>();
+        this.cache = new ValueCache(capacity, expectedSize, threadSafe);
+        this.indexedDf = df instanceof IndexedDistanceFunction ? (IndexedDistanceFunction) df
+                : null;
+        this.index = new VectorIndex(expectedSize);
+        this.values = new double[Math.max(16, expectedSize)];
+        this.innerIds = new int[indexedDf == null ? 0 : values.length];
     }
 
     /**
@@ -67,7 +81,49 @@ public class ValueSmoothingDF implements DistanceFunction {
      */
     public static ValueSmoothingDF of(DistanceFunction df, ValueFunction vf, double targetSlope,
             double alpha, boolean threadSafe) {
-        return new ValueSmoothingDF(df, vf, targetSlope, alpha, threadSafe);
+        return new ValueSmoothingDF(df,
+                vf,
+                targetSlope,
+                alpha,
+                threadSafe,
+                0,
+                ValueCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Static constructor for a ValueSmoothingDf sized for
+     * {@code expectedSize} memoized vectors. Its cache holds the values of at
+     * least twice that many other vectors.
+     * 
+     * @see #of(DistanceFunction, ValueFunction, double, double, boolean)
+     */
+    public static ValueSmoothingDF of(DistanceFunction df, ValueFunction vf, double targetSlope,
+            double alpha, boolean threadSafe, int expectedSize) {
+        return new ValueSmoothingDF(df,
+                vf,
+                targetSlope,
+                alpha,
+                threadSafe,
+                expectedSize,
+                Math.max(ValueCache.DEFAULT_CAPACITY, 2 * expectedSize));
+    }
+
+    /**
+     * Static constructor for a ValueSmoothingDf that caches the values of at
+     * most {@code capacity} vectors. Values evicted from the cache are
+     * recomputed from the function when needed again.
+     * 
+     * @see #of(DistanceFunction, ValueFunction, double, double, boolean, int)
+     */
+    public static ValueSmoothingDF of(DistanceFunction df, ValueFunction vf, double targetSlope,
+            double alpha, boolean threadSafe, int expectedSize, int capacity) {
+        return new ValueSmoothingDF(df,
+                vf,
+                targetSlope,
+                alpha,
+                threadSafe,
+                expectedSize,
+                capacity);
     }
 
     @Override
@@ -77,20 +133,155 @@ public class ValueSmoothingDF implements DistanceFunction {
         return Math.sqrt((dx * dx + dy * dy * c1) / (1 + aa));
     }
 
-    private double getValue(Vector v) {
-        if (!cache.containsKey(v)) {
-            double val = vf.value(v);
+    @Override
+    public double distance(int id1, int id2) {
+        double dx;
+        if (indexedDf != null) {
+            int[] inner = innerIds;
+            dx = indexedDf.distance(inner[id1], inner[id2]);
+        } else {
+            dx = df.distance(index.get(id1), index.get(id2));
+        }
+        double[] vals = values;
+        double dy = vals[id1] - vals[id2];
+        return Math.sqrt((dx * dx + dy * dy * c1) / (1 + aa));
+    }
+
+    @Override
+    public double distance(Vector v, int id) {
+        int id1 = index.indexOf(v);
+        if (id1 >= 0) {
+            return distance(id1, id);
+        }
+        double dx;
+        if (indexedDf != null) {
+            dx = indexedDf.distance(v, innerIds[id]);
+        } else {
+            dx = df.distance(v, index.get(id));
+        }
+        double dy = getCachedValue(v) - values[id];
+        return Math.sqrt((dx * dx + dy * dy * c1) / (1 + aa));
+    }
+
+    /**
+     * @return The value of the smoothed function at {@code v}.
+     */
+    public double getValue(Vector v) {
+        int id = index.indexOf(v);
+        if (id >= 0) {
+            return values[id];
+        }
+        return getCachedValue(v);
+    }
+
+    private double getCachedValue(Vector v) {
+        double val = cache.get(v);
+        if (Double.isNaN(val)) {
+            val = vf.value(v);
             cache.put(v, val);
-            return val;
         }
-        return cache.get(v);
+        return val;
     }
 
     @Override
-    public void memoize(Vector v) {
-        if (!cache.containsKey(v)) {
-            cache.put(v, vf.value(v));
+    public int register(Vector v) {
+        return register(v, Double.NaN);
+    }
+
+    /**
+     * Registers {@code v} with a value of the smoothed function computed
+     * elsewhere. {@code value} must equal the value of the function at
+     * {@code v}; if it is {@code NaN} the value is computed here.
+     * 
+     * @return The id of {@code v}.
+     */
+    public synchronized int register(Vector v, double value) {
+        int id = index.indexOf(v);
+        if (id >= 0) {
+            return id;
+        }
+        if (Double.isNaN(value)) {
+            value = getCachedValue(v);
         }
+        int size = index.size();
+        double[] vals = values;
+        if (size == vals.length) {
+            vals = Arrays.copyOf(vals, VectorIndex.grownLength(vals.length, size + 1));
+        }
+        vals[size] = value;
+        values = vals;
+        if (indexedDf != null) {
+            int[] inner = innerIds;
+            if (size == inner.length) {
+                inner = Arrays.copyOf(inner, VectorIndex.grownLength(inner.length, size + 1));
+            }
+            inner[size] = indexedDf.register(v);
+            innerIds = inner;
+        } else {
+            df.memoize(v);
+        }
+        return index.add(v);
+    }
+
+    @Override
+    public int indexOf(Vector v) {
+        return index.indexOf(v);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Vector getVector(int id) {
+        return index.get(id);
+    }
+
+    @Override
+    public void memoize(Vector v) {
+        register(v);
+    }
+
+    /**
+     * Memoizes a value of the smoothed function computed elsewhere.
+     * {@code value} must equal the value of the function at {@code v}.
+     * 
+     * @see #register(Vector, double)
+     */
+    public void memoize(Vector v, double value) {
+        register(v, value);
+    }
+
+    /**
+     * @return The metric this one relaxes.
+     */
+    public DistanceFunction getOldMetric() {
+        return df;
+    }
+
+    /**
+     * @return The weight of the squared value difference relative to the
+     *         squared distance in the old metric.
+     */
+    public double getValueWeight() {
+        return c1;
+    }
+
+    /**
+     * @return The factor {@code 1 / sqrt(1 + alpha^2)} applied to the
+     *         combined distance.
+     */
+    public double getScale() {
+        return 1 / Math.sqrt(1 + aa);
+    }
+
+    /**
+     * @return The cache of the values of vectors that were not memoized, for
+     *         its size and hit counts.
+     */
+    public ValueCache getCache() {
+        return cache;
     }
 
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.math.tfs;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import drl.math.geom.Vector;
+
+/**
+ * Assigns dense ids to vectors for implementations of
+ * {@link IndexedDistanceFunction}. Lookups do not lock. {@link #add} must be
+ * called while holding the owner's lock, after the owner has stored its own
+ * data for the new id, so that a thread that finds the id also sees that data.
+ * 
+ * @author Dawit
+ * 
+ */
+final class VectorIndex {
+
+    private final ConcurrentHashMap<Vector, Integer> ids;
+    private volatile Vector[] vectors;
+    private volatile int size = 0;
+
+    VectorIndex(int expectedSize) {
+        int initial = Math.max(16, expectedSize);
+        this.ids = new ConcurrentHashMap<Vector, Integer>(initial);
+        this.vectors = new Vector[initial];
+    }
+
+    int indexOf(Vector v) {
+        Integer id = ids.get(v);
+        return id == null ? -1 : id;
+    }
+
+    Vector get(int id) {
+        return vectors[id];
+    }
+
+    /**
+     * @return The id the next vector added will get.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds {@code v}, which must not have been added before.
+     * 
+     * @return The id of {@code v}.
+     */
+    int add(Vector v) {
+        if (size == vectors.length) {
+            vectors = Arrays.copyOf(vectors, 2 * size);
+        }
+        vectors[size] = v;
+        ids.put(v, size);
+        return size++;
+    }
+
+    /**
+     * @return The length to grow an array of the given length to so that it
+     *         can hold {@code needed} entries.
+     */
+    static int grownLength(int length, int needed) {
+        return needed <= length ? length : Math.max(needed, 2 * length);
+    }
+
+}
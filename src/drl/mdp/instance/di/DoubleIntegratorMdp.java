@@ -18,8 +18,7 @@
 
 package drl.mdp.instance.di;
 
-import java.util.Random;
-
+import drl.math.RandomSource;
 import drl.math.geom.Cell;
 import drl.math.geom.Vector;
 import drl.mdp.api.MDP;
@@ -35,12 +34,10 @@ public class DoubleIntegratorMdp implements MDP<DiState, DiAction> {
 
     private final DiParametrization theta;
     private final DiState startState;
-    private final Random random;
 
     public DoubleIntegratorMdp(DiParametrization theta) {
         this.theta = theta;
         this.startState = new DiState(theta.initialVelocity, theta.initialPosition);
-        this.random = new Random();
     }
 
     /**
@@ -95,7 +92,7 @@ public class DoubleIntegratorMdp implements MDP<DiState, DiAction> {
     }
 
     private double simulatedNoise(double velocity, DiAction action) {
-        return action.sqrtImpulse * random.nextGaussian() * theta.div;
+        return action.sqrtImpulse * RandomSource.nextGaussian() * theta.div;
     }
 
     @Override
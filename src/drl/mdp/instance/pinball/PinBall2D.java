@@ -20,6 +20,7 @@
 
 package drl.mdp.instance.pinball;
 
+import drl.math.RandomSource;
 import drl.math.geom.Cell;
 import drl.math.geom.Interval;
 import drl.math.geom.Vector;
@@ -108,7 +109,7 @@ public class PinBall2D implements MDP<PinBallState, PinBallAction> {
             for (Obstacle obstacle : params.obstacles) {
                 Point result = obstacle.checkCollision(ball);
                 if (result != null) {
-                    double noise = (Math.random() - .5) * .25;
+                    double noise = (RandomSource.nextDouble() - .5) * .25;
                     if (collision) {
                         dx = -ball.getXDot() * Math.cos(noise) + ball.getYDot() * Math.sin(noise);
                         dy = -ball.getXDot() * Math.sin(noise) - ball.getYDot() * Math.cos(noise);
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.mdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import drl.math.RandomSource;
+import drl.math.geom.Cell;
+import drl.math.geom.Vector;
+import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
+import drl.mdp.api.Policy;
+import drl.mdp.api.State;
+
+/**
+ * Measures the quality of a policy by running rollouts from a set of start
+ * states in parallel. Every rollout runs with its own {@link RandomSource}
+ * stream, derived from the evaluator's seed and the index of its start state,
+ * so exploration, random actions and simulator noise do not depend on how the
+ * rollouts are scheduled.
+ * 
+ * @author Dawit
+ * 
+ */
+public class PolicyEvaluator<S extends State, A extends Action> {
+
+    private final MDP<S, A> mdp;
+    private final ExecutorService exec;
+    private final int threads;
+    private int horizon = 500;
+    private double epsilon = 0;
+    private long seed = 0;
+
+    private PolicyEvaluator(MDP<S, A> mdp, ExecutorService exec, int threads) {
+        this.mdp = mdp;
+        this.exec = exec;
+        this.threads = threads;
+    }
+
+    /**
+     * An evaluator that starts a pool with one thread per available processor
+     * for each evaluation.
+     */
+    public static <S extends State, A extends Action> PolicyEvaluator<S, A> of(MDP<S, A> mdp) {
+        return new PolicyEvaluator<S, A>(mdp, null, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * An evaluator that runs its rollouts on {@code exec}, split into at most
+     * {@code threads} tasks.
+     */
+    public static <S extends State, A extends Action> PolicyEvaluator<S, A> of(MDP<S, A> mdp,
+            ExecutorService exec, int threads) {
+        return new PolicyEvaluator<S, A>(mdp, exec, Math.max(1, threads));
+    }
+
+    /**
+     * Sets the maximum number of steps per rollout. The default is 500.
+     */
+    public PolicyEvaluator<S, A> setHorizon(int horizon) {
+        this.horizon = horizon;
+        return this;
+    }
+
+    /**
+     * Sets the probability of taking a uniformly random action instead of the
+     * policy's action. The default is 0.
+     */
+    public PolicyEvaluator<S, A> setEpsilon(double epsilon) {
+        this.epsilon = epsilon;
+        return this;
+    }
+
+    /**
+     * Sets the seed from which, together with the {@link RandomSource}
+     * experiment seed, the stream of every rollout is derived.
+     */
+    public PolicyEvaluator<S, A> setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Draws non-terminal states uniformly from the state space by rejection
+     * sampling, using the evaluator's seed.
+     * 
+     * @param tries
+     *            The number of samples to try per state before giving up.
+     */
+    public List<S> sampleStarts(int n, int tries) {
+        SplittableRandom random = RandomSource.derive(RandomSource.EVALUATOR, seed);
+        Cell domain = mdp.getStateSpace();
+        double[] d = new double[domain.getDimensions()];
+        List<S> starts = new ArrayList<S>(n);
+        for (int i = 0; i < n; i++) {
+            S state = null;
+            for (int t = 0; t < tries && state == null; t++) {
+                for (int k = 0; k < d.length; k++) {
+                    d[k] = domain.getInterval(k).getStart() + random.nextDouble()
+                            * domain.getInterval(k).getWidth();
+                }
+                state = mdp.stateFromVector(Vector.asVector(d));
+                if (mdp.isTerminal(state)) {
+                    state = null;
+                }
+            }
+            if (state == null) {
+                throw new RuntimeException("Took too many tries to sample non-terminal state");
+            }
+            starts.add(state);
+        }
+        return starts;
+    }
+
+    /**
+     * Runs one rollout of {@code policy} from each start state.
+     * 
+     * @param policy
+     *            The policy to evaluate. It must be safe to call from several
+     *            threads. Set this to {@code null} to act uniformly at random.
+     * @param starts
+     *            The start states. {@code null} entries stand for
+     *            {@code mdp.getStartState()}.
+     */
+    public Statistics evaluate(Policy<S, A> policy, List<S> starts) {
+        int n = starts.size();
+        int[] steps = new int[n];
+        double[] returns = new double[n];
+        boolean[] terminated = new boolean[n];
+        int tasks = Math.max(1, Math.min(n, 4 * threads));
+        List<Rollouts> work = new ArrayList<Rollouts>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            work.add(new Rollouts(policy,
+                    starts,
+                    t * n / tasks,
+                    (t + 1) * n / tasks,
+                    steps,
+                    returns,
+                    terminated));
+        }
+        if (threads == 1 || tasks == 1) {
+            for (Rollouts r : work) {
+                r.call();
+            }
+        } else {
+            ExecutorService pool = exec == null ? Executors.newFixedThreadPool(threads) : exec;
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks);
+                for (Rollouts r : work) {
+                    futures.add(pool.submit(r));
+                }
+                for (Future<Void> f : futures) {
+                    f.get();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException(e);
+            } finally {
+                if (exec == null) {
+                    pool.shutdown();
+                }
+            }
+        }
+        return new Statistics(steps, returns, terminated);
+    }
+
+    private class Rollouts implements Callable<Void> {
+        private final Policy<S, A> policy;
+        private final List<S> starts;
+        private final int start;
+        private final int end;
+        private final int[] steps;
+        private final double[] returns;
+        private final boolean[] terminated;
+
+        public Rollouts(Policy<S, A> policy, List<S> starts, int start, int end, int[] steps,
+                double[] returns, boolean[] terminated) {
+            this.policy = policy;
+            this.starts = starts;
+            this.start = start;
+            this.end = end;
+            this.steps = steps;
+            this.returns = returns;
+            this.terminated = terminated;
+        }
+
+        @Override
+        public Void call() {
+            A[] actions = mdp.getActions();
+            double gamma = mdp.getDiscountFactor();
+            for (int i = start; i < end; i++) {
+                SplittableRandom random = RandomSource.derive(RandomSource.EVALUATOR, seed, i);
+                SplittableRandom old = RandomSource.use(random);
+                try {
+                    S state = starts.get(i) == null ? mdp.getStartState() : starts.get(i);
+                    double value = 0;
+                    double g = 1;
+                    int step = 0;
+                    for (; step < horizon && !mdp.isTerminal(state); step++) {
+                        A action;
+                        if (policy == null || (epsilon > 0 && random.nextDouble() < epsilon)) {
+                            action = actions[random.nextInt(actions.length)];
+                        } else {
+                            action = policy.getAction(state);
+                        }
+                        S next = mdp.simulate(state, action);
+                        value += g * mdp.getReward(state, action, next);
+                        g *= gamma;
+                        state = next;
+                    }
+                    steps[i] = step;
+                    returns[i] = value;
+                    terminated[i] = mdp.isTerminal(state);
+                } finally {
+                    RandomSource.use(old);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The outcome of a set of rollouts. Confidence intervals are 95% normal
+     * approximations, reported as half widths.
+     */
+    public static class Statistics {
+        private final int[] steps;
+        private final double[] returns;
+        private final boolean[] terminated;
+
+        private Statistics(int[] steps, double[] returns, boolean[] terminated) {
+            this.steps = steps;
+            this.returns = returns;
+            this.terminated = terminated;
+        }
+
+        /**
+         * @return The number of rollouts.
+         */
+        public int size() {
+            return steps.length;
+        }
+
+        /**
+         * @return The number of steps taken by rollout {@code i}.
+         */
+        public int getSteps(int i) {
+            return steps[i];
+        }
+
+        /**
+         * @return The discounted return of rollout {@code i}.
+         */
+        public double getReturn(int i) {
+            return returns[i];
+        }
+
+        /**
+         * @return Whether rollout {@code i} reached a terminal state.
+         */
+        public boolean isTerminated(int i) {
+            return terminated[i];
+        }
+
+        public double getMeanSteps() {
+            return mean(toDoubles(steps, false));
+        }
+
+        public double getStepsInterval() {
+            return interval(toDoubles(steps, false));
+        }
+
+        /**
+         * @return The mean number of steps of the rollouts that terminated, or
+         *         NaN if none did.
+         */
+        public double getMeanStepsToTermination() {
+            return mean(toDoubles(steps, true));
+        }
+
+        public double getMeanReturn() {
+            return mean(returns);
+        }
+
+        public double getReturnInterval() {
+            return interval(returns);
+        }
+
+        /**
+         * @return The fraction of rollouts that reached a terminal state.
+         */
+        public double getTerminationRate() {
+            return mean(toDoubles(null, false));
+        }
+
+        public double getTerminationInterval() {
+            return interval(toDoubles(null, false));
+        }
+
+        private double[] toDoubles(int[] values, boolean terminatedOnly) {
+            int n = 0;
+            double[] ret = new double[terminated.length];
+            for (int i = 0; i < terminated.length; i++) {
+                if (values == null) {
+                    ret[n++] = terminated[i] ? 1 : 0;
+                } else if (!terminatedOnly || terminated[i]) {
+                    ret[n++] = values[i];
+                }
+            }
+            double[] trimmed = new double[n];
+            System.arraycopy(ret, 0, trimmed, 0, n);
+            return trimmed;
+        }
+
+        private static double mean(double[] values) {
+            double sum = 0;
+            for (double v : values) {
+                sum += v;
+            }
+            return sum / values.length;
+        }
+
+        private static double interval(double[] values) {
+            if (values.length < 2) {
+                return Double.NaN;
+            }
+            double mean = mean(values);
+            double ss = 0;
+            for (double v : values) {
+                ss += (v - mean) * (v - mean);
+            }
+            return 1.96 * Math.sqrt(ss / (values.length - 1) / values.length);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rollouts: steps %.2f +/- %.2f, return %.4f +/- %.4f, "
+                    + "terminated %.1f%% +/- %.1f%%",
+                    size(),
+                    getMeanSteps(),
+                    getStepsInterval(),
+                    getMeanReturn(),
+                    getReturnInterval(),
+                    100 * getTerminationRate(),
+                    100 * getTerminationInterval());
+        }
+    }
+
+}
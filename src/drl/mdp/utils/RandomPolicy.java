@@ -18,6 +18,7 @@
 
 package drl.mdp.utils;
 
+import drl.math.RandomSource;
 import drl.mdp.api.Action;
 import drl.mdp.api.MDP;
 import drl.mdp.api.Policy;
@@ -47,7 +48,7 @@ public class RandomPolicy<S extends State, A extends Action> implements Policy<S
 
     @Override
     public A getAction(S state) {
-        return mdp.getActions()[(int) (actions * Math.random())];
+        return mdp.getActions()[RandomSource.nextInt(actions)];
     }
 
 }
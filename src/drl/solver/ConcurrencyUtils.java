@@ -18,19 +18,25 @@
 
 package drl.solver;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
+import drl.math.geom.Vector;
 import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.EmbeddingDF;
 import drl.math.tfs.Normalizer;
 import drl.math.tfs.ValueSmoothingDF;
+import drl.math.vfa.ValueFunction;
 import drl.mdp.api.Action;
 import drl.mdp.api.MDP;
 import drl.mdp.api.State;
-import drl.mdp.utils.Transition;
 import drl.solver.smoothing.ActionDistanceFn;
 import drl.solver.smoothing.KernelQValue;
 import drl.solver.smoothing.SampleTransitions;
@@ -47,55 +53,36 @@ public class ConcurrencyUtils {
     private ConcurrencyUtils() {
     }
 
-    private static class Evaluator<S extends State, A extends Action> implements
-            Callable<DistanceFunction> {
-        private final MDP<S, A> mdp;
-        private final KernelQValue<S, A> qvf;
-        private final DistanceFunction oldDf;
-        private final SampleTransitions<S, A> transitions;
-        private final List<S> states;
-        private final A action;
-        private final double alpha;
-        private final boolean threadSafe;
+    private static class Memoizer implements Callable<Void> {
+        private final ValueFunction vf;
+        private final Vector[] vectors;
+        private final double[] values;
+        private final int start;
+        private final int end;
 
-        public Evaluator(MDP<S, A> mdp, KernelQValue<S, A> qvf, DistanceFunction oldDf,
-                SampleTransitions<S, A> transitions, List<S> states, A action, double alpha,
-                boolean threadSafe) {
-            this.mdp = mdp;
-            this.qvf = qvf;
-            this.oldDf = oldDf;
-            this.transitions = transitions;
-            this.states = states;
-            this.action = action;
-            this.alpha = alpha;
-            this.threadSafe = threadSafe;
+        public Memoizer(ValueFunction vf, Vector[] vectors, double[] values, int start, int end) {
+            this.vf = vf;
+            this.vectors = vectors;
+            this.values = values;
+            this.start = start;
+            this.end = end;
         }
 
         @Override
-        public DistanceFunction call() throws Exception {
-            double xSpread = Math.sqrt(mdp.getStateDimensions());
-            double ySpread = qvf.getMaxValue(action) - qvf.getMinValue(action);
-            DistanceFunction df = ValueSmoothingDF.of(oldDf, qvf.getValue(action), ySpread
-                    / xSpread, alpha, threadSafe);
-            for (Transition<S, A> transition : transitions.get(action)) {
-                df.memoize(transition.getStartVector());
+        public Void call() throws Exception {
+            for (int i = start; i < end; i++) {
+                values[i] = vf.value(vectors[i]);
             }
-            for (A a : mdp.getActions()) {
-                for (Transition<S, A> transition : transitions.get(a)) {
-                    df.memoize(transition.getEndVector());
-                }
-            }
-            for (S state : states) {
-                df.memoize(mdp.vectorFromState(state));
-            }
-            return df;
+            return null;
         }
 
     }
 
     /**
      * Constructs an ActionDistanceFn that corresponds to the Dimension-Adding
-     * VCM Relaxation of the given Q-values.
+     * VCM Relaxation of the given Q-values. Relaxations of a Euclidean metric
+     * are flattened into an {@link EmbeddingDF}, so the metrics do not get
+     * deeper with every round.
      * 
      * @param mdp
      *            The MDP.
@@ -110,9 +97,9 @@ public class ConcurrencyUtils {
      * @param states
      *            Any additional states to be memoized.
      * @param exec
-     *            The ExecutorService to use. The maximum concurrency possible
-     *            equals the number of actions in the MDP (if there are 5
-     *            actions this method can use 5 threads).
+     *            The ExecutorService to use. The memoized values are computed
+     *            in chunks of vectors, so every thread of {@code exec} can be
+     *            used regardless of the number of actions.
      * @param alpha
      *            The relaxation rate to use.
      * @param threadSafe
@@ -126,27 +113,62 @@ public class ConcurrencyUtils {
         if (oldDf == null) {
             return ActionDistanceFn.of(mdp.getActions(), Normalizer.df(mdp.getStateSpace()));
         }
-        try {
-            Hashtable<A, Future<DistanceFunction>> futures = new Hashtable<A, Future<DistanceFunction>>();
-            for (A a : mdp.getActions()) {
-                futures.put(a, exec.submit(new Evaluator<S, A>(mdp,
-                        qvf,
-                        oldDf.get(a),
-                        transitions,
-                        states,
-                        a,
-                        alpha,
-                        threadSafe)));
+        double xSpread = Math.sqrt(mdp.getStateDimensions());
+        Set<Vector> shared = new LinkedHashSet<Vector>();
+        for (A a : mdp.getActions()) {
+            shared.addAll(Arrays.asList(transitions.getEndVectors(a.ordinal())));
+        }
+        for (S state : states) {
+            shared.add(mdp.vectorFromState(state));
+        }
+        // Every vector the relaxed metrics will see, split into chunks that
+        // are spread over the whole pool rather than one task per action.
+        int chunks = 8 * Runtime.getRuntime().availableProcessors();
+        Hashtable<A, Vector[]> vectors = new Hashtable<A, Vector[]>();
+        Hashtable<A, double[]> values = new Hashtable<A, double[]>();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (A a : mdp.getActions()) {
+            Set<Vector> all = new LinkedHashSet<Vector>(Arrays.asList(transitions
+                    .getStartVectors(a.ordinal())));
+            all.addAll(shared);
+            Vector[] vs = all.toArray(new Vector[all.size()]);
+            double[] vals = new double[vs.length];
+            vectors.put(a, vs);
+            values.put(a, vals);
+            int size = Math.max(64, (vs.length + chunks - 1) / chunks);
+            for (int start = 0; start < vs.length; start += size) {
+                futures.add(exec.submit(new Memoizer(qvf.getValue(a),
+                        vs,
+                        vals,
+                        start,
+                        Math.min(vs.length, start + size))));
             }
-            Hashtable<A, DistanceFunction> adfmap = new Hashtable<A, DistanceFunction>();
-            for (A a : mdp.getActions()) {
-                adfmap.put(a, futures.get(a).get());
+        }
+        try {
+            for (Future<Void> f : futures) {
+                f.get();
             }
-            return new ActionDistanceFn<A>(adfmap);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
+        Hashtable<A, DistanceFunction> adfmap = new Hashtable<A, DistanceFunction>();
+        for (A a : mdp.getActions()) {
+            double ySpread = qvf.getMaxValue(a) - qvf.getMinValue(a);
+            Vector[] vs = vectors.get(a);
+            double[] vals = values.get(a);
+            ValueSmoothingDF df = ValueSmoothingDF.of(oldDf.get(a),
+                    qvf.getValue(a),
+                    ySpread / xSpread,
+                    alpha,
+                    threadSafe,
+                    vs.length);
+            for (int i = 0; i < vs.length; i++) {
+                df.register(vs[i], vals[i]);
+            }
+            adfmap.put(a, EmbeddingDF.flatten(df));
+        }
+        return new ActionDistanceFn<A>(adfmap);
     }
 
 }
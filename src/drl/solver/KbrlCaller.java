@@ -33,6 +33,7 @@ import drl.solver.smoothing.Kbrl;
 import drl.solver.smoothing.KernelQValue;
 import drl.solver.smoothing.MultithreadedKbrl;
 import drl.solver.smoothing.SampleTransitions;
+import drl.solver.smoothing.SweepMode;
 
 /**
  * A helper class to simplify the process of solving an MDP using KBRL.
@@ -53,6 +54,15 @@ public class KbrlCaller<S extends State, A extends Action> {
     private double bandwidth = .01;
     private int steps = 300;
     private int numStates;
+    private double cutoff = 0;
+    private double threshold = -1;
+    private SweepMode mode = SweepMode.JACOBI;
+    private boolean factored = false;
+    private int neighbors = 0;
+    private double sparsity = 0;
+    private boolean warmStart = false;
+    private KernelQValue<S, A> previous = null;
+    private double[] repValues = null;
 
     private KbrlCaller(MDP<S, A> mdp) {
         this.mdp = mdp;
@@ -148,6 +158,79 @@ public class KbrlCaller<S extends State, A extends Action> {
         return this;
     }
 
+    /**
+     * Keep the KBSF factors {@code K} and {@code D} apart instead of
+     * multiplying them into a dense matrix per action. This uses far less
+     * memory with many representative states, and ignores
+     * {@link #makeMultithreaded}. This only affects KBSF.
+     * 
+     * @param factored
+     * @return {@code this}
+     */
+    public KbrlCaller<S, A> factorKbsf(boolean factored) {
+        this.factored = factored;
+        return this;
+    }
+
+    /**
+     * Use factored KBSF (see {@link #factorKbsf}) with sparse factors: each
+     * row of {@code K} and {@code D} keeps at most {@code neighbors} weights,
+     * and none below {@code threshold} times the sum of the row.
+     * 
+     * @param neighbors
+     *            Set to 0 for no limit on the number of weights.
+     * @param threshold
+     *            Set to 0 to keep small weights.
+     * @return {@code this}
+     */
+    public KbrlCaller<S, A> sparsifyKbsf(int neighbors, double threshold) {
+        this.factored = true;
+        this.neighbors = neighbors;
+        this.sparsity = threshold;
+        return this;
+    }
+
+    /**
+     * Start value iteration from the result of the previous call to
+     * {@link #solve} instead of from zero. This pays off when consecutive
+     * calls differ only slightly, as in the rounds of DKBRL. For KBSF, the
+     * values of the representative states are reused.
+     * 
+     * @param warmStart
+     *            Defaults to false. Setting it to false also forgets the
+     *            stored result.
+     * @return {@code this}
+     */
+    public KbrlCaller<S, A> warmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+        if (!warmStart) {
+            previous = null;
+            repValues = null;
+        }
+        return this;
+    }
+
+    /**
+     * @return Whether {@link #solve} starts from its previous result.
+     */
+    public boolean isWarmStarted() {
+        return warmStart;
+    }
+
+    /**
+     * Start the next KBRL solve from the given Q-values (see
+     * {@link KernelQValue#startingFrom}).
+     * 
+     * @param qvf
+     *            The Q-values to start from, or {@code null} to start from
+     *            zero.
+     * @return {@code this}
+     */
+    public KbrlCaller<S, A> startFrom(KernelQValue<S, A> qvf) {
+        this.previous = qvf;
+        return this;
+    }
+
     /**
      * Use a set of sample transitions. Note that the current implementation of
      * KBSF requires that the sample transitions for each action have an
@@ -185,6 +268,51 @@ public class KbrlCaller<S extends State, A extends Action> {
         return this;
     }
 
+    /**
+     * Evaluate the kernel sums through a per-action spatial index, ignoring
+     * samples further than {@code cutoff * bandwidth} from the query. The
+     * metric must satisfy the triangle inequality.
+     * 
+     * @param cutoff
+     *            The search radius in units of the bandwidth (see
+     *            {@link KernelQValue#DEFAULT_CUTOFF}). Set to 0 to sum over
+     *            every sample, which is the default.
+     * @return {@code this}
+     */
+    public KbrlCaller<S, A> useSpatialIndex(double cutoff) {
+        this.cutoff = cutoff;
+        return this;
+    }
+
+    /**
+     * Precompute the kernel weights between samples as sparse matrices and
+     * run value iteration on those. This only affects KBRL.
+     * 
+     * @param threshold
+     *            Normalized kernel weights below this value are dropped. Use
+     *            0 to keep every weight. Pass a negative value to evaluate the
+     *            kernel on every round instead, which is the default.
+     * @return {@code this}
+     */
+    public KbrlCaller<S, A> compile(double threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Set the order in which KBRL value iteration updates the sample values.
+     * Gauss-Seidel and prioritized sweeps are sequential, so they ignore
+     * {@link #makeMultithreaded}. This only affects KBRL.
+     * 
+     * @param mode
+     *            Defaults to {@link SweepMode#JACOBI}.
+     * @return {@code this}
+     */
+    public KbrlCaller<S, A> setSweepMode(SweepMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
     /**
      * Use a multithreaded implementation of KBRL or KBSF.
      * 
@@ -217,30 +345,60 @@ public class KbrlCaller<S extends State, A extends Action> {
         }
 
         if (repStates != null) {
-            if (threads > 1) {
+            double[] reps = null;
+            if (warmStart) {
+                if (repValues == null || repValues.length != repStates.size()) {
+                    repValues = new double[repStates.size()];
+                }
+                reps = repValues;
+            }
+            KernelQValue<S, A> qvf;
+            if (factored) {
+                qvf = Kbrl.solveByFactoredKbsf(mdp,
+                        repStates,
+                        transitions,
+                        adfn,
+                        bandwidth,
+                        steps,
+                        neighbors,
+                        sparsity,
+                        reps);
+            } else if (threads > 1) {
                 ExecutorService exec = Executors.newFixedThreadPool(threads);
-                KernelQValue<S, A> qvf = MultithreadedKbrl.solveByKbsf(mdp,
+                qvf = MultithreadedKbrl.solveByKbsf(mdp,
                         repStates,
                         transitions,
                         adfn,
                         exec,
                         bandwidth,
-                        steps);
+                        steps,
+                        reps);
                 exec.shutdown();
-                return qvf;
+            } else {
+                qvf = Kbrl.solveByKbsf(mdp, repStates, transitions, adfn, bandwidth, steps, reps);
             }
-            return Kbrl.solveByKbsf(mdp, repStates, transitions, adfn, bandwidth, steps);
+            return cutoff > 0 ? qvf.withSpatialIndex(cutoff) : qvf;
         }
 
         KernelQValue<S, A> qvf = KernelQValue.of(mdp, transitions, adfn, bandwidth);
+        if (previous != null) {
+            qvf = qvf.startingFrom(previous);
+        }
+        if (cutoff > 0) {
+            qvf = qvf.withSpatialIndex(cutoff);
+        }
 
-        if (threads > 1) {
+        if (threshold >= 0) {
+            qvf = Kbrl.solveCompiled(qvf, mdp, transitions, steps, threshold, mode);
+        } else if (threads > 1 && mode == SweepMode.JACOBI) {
             ExecutorService exec = Executors.newFixedThreadPool(threads);
             qvf = MultithreadedKbrl.solve(qvf, mdp, transitions, exec, threads, steps);
             exec.shutdown();
-            return qvf;
+        } else {
+            qvf = Kbrl.solve(qvf, mdp, transitions, steps, mode);
         }
-        return Kbrl.solve(qvf, mdp, transitions, steps);
+        previous = warmStart ? qvf : null;
+        return qvf;
     }
 
 }
@@ -23,6 +23,7 @@ import java.util.Map;
 
 import drl.math.MathUtils;
 import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.EmbeddingDF;
 import drl.math.tfs.ValueSmoothingDF;
 import drl.mdp.api.Action;
 import drl.mdp.api.MDP;
@@ -105,7 +106,9 @@ public class MdpSolver {
      * @param alpha
      *            The relaxation rate.
      * @return The computed Q-values after the final iteration without any
-     *         policy evaluation.
+     *         policy evaluation. If {@code caller} is warm started (see
+     *         {@link KbrlCaller#warmStart}), every iteration after the first
+     *         starts value iteration from the result of the one before.
      */
     public static <S extends State, A extends Action> QValue<S, A> solveByDkbrl(MDP<S, A> mdp,
             KbrlCaller<S, A> caller, int iterations, ActionDistanceFn<A> initialAdfn, double alpha) {
@@ -119,11 +122,11 @@ public class MdpSolver {
             for (A action : mdp.getActions()) {
                 double slope = (qvf.getMaxValue(action) - qvf.getMinValue(action))
                         / MathUtils.diameterOf(MathUtils.unitCell(mdp.getStateDimensions()));
-                map.put(action, ValueSmoothingDF.of(adf.get(action),
+                map.put(action, EmbeddingDF.flatten(ValueSmoothingDF.of(adf.get(action),
                         qvf.getValue(action),
                         slope,
                         alpha,
-                        true));
+                        true)));
             }
             adf = ActionDistanceFn.of(map);
             caller.setActionDistanceFn(adf);
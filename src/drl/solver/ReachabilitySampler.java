@@ -0,0 +1,331 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.solver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import drl.math.MathUtils;
+import drl.math.RandomSource;
+import drl.math.algs.ConcurrentGridFilter;
+import drl.math.geom.Cell;
+import drl.math.geom.Vector;
+import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
+import drl.mdp.api.State;
+
+/**
+ * Finds the reachable part of an MDP's state space with several independent
+ * random walks run in parallel. The walkers stream the states they visit into
+ * a shared {@link ConcurrentGridFilter} that only keeps the state closest to
+ * the center of each bin plus a small reservoir of others, so memory does not
+ * grow with the length of the walk. Walking stops once a round adds almost no new bins, or
+ * when the step budget is spent.
+ * <p>
+ * Every walker has its own {@link RandomSource} stream derived from the
+ * sampler's seed, so the set of bins reached does not depend on scheduling.
+ * 
+ * @author Dawit
+ * 
+ */
+public class ReachabilitySampler<S extends State, A extends Action> {
+
+    private final MDP<S, A> mdp;
+    private final ExecutorService exec;
+    private final int threads;
+    private int walkers;
+    private long maxSteps = 1500000;
+    private int restart = 300000;
+    private int batch = 10000;
+    private double plateau = .001;
+    private int patience = 5;
+    private int binCapacity = 8;
+    private long seed = 0;
+
+    private ReachabilitySampler(MDP<S, A> mdp, ExecutorService exec, int threads) {
+        this.mdp = mdp;
+        this.exec = exec;
+        this.threads = threads;
+        this.walkers = threads;
+    }
+
+    /**
+     * A sampler that starts a pool with one thread per available processor for
+     * each walk.
+     */
+    public static <S extends State, A extends Action> ReachabilitySampler<S, A> of(
+            MDP<S, A> mdp) {
+        return new ReachabilitySampler<S, A>(mdp,
+                null,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A sampler that runs its walkers on {@code exec}, at most {@code threads}
+     * at a time.
+     */
+    public static <S extends State, A extends Action> ReachabilitySampler<S, A> of(
+            MDP<S, A> mdp, ExecutorService exec, int threads) {
+        return new ReachabilitySampler<S, A>(mdp, exec, Math.max(1, threads));
+    }
+
+    /**
+     * Sets the number of independent walkers. The default is one per thread.
+     */
+    public ReachabilitySampler<S, A> setWalkers(int walkers) {
+        this.walkers = Math.max(1, walkers);
+        return this;
+    }
+
+    /**
+     * Sets the total number of steps taken by all walkers together. The
+     * default is 1.5 million.
+     */
+    public ReachabilitySampler<S, A> setMaxSteps(long maxSteps) {
+        this.maxSteps = maxSteps;
+        return this;
+    }
+
+    /**
+     * Sets the number of steps a walker takes without reaching a terminal
+     * state before it goes back to the start state. The default is 300000.
+     */
+    public ReachabilitySampler<S, A> setRestart(int restart) {
+        this.restart = restart;
+        return this;
+    }
+
+    /**
+     * Sets the number of steps each walker takes per round. Coverage is checked
+     * between rounds. The default is 10000.
+     */
+    public ReachabilitySampler<S, A> setBatch(int batch) {
+        this.batch = Math.max(1, batch);
+        return this;
+    }
+
+    /**
+     * Walking stops after {@code patience} rounds in a row each add no more
+     * than {@code plateau} times the number of bins reached so far. The
+     * defaults are .001 and 5; set {@code plateau} to a negative number to
+     * always use the whole step budget.
+     */
+    public ReachabilitySampler<S, A> setPlateau(double plateau, int patience) {
+        this.plateau = plateau;
+        this.patience = Math.max(1, patience);
+        return this;
+    }
+
+    /**
+     * Sets how many states besides the one closest to its center each bin
+     * keeps. They are only needed when asking the result for more states than
+     * there are bins. The default is 8.
+     */
+    public ReachabilitySampler<S, A> setBinCapacity(int binCapacity) {
+        this.binCapacity = Math.max(0, binCapacity);
+        return this;
+    }
+
+    /**
+     * Sets the seed from which, together with the {@link RandomSource}
+     * experiment seed, the streams of the walkers are derived.
+     */
+    public ReachabilitySampler<S, A> setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Walks until coverage of the given grid levels off.
+     * 
+     * @return The filter the walkers filled.
+     */
+    public ConcurrentGridFilter walk(int cellsPerDimension) {
+        List<Walker> team = makeWalkers();
+        ConcurrentGridFilter coverage = new ConcurrentGridFilter(mdp.getStateSpace(),
+                cellsPerDimension,
+                binCapacity);
+        coverage.add(mdp.vectorFromState(mdp.getStartState()),
+                RandomSource.derive(RandomSource.REACHABILITY, seed, -1));
+        run(team, coverage, maxSteps);
+        return coverage;
+    }
+
+    /**
+     * Returns a list of states that cover the reachable state space of the MDP.
+     * If fewer than a quarter of {@code samples} bins are reached, the grid is
+     * refined and the walkers carry on from where they stopped.
+     * 
+     * @param cellsPerDimension
+     *            The initial resolution of the grid.
+     * @param samples
+     *            The number of states to return.
+     */
+    public List<S> sample(int cellsPerDimension, int samples) {
+        List<Walker> team = makeWalkers();
+        Cell domain = mdp.getStateSpace();
+        ConcurrentGridFilter coverage = new ConcurrentGridFilter(domain,
+                cellsPerDimension,
+                binCapacity);
+        coverage.add(mdp.vectorFromState(mdp.getStartState()),
+                RandomSource.derive(RandomSource.REACHABILITY, seed, -1));
+        long used = run(team, coverage, maxSteps);
+        int cells = cellsPerDimension;
+        if (coverage.binsReached() * 4 < samples) {
+            System.out.println("Re-filtering " + coverage.binsReached());
+            int factor = (int) (1 + Math.pow(1. * samples / coverage.binsReached(),
+                    1. / mdp.getStateDimensions()));
+            cells = cells * factor;
+            ConcurrentGridFilter finer = new ConcurrentGridFilter(domain, cells, binCapacity);
+            SplittableRandom random = RandomSource.derive(RandomSource.REACHABILITY, seed, -2);
+            for (Vector v : coverage.getKept()) {
+                finer.add(v, random);
+            }
+            coverage = finer;
+            run(team, coverage, maxSteps - used);
+        }
+        System.out.println(String.format("Fraction of state space reached: %d / %d",
+                coverage.binsReached(),
+                MathUtils.raise(cells, mdp.getStateDimensions())));
+        List<Vector> vecs = coverage.subsample(samples);
+        List<S> ret = new ArrayList<S>(vecs.size());
+        for (Vector v : vecs) {
+            ret.add(mdp.stateFromVector(v));
+        }
+        return ret;
+    }
+
+    private List<Walker> makeWalkers() {
+        List<Walker> team = new ArrayList<Walker>(walkers);
+        for (int w = 0; w < walkers; w++) {
+            team.add(new Walker(w));
+        }
+        return team;
+    }
+
+    /**
+     * Runs rounds of walking until coverage levels off or {@code budget} steps
+     * have been taken.
+     * 
+     * @return The number of steps taken.
+     */
+    private long run(List<Walker> team, ConcurrentGridFilter coverage, long budget) {
+        long time = System.currentTimeMillis();
+        long steps = 0;
+        int rounds = 0;
+        int stalled = 0;
+        ExecutorService pool = null;
+        if (threads > 1 && team.size() > 1) {
+            pool = exec == null ? Executors.newFixedThreadPool(threads) : exec;
+        }
+        try {
+            while (steps < budget) {
+                int perWalker = (int) Math.min(batch, (budget - steps + team.size() - 1)
+                        / team.size());
+                int before = coverage.binsReached();
+                for (Walker w : team) {
+                    w.prepare(coverage, perWalker);
+                }
+                if (pool == null) {
+                    for (Walker w : team) {
+                        w.call();
+                    }
+                } else {
+                    List<Future<Void>> futures = new ArrayList<Future<Void>>(team.size());
+                    for (Walker w : team) {
+                        futures.add(pool.submit(w));
+                    }
+                    for (Future<Void> f : futures) {
+                        f.get();
+                    }
+                }
+                steps += (long) perWalker * team.size();
+                rounds++;
+                int added = coverage.binsReached() - before;
+                stalled = added <= plateau * coverage.binsReached() ? stalled + 1 : 0;
+                if (stalled >= patience) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        } finally {
+            if (pool != null && exec == null) {
+                pool.shutdown();
+            }
+        }
+        long millis = System.currentTimeMillis() - time;
+        System.out.println(String.format(
+                "Random walk: %d walkers, %d rounds, %d steps, %d bins reached in %d ms",
+                team.size(),
+                rounds,
+                steps,
+                coverage.binsReached(),
+                millis));
+        return steps;
+    }
+
+    private class Walker implements Callable<Void> {
+        private final SplittableRandom random;
+        private final SplittableRandom reservoir;
+        private S state;
+        private int sinceStart = 0;
+        private ConcurrentGridFilter coverage;
+        private int steps;
+
+        public Walker(int index) {
+            // Reservoir decisions get their own stream so that the path of the
+            // walker does not depend on what other walkers put in the bins.
+            this.random = RandomSource.derive(RandomSource.REACHABILITY, seed, index, 0);
+            this.reservoir = RandomSource.derive(RandomSource.REACHABILITY, seed, index, 1);
+            this.state = mdp.getStartState();
+        }
+
+        void prepare(ConcurrentGridFilter coverage, int steps) {
+            this.coverage = coverage;
+            this.steps = steps;
+        }
+
+        @Override
+        public Void call() {
+            A[] actions = mdp.getActions();
+            SplittableRandom old = RandomSource.use(random);
+            try {
+                for (int i = 0; i < steps; i++) {
+                    state = mdp.simulate(state, MathUtils.sample(actions));
+                    coverage.add(mdp.vectorFromState(state), reservoir);
+                    if (mdp.isTerminal(state) || ++sinceStart >= restart) {
+                        state = mdp.getStartState();
+                        sinceStart = 0;
+                    }
+                }
+            } finally {
+                RandomSource.use(old);
+            }
+            return null;
+        }
+    }
+
+}
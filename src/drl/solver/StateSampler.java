@@ -22,12 +22,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 import drl.math.MathUtils;
-import drl.math.algs.GridFilter;
 import drl.math.geom.Vector;
 import drl.mdp.api.Action;
 import drl.mdp.api.MDP;
 import drl.mdp.api.State;
-import drl.mdp.utils.MdpUtils;
 
 /**
  * A static utility class providing methods for sampling states of an MDP.
@@ -104,34 +102,11 @@ public class StateSampler {
     /**
      * Return a list of states that cover the reachable state space of the MDP.
      * 
+     * @see ReachabilitySampler
      */
     public static <S extends State, A extends Action> List<S> reachabilitySample(MDP<S, A> mdp,
             int samples) {
         int cells = samples < 20000 ? tiles(samples, mdp) - 1 : tiles(20000, mdp);
-        GridFilter filter = new GridFilter(mdp.getStateSpace(), cells);
-        System.out.println("Performing random walk.");
-        List<S> ret = MdpUtils.randomWalk(mdp, null, 1500000, 300000);
-        for (S state : ret) {
-            filter.add(mdp.vectorFromState(state));
-        }
-        if (filter.binsReached() * 4 < samples) {
-            System.out.println("Re-filtering " + filter.binsReached());
-            int factor = (int) (1 + Math.pow(1. * samples / filter.binsReached(),
-                    1. / mdp.getStateDimensions()));
-            cells = cells * factor;
-            filter = new GridFilter(mdp.getStateSpace(), cells);
-            for (S state : ret) {
-                filter.add(mdp.vectorFromState(state));
-            }
-        }
-        System.out.println(String.format("Fraction of state space reached: %d / %d",
-                filter.binsReached(),
-                MathUtils.raise(cells, mdp.getStateDimensions())));
-        List<Vector> vecs = filter.subsample(samples);
-        ret = new ArrayList<S>(vecs.size());
-        for (Vector v : vecs) {
-            ret.add(mdp.stateFromVector(v));
-        }
-        return ret;
+        return ReachabilitySampler.of(mdp).sample(cells, samples);
     }
 }
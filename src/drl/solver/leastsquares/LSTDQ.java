@@ -46,13 +46,15 @@ public class LSTDQ<S extends State, A extends Action> implements LvfApproximator
     private final LvfFactory constructor;
     private final MDP<S, A> instance;
     private final List<S> states;
-    private final SimpleMatrix aMatrixBase;
+    private final int bases;
+    private final double[] aMatrixBase;
 
-    private LSTDQ(LvfFactory constructor, MDP<S, A> instance, List<S> states,
-            SimpleMatrix aMatrixBase) {
+    private LSTDQ(LvfFactory constructor, MDP<S, A> instance, List<S> states, int bases,
+            double[] aMatrixBase) {
         this.constructor = constructor;
         this.instance = instance;
         this.states = states;
+        this.bases = bases;
         this.aMatrixBase = aMatrixBase;
     }
 
@@ -73,76 +75,51 @@ public class LSTDQ<S extends State, A extends Action> implements LvfApproximator
     public static <S extends State, A extends Action> LSTDQ<S, A> of(LvfFactory constructor,
             MDP<S, A> instance, List<S> states, double eps) {
         int bases = constructor.generateBases(instance.vectorFromState(states.get(0))).length;
-        SimpleMatrix aMatrixBase = SimpleMatrix.identity(bases).scale(eps * states.size());
-        for (int s = 0; s < states.size(); s++) {
-            double[] phiValues = constructor.generateBases(instance.vectorFromState(states.get(s)));
-            SimpleMatrix phi = new SimpleMatrix(bases, 1, true, phiValues);
-            aMatrixBase = aMatrixBase.plus(phi.mult(phi.transpose()));
-        }
-        return new LSTDQ<S, A>(constructor, instance, states, aMatrixBase);
-    }
-
-    private SimpleMatrix stretch(SimpleMatrix ds, int a, int numA) {
-        double[] ret = new double[ds.numRows() * numA];
-        for (int i = 0; i < ds.numRows(); i++) {
-            ret[a * ds.numRows() + i] = ds.get(i);
-        }
-        return new SimpleMatrix(ret.length, 1, false, ret);
-    }
-
-    private double[][] generateA() {
-        int bases = aMatrixBase.getMatrix().numCols;
-        int actions = instance.getActions().length;
-        double[][] aMatrix = new double[bases * actions][bases * actions];
+        double[] aMatrixBase = new double[bases * bases];
         for (int i = 0; i < bases; i++) {
-            for (int j = 0; j < bases; j++) {
-                for (int a = 0; a < actions; a++) {
-                    aMatrix[a * bases + i][a * bases + j] = aMatrixBase.get(i, j);
-                }
-            }
+            aMatrixBase[i * bases + i] = eps * states.size();
+        }
+        for (int s = 0; s < states.size(); s++) {
+            double[] phi = constructor.generateBases(instance.vectorFromState(states.get(s)));
+            LstdqAccumulator.addOuterProduct(aMatrixBase, phi);
         }
-        return aMatrix;
+        return new LSTDQ<S, A>(constructor, instance, states, bases, aMatrixBase);
     }
 
     @Override
     public QValue<S, A> approximateQValueOf(Policy<S, A> policy) {
+        long time = System.currentTimeMillis();
         A[] actions = instance.getActions();
-        int bases = aMatrixBase.getMatrix().numCols;
-        double[][] aMatrix = generateA();
-        SimpleMatrix bMatrix = new SimpleMatrix(bases * actions.length, 1);
+        LstdqAccumulator acc = LstdqAccumulator.of(bases, actions.length);
+        acc.addBlockDiagonal(aMatrixBase);
         double gamma = instance.getDiscountFactor();
 
         for (int s = 0; s < states.size(); s++) {
+            S start = states.get(s);
+            double[] phi1 = null;
             for (int a = 0; a < actions.length; a++) {
                 A action = actions[a];
-                S end = instance.simulate(states.get(s), action);
+                S end = instance.simulate(start, action);
                 if (instance.isTerminal(end)) {
                     continue;
                 }
-                SimpleMatrix phi1 = new SimpleMatrix(bases,
-                        1,
-                        false,
-                        constructor.generateBases(instance.vectorFromState(states.get(s))));
-                int a2 = policy.getAction(end).ordinal();
-                SimpleMatrix phi2 = new SimpleMatrix(bases,
-                        1,
-                        false,
-                        constructor.generateBases(instance.vectorFromState(end)));
-
-                SimpleMatrix addOn = phi1.mult(phi2.transpose());
-                for (int i = 0; i < bases; i++) {
-                    for (int j = 0; j < bases; j++) {
-                        aMatrix[i + a * bases][j + a2 * bases] -= gamma * addOn.get(i, j);
-                    }
+                if (phi1 == null) {
+                    phi1 = constructor.generateBases(instance.vectorFromState(start));
                 }
-                phi1 = stretch(phi1, a, actions.length);
-                bMatrix = bMatrix.plus(phi1.scale(instance.getReward(states.get(s), action, end)));
+                int a2 = policy.getAction(end).ordinal();
+                double[] phi2 = constructor.generateBases(instance.vectorFromState(end));
+                acc.add(phi1, a, phi2, a2, gamma, instance.getReward(start, action, end));
             }
         }
+        reportThroughput(acc.getSamples(), System.currentTimeMillis() - time);
+        return qValueFromWeights(acc.solve());
+    }
 
-        SimpleMatrix a = new SimpleMatrix(aMatrix);
-        // System.out.println(a);
-        return qValueFromWeights(a.solve(bMatrix));
+    static void reportThroughput(int samples, long millis) {
+        System.out.println(String.format("LSTDQ: %d samples in %d ms (%.0f samples/s)",
+                samples,
+                millis,
+                samples * 1000.0 / Math.max(millis, 1)));
     }
 
     private QValue<S, A> qValueFromWeights(SimpleMatrix weights) {
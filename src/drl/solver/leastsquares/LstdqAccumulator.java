@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.solver.leastsquares;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * The {@code A} matrix and {@code b} vector of LSTDQ held as flat row-major
+ * arrays. Each sample is added as a rank-1 update that only touches the block
+ * of {@code A} belonging to its pair of actions, so no intermediate matrices
+ * are created. An accumulator is not thread safe; give each task its own and
+ * combine them with {@link #add(LstdqAccumulator)}.
+ * 
+ * @author Dawit
+ * 
+ */
+final class LstdqAccumulator {
+
+    private final int bases;
+    private final int size;
+    private final double[] a;
+    private final double[] b;
+    private int samples;
+
+    private LstdqAccumulator(int bases, int actions) {
+        this.bases = bases;
+        this.size = bases * actions;
+        this.a = new double[size * size];
+        this.b = new double[size];
+    }
+
+    /**
+     * @return An accumulator for {@code bases} basis functions per action,
+     *         with {@code A} and {@code b} set to zero.
+     */
+    static LstdqAccumulator of(int bases, int actions) {
+        return new LstdqAccumulator(bases, actions);
+    }
+
+    /**
+     * Adds {@code phi * phi^T} to the {@code bases} by {@code bases} row-major
+     * matrix {@code out}.
+     */
+    static void addOuterProduct(double[] out, double[] phi) {
+        int n = phi.length;
+        for (int i = 0; i < n; i++) {
+            double p = phi[i];
+            if (p == 0) {
+                continue;
+            }
+            int row = i * n;
+            for (int j = 0; j < n; j++) {
+                out[row + j] += p * phi[j];
+            }
+        }
+    }
+
+    /**
+     * Adds the transition {@code (s, a1) -> (s', a2)} with reward {@code r}:
+     * {@code A -= gamma * phi(s, a1) * phi(s', a2)^T} and
+     * {@code b += r * phi(s, a1)}.
+     * 
+     * @param phi1
+     *            The basis functions evaluated at the start state.
+     * @param phi2
+     *            The basis functions evaluated at the end state.
+     */
+    void add(double[] phi1, int a1, double[] phi2, int a2, double gamma, double r) {
+        samples++;
+        int rowStart = a1 * bases;
+        int colStart = a2 * bases;
+        for (int i = 0; i < bases; i++) {
+            double p = phi1[i];
+            if (p == 0) {
+                continue;
+            }
+            b[rowStart + i] += r * p;
+            double scale = gamma * p;
+            int row = (rowStart + i) * size + colStart;
+            for (int j = 0; j < bases; j++) {
+                a[row + j] -= scale * phi2[j];
+            }
+        }
+    }
+
+    /**
+     * Adds the {@code bases} by {@code bases} row-major matrix {@code base} to
+     * every diagonal block of {@code A}.
+     */
+    void addBlockDiagonal(double[] base) {
+        for (int start = 0; start < size; start += bases) {
+            for (int i = 0; i < bases; i++) {
+                int row = (start + i) * size + start;
+                int baseRow = i * bases;
+                for (int j = 0; j < bases; j++) {
+                    a[row + j] += base[baseRow + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the contents of {@code other}, which must have the same dimensions,
+     * to this accumulator.
+     */
+    void add(LstdqAccumulator other) {
+        samples += other.samples;
+        for (int i = 0; i < a.length; i++) {
+            a[i] += other.a[i];
+        }
+        for (int i = 0; i < b.length; i++) {
+            b[i] += other.b[i];
+        }
+    }
+
+    /**
+     * @return The number of transitions added so far.
+     */
+    int getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return The weights {@code w} solving {@code A w = b}.
+     */
+    SimpleMatrix solve() {
+        SimpleMatrix aMatrix = SimpleMatrix.wrap(DenseMatrix64F.wrap(size, size, a));
+        return aMatrix.solve(SimpleMatrix.wrap(DenseMatrix64F.wrap(size, 1, b)));
+    }
+
+}
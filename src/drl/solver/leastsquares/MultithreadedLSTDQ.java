@@ -49,15 +49,17 @@ public class MultithreadedLSTDQ<S extends State, A extends Action> implements Lv
     private final LvfFactory constructor;
     private final MDP<S, A> instance;
     private final List<S> states;
-    private final SimpleMatrix aMatrixBase;
+    private final int bases;
+    private final double[] aMatrixBase;
     private final int threads;
     private final ExecutorService exec;
 
     private MultithreadedLSTDQ(LvfFactory constructor, MDP<S, A> instance, List<S> states,
-            SimpleMatrix aMatrixBase, ExecutorService exec, int threads) {
+            int bases, double[] aMatrixBase, ExecutorService exec, int threads) {
         this.constructor = constructor;
         this.instance = instance;
         this.states = states;
+        this.bases = bases;
         this.aMatrixBase = aMatrixBase;
         this.threads = threads;
         this.exec = exec;
@@ -84,20 +86,27 @@ public class MultithreadedLSTDQ<S extends State, A extends Action> implements Lv
             LvfFactory constructor, MDP<S, A> instance, List<S> states, double eps,
             ExecutorService exec, int threads) {
         int bases = constructor.generateBases(instance.vectorFromState(states.get(0))).length;
-        SimpleMatrix aMatrixBase = SimpleMatrix.identity(bases).scale(eps * states.size());
+        double[] aMatrixBase = new double[bases * bases];
+        for (int i = 0; i < bases; i++) {
+            aMatrixBase[i * bases + i] = eps * states.size();
+        }
 
-        CompletionService<SimpleMatrix> service = new ExecutorCompletionService<SimpleMatrix>(exec);
+        CompletionService<double[]> service = new ExecutorCompletionService<double[]>(exec);
         for (int thread = 0; thread < threads; thread++) {
             service.submit(new AMatrixInitializer<S, A>(thread,
                     threads,
                     states,
                     constructor,
-                    instance));
+                    instance,
+                    bases));
         }
 
         try {
             for (int thread = 0; thread < threads; thread++) {
-                aMatrixBase = aMatrixBase.plus(service.take().get());
+                double[] part = service.take().get();
+                for (int i = 0; i < part.length; i++) {
+                    aMatrixBase[i] += part[i];
+                }
             }
         } catch (Exception e) {
             System.err.println("Concurency problem during initialization.");
@@ -107,74 +116,43 @@ public class MultithreadedLSTDQ<S extends State, A extends Action> implements Lv
         return new MultithreadedLSTDQ<S, A>(constructor,
                 instance,
                 states,
+                bases,
                 aMatrixBase,
                 exec,
                 threads);
     }
 
-    private double[][] generateA() {
-        int bases = aMatrixBase.getMatrix().numCols;
-        int actions = instance.getActions().length;
-        double[][] aMatrix = new double[bases * actions][bases * actions];
-        for (int i = 0; i < bases; i++) {
-            for (int j = 0; j < bases; j++) {
-                for (int a = 0; a < actions; a++) {
-                    aMatrix[a * bases + i][a * bases + j] = aMatrixBase.get(i, j);
-                }
-            }
-        }
-        return aMatrix;
-    }
-
-    private SimpleMatrix stretch(SimpleMatrix ds, int a, int numA) {
-        double[] ret = new double[ds.numRows() * numA];
-        for (int i = 0; i < ds.numRows(); i++) {
-            ret[a * ds.numRows() + i] = ds.get(i);
-        }
-        return new SimpleMatrix(ret.length, 1, false, ret);
-    }
-
     private static class AMatrixInitializer<S extends State, A extends Action> implements
-            Callable<SimpleMatrix> {
+            Callable<double[]> {
         private final int start;
         private final int end;
         private final MDP<S, A> instance;
         private final LvfFactory constructor;
         private final List<S> states;
+        private final int bases;
 
         public AMatrixInitializer(int thread, int threads, List<S> states, LvfFactory constructor,
-                MDP<S, A> instance) {
+                MDP<S, A> instance, int bases) {
             this.start = thread * states.size() / threads;
             this.end = (thread + 1) * states.size() / threads;
             this.instance = instance;
             this.constructor = constructor;
             this.states = states;
+            this.bases = bases;
         }
 
         @Override
-        public SimpleMatrix call() {
-            int bases = constructor.generateBases(instance.vectorFromState(states.get(0))).length;
-            SimpleMatrix aMatrixBase = new SimpleMatrix(bases, bases);
+        public double[] call() {
+            double[] aMatrixBase = new double[bases * bases];
             for (int s = start; s < end; s++) {
-                double[] phiValues = constructor.generateBases(instance.vectorFromState(states.get(s)));
-                SimpleMatrix phi = new SimpleMatrix(bases, 1, true, phiValues);
-                aMatrixBase = aMatrixBase.plus(phi.mult(phi.transpose()));
+                double[] phi = constructor.generateBases(instance.vectorFromState(states.get(s)));
+                LstdqAccumulator.addOuterProduct(aMatrixBase, phi);
             }
             return aMatrixBase;
         }
     }
 
-    private static class MatrixPair {
-        private final SimpleMatrix a;
-        private final SimpleMatrix b;
-
-        public MatrixPair(SimpleMatrix a, SimpleMatrix b) {
-            this.a = a;
-            this.b = b;
-        }
-    }
-
-    private class MatrixAdder implements Callable<MatrixPair> {
+    private class MatrixAdder implements Callable<LstdqAccumulator> {
         private final int start;
         private final int end;
         private final Policy<S, A> policy;
@@ -186,65 +164,61 @@ public class MultithreadedLSTDQ<S extends State, A extends Action> implements Lv
         }
 
         @Override
-        public MatrixPair call() {
-            int bases = aMatrixBase.getMatrix().numCols;
+        public LstdqAccumulator call() {
             A[] actions = instance.getActions();
-            double[][] aMatrix = new double[bases * actions.length][bases * actions.length];
-            SimpleMatrix bMatrix = new SimpleMatrix(bases * actions.length, 1);
+            LstdqAccumulator acc = LstdqAccumulator.of(bases, actions.length);
             double gamma = instance.getDiscountFactor();
             for (int s = start; s < end; s++) {
+                S startState = states.get(s);
+                double[] phi1 = null;
                 for (int a = 0; a < actions.length; a++) {
                     A action = actions[a];
-                    S endState = instance.simulate(states.get(s), action);
+                    S endState = instance.simulate(startState, action);
                     if (instance.isTerminal(endState)) {
                         continue;
                     }
-                    SimpleMatrix phi1 = new SimpleMatrix(bases,
-                            1,
-                            false,
-                            constructor.generateBases(instance.vectorFromState(states.get(s))));
-                    int a2 = policy.getAction(endState).ordinal();
-                    SimpleMatrix phi2 = new SimpleMatrix(bases,
-                            1,
-                            false,
-                            constructor.generateBases(instance.vectorFromState(endState)));
-
-                    SimpleMatrix addOn = phi1.mult(phi2.transpose());
-                    for (int i = 0; i < bases; i++) {
-                        for (int j = 0; j < bases; j++) {
-                            aMatrix[i + a * bases][j + a2 * bases] -= gamma * addOn.get(i, j);
-                        }
+                    if (phi1 == null) {
+                        phi1 = constructor.generateBases(instance.vectorFromState(startState));
                     }
-                    phi1 = stretch(phi1, a, actions.length);
-                    bMatrix = bMatrix.plus(phi1.scale(instance.getReward(states.get(s),
-                            action,
-                            endState)));
+                    int a2 = policy.getAction(endState).ordinal();
+                    double[] phi2 = constructor.generateBases(instance.vectorFromState(endState));
+                    acc.add(phi1,
+                            a,
+                            phi2,
+                            a2,
+                            gamma,
+                            instance.getReward(startState, action, endState));
                 }
             }
-            return new MatrixPair(new SimpleMatrix(aMatrix), bMatrix);
+            return acc;
         }
     }
 
     @Override
     public QValue<S, A> approximateQValueOf(Policy<S, A> policy) {
-        CompletionService<MatrixPair> service = new ExecutorCompletionService<MatrixPair>(exec);
+        long time = System.currentTimeMillis();
+        CompletionService<LstdqAccumulator> service;
+        service = new ExecutorCompletionService<LstdqAccumulator>(exec);
         for (int thread = 0; thread < this.threads; thread++) {
             service.submit(new MatrixAdder(thread, policy));
         }
-        SimpleMatrix a = new SimpleMatrix(generateA());
-        SimpleMatrix b = new SimpleMatrix(a.numRows(), 1);
+        LstdqAccumulator total = null;
         try {
             for (int thread = 0; thread < this.threads; thread++) {
-                MatrixPair pair = service.take().get();
-                a = a.plus(pair.a);
-                b = b.plus(pair.b);
+                LstdqAccumulator part = service.take().get();
+                if (total == null) {
+                    total = part;
+                } else {
+                    total.add(part);
+                }
             }
         } catch (Exception e) {
             System.err.println("Concurency problem!");
             throw new RuntimeException(e);
         }
-        // System.out.println(a);
-        return qValueFromWeights(a.solve(b));
+        total.addBlockDiagonal(aMatrixBase);
+        LSTDQ.reportThroughput(total.getSamples(), System.currentTimeMillis() - time);
+        return qValueFromWeights(total.solve());
     }
 
     private QValue<S, A> qValueFromWeights(SimpleMatrix weights) {
@@ -22,10 +22,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import drl.math.RandomSource;
 import drl.math.geom.Vector;
 import drl.math.vfa.LvfFactory;
 import drl.math.vfa.ValueFunction;
@@ -58,6 +61,8 @@ public class MultithreadedRolloutApproximator<S extends State, A extends Action>
     private final LvfFactory constructor;
     private final int threads;
     private final ExecutorService exec;
+    // Counts calls to approximateQValueOf, so every call gets fresh streams.
+    private final AtomicInteger rounds = new AtomicInteger();
 
     private MultithreadedRolloutApproximator(LvfFactory constructor, MDP<S, A> instance,
             SimpleMatrix multiplier, List<S> states, ExecutorService exec, int threads) {
@@ -123,16 +128,27 @@ public class MultithreadedRolloutApproximator<S extends State, A extends Action>
         private final int end;
         private final Policy<S, A> policy;
         private final A[] actions;
+        private final SplittableRandom random;
 
-        public QValueComputer(int thread, Policy<S, A> policy, A[] actions) {
+        public QValueComputer(int thread, int round, Policy<S, A> policy, A[] actions) {
             this.start = thread * states.size() / threads;
             this.end = (thread + 1) * states.size() / threads;
             this.policy = policy;
             this.actions = actions;
+            this.random = RandomSource.derive(RandomSource.ROLLOUT_APPROXIMATOR, round, thread);
         }
 
         @Override
         public Map<A, double[]> call() throws Exception {
+            SplittableRandom old = RandomSource.use(random);
+            try {
+                return compute();
+            } finally {
+                RandomSource.use(old);
+            }
+        }
+
+        private Map<A, double[]> compute() {
             Map<A, double[]> ret = new HashMap<A, double[]>();
             for (A action : actions) {
                 double[] values = new double[end - start];
@@ -174,13 +190,17 @@ public class MultithreadedRolloutApproximator<S extends State, A extends Action>
     @Override
     public QValue<S, A> approximateQValueOf(Policy<S, A> policy) {
         List<Future<Map<A, double[]>>> results = new ArrayList<Future<Map<A, double[]>>>(threads);
+        int round = rounds.getAndIncrement();
         for (int thread = 1; thread < this.threads; thread++) {
-            results.add(exec.submit(new QValueComputer(thread, policy, instance.getActions())));
+            results.add(exec.submit(new QValueComputer(thread,
+                    round,
+                    policy,
+                    instance.getActions())));
         }
 
         Map<A, double[]> qValues = null;
         try {
-            qValues = new QValueComputer(0, policy, instance.getActions()).call();
+            qValues = new QValueComputer(0, round, policy, instance.getActions()).call();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
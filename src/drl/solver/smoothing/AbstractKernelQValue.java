@@ -45,11 +45,14 @@ abstract class AbstractKernelQValue<S extends State, A extends Action> implement
 
     @Override
     public A getAction(S state) {
+        A[] actions = mdp.getActions();
+        double[] values = new double[actions.length];
+        getValues(mdp.vectorFromState(state), values);
         double bestValue = Double.NEGATIVE_INFINITY;
         A bestAction = null;
 
-        for (A a : mdp.getActions()) {
-            double value = getValue(state, a);
+        for (A a : actions) {
+            double value = values[a.ordinal()];
             if (value > bestValue) {
                 bestValue = value;
                 bestAction = a;
@@ -60,11 +63,7 @@ abstract class AbstractKernelQValue<S extends State, A extends Action> implement
 
     @Override
     public double getValue(S state) {
-        double val = Double.NEGATIVE_INFINITY;
-        for (A action : mdp.getActions()) {
-            val = Math.max(val, getValue(state, action));
-        }
-        return val;
+        return getMaxValue(mdp.vectorFromState(state), new double[mdp.getActions().length]);
     }
 
     @Override
@@ -89,6 +88,35 @@ abstract class AbstractKernelQValue<S extends State, A extends Action> implement
      */
     protected abstract double getValue(Vector x, A action);
 
+    /**
+     * Computes the Q-values of every action at once. Subclasses should
+     * override this when the actions can share work.
+     * 
+     * @param x
+     *            The Vector representation of a state
+     * @param out
+     *            Receives Q(x, a) at index {@code a.ordinal()}.
+     */
+    protected void getValues(Vector x, double[] out) {
+        for (A a : mdp.getActions()) {
+            out[a.ordinal()] = getValue(x, a);
+        }
+    }
+
+    /**
+     * @param scratch
+     *            Space for one value per action.
+     * @return The maximum over actions of Q(x, a).
+     */
+    protected double getMaxValue(Vector x, double[] scratch) {
+        getValues(x, scratch);
+        double val = Double.NEGATIVE_INFINITY;
+        for (double d : scratch) {
+            val = Math.max(val, d);
+        }
+        return val;
+    }
+
     /**
      * 
      * @param b
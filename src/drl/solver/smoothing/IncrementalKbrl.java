@@ -0,0 +1,392 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.solver.smoothing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import drl.math.algs.MetricForest;
+import drl.math.algs.MetricTree;
+import drl.math.geom.Vector;
+import drl.math.tfs.DistanceFunction;
+import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
+import drl.mdp.api.State;
+import drl.mdp.utils.Transition;
+
+/**
+ * KBRL over a growing set of sample transitions. New transitions are appended
+ * with values interpolated from the current Q-values, after which only the
+ * samples whose backups read the new data are updated, spreading outwards
+ * while values keep changing and up to a fixed budget per new transition.
+ * The cost of {@link #add} therefore depends on the size of the batch and the
+ * neighbourhood it touches rather than on the total number of samples.
+ * <p>
+ * Kernel sums are restricted to samples within {@code cutoff * bandwidth},
+ * found through {@link MetricForest}s over the start and end vectors of each
+ * action, so the metric of every action must satisfy the triangle inequality.
+ * The end vectors are indexed once for every distinct metric, since the
+ * backups that read the samples of an action measure distances with that
+ * action's metric. Actions without samples are ignored by the backups, and
+ * the value of a state is 0 while there are no samples at all.
+ * Instances are mutable and not thread safe; use {@link #snapshot()} to get
+ * an immutable {@link KernelQValue}.
+ * 
+ * @author Dawit
+ * 
+ */
+public class IncrementalKbrl<S extends State, A extends Action> extends AbstractKernelQValue<S, A> {
+
+    private final MDP<S, A> mdp;
+    private final ActionDistanceFn<A> adf;
+    private final double bandwidth;
+    private final double cutoff;
+    private final double gamma;
+    private int updatesPerSample = 50;
+    private double tolerance = .0001;
+
+    private final List<List<Transition<S, A>>> transitions;
+    private final MetricForest[] startIndex;
+    // endIndex[m][b] holds the end vectors of action b under metric m.
+    private final MetricForest[][] endIndex;
+    // The index into endIndex of the metric of each action.
+    private final int[] metricOf;
+    private double[][] rewards;
+    private boolean[][] terminal;
+    private double[][] values;
+    private boolean[][] queued;
+
+    private IncrementalKbrl(MDP<S, A> mdp, ActionDistanceFn<A> adf, double bandwidth,
+            double cutoff) {
+        super(mdp);
+        if (cutoff <= 0) {
+            throw new IllegalArgumentException("Cutoff must be positive: " + cutoff);
+        }
+        this.mdp = mdp;
+        this.adf = adf;
+        this.bandwidth = bandwidth;
+        this.cutoff = cutoff;
+        this.gamma = mdp.getDiscountFactor();
+        int n = mdp.getActions().length;
+        transitions = new ArrayList<List<Transition<S, A>>>(n);
+        startIndex = new MetricForest[n];
+        metricOf = new int[n];
+        rewards = new double[n][16];
+        terminal = new boolean[n][16];
+        values = new double[n][16];
+        queued = new boolean[n][16];
+        List<DistanceFunction> metrics = new ArrayList<DistanceFunction>();
+        for (A action : mdp.getActions()) {
+            transitions.add(new ArrayList<Transition<S, A>>());
+            DistanceFunction df = adf.get(action);
+            startIndex[action.ordinal()] = MetricForest.of(df);
+            if (!metrics.contains(df)) {
+                metrics.add(df);
+            }
+            metricOf[action.ordinal()] = metrics.indexOf(df);
+        }
+        endIndex = new MetricForest[metrics.size()][n];
+        for (int m = 0; m < metrics.size(); m++) {
+            for (int b = 0; b < n; b++) {
+                endIndex[m][b] = MetricForest.of(metrics.get(m));
+            }
+        }
+    }
+
+    /**
+     * Creates an engine without any samples.
+     * 
+     * @param cutoff
+     *            The radius of the kernel sums in units of the bandwidth (see
+     *            {@link KernelQValue#DEFAULT_CUTOFF}).
+     */
+    public static <S extends State, A extends Action> IncrementalKbrl<S, A> of(MDP<S, A> mdp,
+            ActionDistanceFn<A> adf, double bandwidth, double cutoff) {
+        return new IncrementalKbrl<S, A>(mdp, adf, bandwidth, cutoff);
+    }
+
+    /**
+     * Creates an engine holding the samples and values of an existing
+     * solution, which is typically the result of a full KBRL solve.
+     */
+    public static <S extends State, A extends Action> IncrementalKbrl<S, A> of(
+            KernelQValue<S, A> qvf, MDP<S, A> mdp, double cutoff) {
+        IncrementalKbrl<S, A> ret = new IncrementalKbrl<S, A>(mdp,
+                qvf.getActionDistanceFn(),
+                qvf.getBandwidth(),
+                cutoff);
+        SampleTransitions<S, A> samples = qvf.getSamples();
+        double[][] vals = qvf.copyValues();
+        for (A action : mdp.getActions()) {
+            int a = action.ordinal();
+            ret.append(a, samples.get(action), vals[a]);
+        }
+        return ret;
+    }
+
+    /**
+     * Set the maximum number of local updates per new transition made by
+     * {@link #add}. Defaults to 50.
+     * 
+     * @return {@code this}
+     */
+    public IncrementalKbrl<S, A> setUpdateBudget(int updatesPerSample) {
+        this.updatesPerSample = updatesPerSample;
+        return this;
+    }
+
+    /**
+     * Set the change in value below which updates stop spreading. Defaults to
+     * .0001.
+     * 
+     * @return {@code this}
+     */
+    public IncrementalKbrl<S, A> setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * @return The number of samples of {@code action}.
+     */
+    public int size(A action) {
+        return transitions.get(action.ordinal()).size();
+    }
+
+    /**
+     * Adds a batch of transitions, of any actions, and updates the values of
+     * the samples near them.
+     * 
+     * @return The number of local updates made.
+     */
+    public int add(List<Transition<S, A>> batch) {
+        long time = System.currentTimeMillis();
+        A[] actions = mdp.getActions();
+        List<List<Transition<S, A>>> byAction = new ArrayList<List<Transition<S, A>>>();
+        List<double[]> initial = new ArrayList<double[]>();
+        double[] scratch = new double[actions.length];
+        for (A action : actions) {
+            byAction.add(new ArrayList<Transition<S, A>>());
+        }
+        for (Transition<S, A> t : batch) {
+            byAction.get(t.getAction().ordinal()).add(t);
+        }
+        for (A action : actions) {
+            List<Transition<S, A>> ts = byAction.get(action.ordinal());
+            double[] vals = new double[ts.size()];
+            for (int i = 0; i < vals.length; i++) {
+                if (!mdp.isTerminal(ts.get(i).getEndState())) {
+                    vals[i] = getMaxValue(ts.get(i).getEndVector(), scratch);
+                }
+            }
+            initial.add(vals);
+        }
+
+        ArrayDeque<Long> queue = new ArrayDeque<Long>();
+        for (A action : actions) {
+            int a = action.ordinal();
+            int first = size(action);
+            append(a, byAction.get(a), initial.get(a));
+            for (int i = first; i < size(action); i++) {
+                enqueue(queue, a, i);
+            }
+        }
+        for (Transition<S, A> t : batch) {
+            enqueueReaders(queue, t.getStartVector(), t.getAction().ordinal());
+        }
+        int updates = propagate(queue, updatesPerSample * batch.size());
+        System.out.println("Added " + batch.size() + " transitions with " + updates
+                + " local updates in " + (System.currentTimeMillis() - time) + " ms");
+        return updates;
+    }
+
+    /**
+     * Performs full in-place sweeps over every sample, for instance to tighten
+     * the values after many batches.
+     * 
+     * @param steps
+     *            The maximum number of sweeps.
+     * @return The span of the changes made by the last sweep.
+     */
+    public double solve(int steps) {
+        double[] scratch = new double[mdp.getActions().length];
+        double diff = Double.POSITIVE_INFINITY;
+        for (int trial = 0; trial < steps && diff >= tolerance; trial++) {
+            double max = Double.NEGATIVE_INFINITY;
+            double min = Double.POSITIVE_INFINITY;
+            for (int a = 0; a < values.length; a++) {
+                for (int i = 0; i < transitions.get(a).size(); i++) {
+                    double val = backup(a, i, scratch);
+                    max = Math.max(max, val - values[a][i]);
+                    min = Math.min(min, val - values[a][i]);
+                    values[a][i] = val;
+                }
+            }
+            diff = max - min;
+            System.out.println("#" + diff + " on iteration" + trial);
+        }
+        return diff;
+    }
+
+    /**
+     * @return An immutable KernelQValue with the current samples and values.
+     *         It sums the kernel over the same neighbourhoods as {@code this}.
+     */
+    public KernelQValue<S, A> snapshot() {
+        Map<A, List<Transition<S, A>>> data = new Hashtable<A, List<Transition<S, A>>>();
+        double[][] vals = new double[values.length][];
+        for (A action : mdp.getActions()) {
+            int a = action.ordinal();
+            data.put(action, new ArrayList<Transition<S, A>>(transitions.get(a)));
+            vals[a] = Arrays.copyOf(values[a], transitions.get(a).size());
+        }
+        SampleTransitions<S, A> samples = new SampleTransitions<S, A>(mdp, data);
+        return KernelQValue.of(mdp, samples, adf, bandwidth).update(vals).withSpatialIndex(cutoff);
+    }
+
+    @Override
+    public AbstractKernelQValue<S, A> withBandwidth(double b) {
+        return snapshot().withBandwidth(b);
+    }
+
+    @Override
+    protected double getValue(Vector x, A action) {
+        final int a = action.ordinal();
+        final double[] acc = new double[2];
+        MetricForest forest = startIndex[a];
+        forest.range(x, cutoff * bandwidth, new MetricTree.Visitor() {
+
+            @Override
+            public void visit(int index, double distance) {
+                double k = KbUtils.gaussian(distance, bandwidth);
+                acc[0] += k;
+                acc[1] += k * (rewards[a][index] + gamma * values[a][index]);
+            }
+        });
+        if (acc[0] > 0) {
+            return acc[1] / acc[0];
+        }
+        int closest = forest.nearest(x);
+        if (closest < 0) {
+            return Double.NaN;
+        }
+        return rewards[a][closest] + gamma * values[a][closest];
+    }
+
+    /**
+     * Skips the actions without samples, and returns 0 if no action has any.
+     */
+    @Override
+    protected double getMaxValue(Vector x, double[] scratch) {
+        double val = Double.NEGATIVE_INFINITY;
+        for (A action : mdp.getActions()) {
+            if (startIndex[action.ordinal()].size() > 0) {
+                val = Math.max(val, getValue(x, action));
+            }
+        }
+        return val == Double.NEGATIVE_INFINITY ? 0 : val;
+    }
+
+    private double backup(int a, int i, double[] scratch) {
+        if (terminal[a][i]) {
+            return 0;
+        }
+        return getMaxValue(endIndex[0][a].get(i), scratch);
+    }
+
+    private void append(int a, List<Transition<S, A>> ts, double[] vals) {
+        int size = transitions.get(a).size();
+        int needed = size + ts.size();
+        if (needed > values[a].length) {
+            int capacity = Math.max(needed, 2 * values[a].length);
+            rewards[a] = Arrays.copyOf(rewards[a], capacity);
+            terminal[a] = Arrays.copyOf(terminal[a], capacity);
+            values[a] = Arrays.copyOf(values[a], capacity);
+            queued[a] = Arrays.copyOf(queued[a], capacity);
+        }
+        List<Vector> starts = new ArrayList<Vector>(ts.size());
+        List<Vector> ends = new ArrayList<Vector>(ts.size());
+        for (int k = 0; k < ts.size(); k++) {
+            Transition<S, A> t = ts.get(k);
+            rewards[a][size + k] = t.getReward();
+            terminal[a][size + k] = mdp.isTerminal(t.getEndState());
+            values[a][size + k] = vals[k];
+            starts.add(t.getStartVector());
+            ends.add(t.getEndVector());
+        }
+        transitions.get(a).addAll(ts);
+        startIndex[a].addAll(starts);
+        for (MetricForest[] forests : endIndex) {
+            forests[a].addAll(ends);
+        }
+    }
+
+    private void enqueue(ArrayDeque<Long> queue, int a, int i) {
+        if (!queued[a][i]) {
+            queued[a][i] = true;
+            queue.add(((long) a << 32) | i);
+        }
+    }
+
+    /**
+     * Queues every sample whose backup sums over a sample of action {@code a}
+     * starting at {@code x}, measuring with the metric of {@code a}.
+     */
+    private void enqueueReaders(final ArrayDeque<Long> queue, Vector x, int a) {
+        MetricForest[] forests = endIndex[metricOf[a]];
+        for (int b = 0; b < forests.length; b++) {
+            final int action = b;
+            forests[b].range(x, cutoff * bandwidth, new MetricTree.Visitor() {
+
+                @Override
+                public void visit(int index, double distance) {
+                    enqueue(queue, action, index);
+                }
+            });
+        }
+    }
+
+    private int propagate(ArrayDeque<Long> queue, int budget) {
+        double[] scratch = new double[mdp.getActions().length];
+        int updates = 0;
+        while (!queue.isEmpty() && updates < budget) {
+            long id = queue.poll();
+            int a = (int) (id >>> 32);
+            int i = (int) id;
+            queued[a][i] = false;
+            double val = backup(a, i, scratch);
+            double delta = Math.abs(val - values[a][i]);
+            values[a][i] = val;
+            updates++;
+            if (delta > tolerance) {
+                enqueueReaders(queue, startIndex[a].get(i), a);
+            }
+        }
+        while (!queue.isEmpty()) {
+            long id = queue.poll();
+            queued[(int) (id >>> 32)][(int) id] = false;
+        }
+        return updates;
+    }
+
+}
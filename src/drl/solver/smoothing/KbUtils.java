@@ -24,12 +24,10 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-
-import org.ejml.simple.SimpleMatrix;
 
 import drl.math.geom.Vector;
 import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.EmbeddingDF;
 import drl.math.tfs.EuclideanDF;
 import drl.math.tfs.Normalizer;
 import drl.math.tfs.ValueSmoothingDF;
@@ -84,7 +82,7 @@ public class KbUtils {
             for (A a : mdp.getActions()) {
                 mp.put(a, lst);
             }
-            transitions = new SampleTransitions<S, A>(mp);
+            transitions = new SampleTransitions<S, A>(mdp, mp);
         }
         if (oldDf == null) {
             oldDf = ActionDistanceFn.of(mdp.getActions(), EuclideanDF.instance);
@@ -95,20 +93,16 @@ public class KbUtils {
             double ySpread = qvf.getMaxValue(a) - qvf.getMinValue(a);
             DistanceFunction df = ValueSmoothingDF.of(oldDf.get(a), qvf.getValue(a), ySpread
                     / xSpread, .5, threadSafe);
-            int i = 0;
-            for (Transition<S, A> transition : transitions.get(a)) {
-                i++;
-                df.memoize(transition.getStartVector());
+            for (Vector x : transitions.getStartVectors(a.ordinal())) {
+                df.memoize(x);
             }
-            adfMap.put(a, df);
+            adfMap.put(a, EmbeddingDF.flatten(df));
             System.out.println("Finished processing action: " + a);
         }
         ActionDistanceFn<A> adf = new ActionDistanceFn<A>(adfMap);
         for (A a : mdp.getActions()) {
-            int i = 0;
-            for (Transition<S, A> transition : transitions.get(a)) {
-                i++;
-                adf.memoize(transition.getEndVector());
+            for (Vector y : transitions.getEndVectors(a.ordinal())) {
+                adf.memoize(y);
             }
             System.out.println("Finished memoizing for action: " + a);
         }
@@ -148,7 +142,7 @@ public class KbUtils {
             }
             transitionData.put(action, data);
         }
-        return new SampleTransitions<S, A>(transitionData);
+        return new SampleTransitions<S, A>(mdp, transitionData);
     }
 
     /**
@@ -176,80 +170,7 @@ public class KbUtils {
             }
             transitionData.put(action, data);
         }
-        return new SampleTransitions<S, A>(transitionData);
+        return new SampleTransitions<S, A>(mdp, transitionData);
     }
 
-    static SimpleMatrix makeK(Vector[] xs, Vector[] rxs, DistanceFunction df, double bandwidth) {
-        double[][] kMat = new double[rxs.length][xs.length];
-        for (int j = 0; j < rxs.length; j++) {
-            double sum = 0;
-            for (int i = 0; i < xs.length; i++) {
-                kMat[j][i] = gaussian(df.distance(rxs[j], xs[i]), bandwidth);
-                sum += kMat[j][i];
-            }
-            if (sum == 0.0) {
-                System.out.println("All-zero row in K matrix. Bandwidth too small?");
-                int indexOfClosest = -1;
-                double closest = Double.POSITIVE_INFINITY;
-                for (int i = 0; i < xs.length; i++) {
-                    double dist = df.distance(rxs[j], xs[i]);
-                    if (dist < closest) {
-                        closest = dist;
-                        indexOfClosest = i;
-                    }
-                }
-                kMat[j][indexOfClosest] = 1.0;
-            } else {
-                for (int i = 0; i < xs.length; i++) {
-                    kMat[j][i] /= sum;
-                }
-            }
-        }
-        return new SimpleMatrix(kMat);
-    }
-
-    static class ValueIterator<S extends State, A extends Action> implements Callable<double[][]> {
-        private final int start;
-        private final int end;
-        private final MDP<S, A> mdp;
-        private final SampleTransitions<S, A> samples;
-        private final AbstractKernelQValue<S, A> qval;
-
-        public ValueIterator(int thread, int threads, SampleTransitions<S, A> samples,
-                AbstractKernelQValue<S, A> qval, MDP<S, A> mdp) {
-            int numStates = samples.get(mdp.getActions()[0]).size();
-            this.start = thread * numStates / threads;
-            this.end = (thread + 1) * numStates / threads;
-            this.samples = samples;
-            this.qval = qval;
-            this.mdp = mdp;
-        }
-
-        public static <S extends State, A extends Action> ValueIterator<S, A> of(int thread,
-                int threads, SampleTransitions<S, A> samples, AbstractKernelQValue<S, A> qval,
-                MDP<S, A> mdp) {
-            return new ValueIterator<S, A>(thread, threads, samples, qval, mdp);
-        }
-
-        @Override
-        public double[][] call() throws Exception {
-            double[][] ret = new double[mdp.getActions().length][end - start];
-            for (A action : mdp.getActions()) {
-                int a = action.ordinal();
-                List<Transition<S, A>> ts = samples.get(action);
-                for (int i = start; i < end; i++) {
-                    double val = Double.NEGATIVE_INFINITY;
-                    if (mdp.isTerminal(ts.get(i).getEndState())) {
-                        val = 0;
-                    } else {
-                        for (A a2 : mdp.getActions()) {
-                            val = Math.max(val, qval.getValue(ts.get(i).getEndVector(), a2));
-                        }
-                    }
-                    ret[a][i - start] = val;
-                }
-            }
-            return ret;
-        }
-    }
 }
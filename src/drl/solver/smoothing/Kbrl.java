@@ -18,15 +18,14 @@
 
 package drl.solver.smoothing;
 
+import java.util.Arrays;
 import java.util.List;
 
-import drl.math.MathUtils;
 import drl.math.geom.Vector;
 import drl.math.tfs.DistanceFunction;
 import drl.mdp.api.Action;
 import drl.mdp.api.MDP;
 import drl.mdp.api.State;
-import drl.mdp.utils.Transition;
 
 import org.ejml.simple.SimpleMatrix;
 
@@ -62,11 +61,27 @@ public class Kbrl {
     public static <S extends State, A extends Action> KernelQValue<S, A> solveByKbsf(
             MDP<S, A> instance, List<S> repStates, SampleTransitions<S, A> samples,
             ActionDistanceFn<A> adf, double bandwidth, int steps) {
+        return solveByKbsf(instance, repStates, samples, adf, bandwidth, steps, null);
+    }
+
+    /**
+     * Solve an MDP using KBSF, starting value iteration from the given values
+     * of the representative states.
+     * 
+     * @param repValues
+     *            The initial values of the representative states, for
+     *            instance those of a previous call with a slightly different
+     *            metric. On return, it holds the final values. May be
+     *            {@code null} to start from zero.
+     * @see #solveByKbsf(MDP, List, SampleTransitions, ActionDistanceFn, double,
+     *      int)
+     */
+    public static <S extends State, A extends Action> KernelQValue<S, A> solveByKbsf(
+            MDP<S, A> instance, List<S> repStates, SampleTransitions<S, A> samples,
+            ActionDistanceFn<A> adf, double bandwidth, int steps, double[] repValues) {
         System.out.println("Starting KBSF");
-        List<Transition<S, A>> tList = samples.get(instance.getActions()[0]);
-        Vector[] xs = new Vector[tList.size()];
+        Vector[] xs = samples.getStartVectors(0).clone();
         for (int i = 0; i < xs.length; i++) {
-            xs[i] = tList.get(i).getStartVector();
             adf.memoize(xs[i]);
         }
         Vector[] rxs = new Vector[repStates.size()];
@@ -79,12 +94,11 @@ public class Kbrl {
         SimpleMatrix[] repRewards = new SimpleMatrix[ys.length];
         for (A action : instance.getActions()) {
             int a = action.ordinal();
-            List<Transition<S, A>> ts = samples.get(action);
             DistanceFunction df = adf.get(action);
             for (int i = 0; i < xs.length; i++) {
-                ys[a][i] = ts.get(i).getEndVector();
+                ys[a][i] = samples.getEndVector(a, i);
                 df.memoize(ys[a][i]);
-                rewards[a][i] = ts.get(i).getReward();
+                rewards[a][i] = samples.getReward(a, i);
             }
         }
 
@@ -102,37 +116,12 @@ public class Kbrl {
         SimpleMatrix kMat = null;
         for (A action : instance.getActions()) {
             DistanceFunction df = adf.get(action);
+            KernelMatrixBuilder builder = KernelMatrixBuilder.of(df, bandwidth);
             if (!uniqueDf || kMat == null) {
-                kMat = KbUtils.makeK(xs, rxs, df, bandwidth);
+                kMat = builder.dense(rxs, xs);
             }
             System.out.println("Preprocessing action " + action);
             int a = action.ordinal();
-            double[][] dMat = new double[xs.length][repStates.size()];
-            for (int i = 0; i < xs.length; i++) {
-                for (int j = 0; j < repStates.size(); j++) {
-                    dMat[i][j] = KbUtils.gaussian(df.distance(ys[a][i], rxs[j]), bandwidth);
-                }
-            }
-            for (int i = 0; i < xs.length; i++) {
-                double sum = MathUtils.sum(dMat[i]);
-                if (sum == 0.0) {
-                    System.out.println("All-zero row in transition matrix. Bandwidth too small?");
-                    int indexOfClosest = -1;
-                    double closest = Double.POSITIVE_INFINITY;
-                    for (int j = 0; j < repStates.size(); j++) {
-                        double dist = df.distance(ys[a][i], rxs[j]);
-                        if (dist < closest) {
-                            closest = dist;
-                            indexOfClosest = j;
-                        }
-                    }
-                    dMat[i][indexOfClosest] = 1.0;
-                } else {
-                    for (int j = 0; j < repStates.size(); j++) {
-                        dMat[i][j] /= sum;
-                    }
-                }
-            }
             double[] vals = new double[repStates.size()];
             for (int j = 0; j < repStates.size(); j++) {
                 for (int i = 0; i < xs.length; i++) {
@@ -140,7 +129,7 @@ public class Kbrl {
                 }
             }
             repRewards[action.ordinal()] = new SimpleMatrix(vals.length, 1, false, vals);
-            dMatrix[action.ordinal()] = new SimpleMatrix(dMat);
+            dMatrix[action.ordinal()] = builder.dense(ys[a], rxs);
             pMatrix[action.ordinal()] = kMat.mult(dMatrix[action.ordinal()]);
         }
 
@@ -148,8 +137,11 @@ public class Kbrl {
         for (int i = 0; i < qValues.length; i++) {
             qValues[i] = repRewards[i];
         }
-        SimpleMatrix values = new SimpleMatrix(repStates.size(), 1);
-        for (int i = 0; i < steps; i++) {
+        boolean warm = !isZero(repValues);
+        SimpleMatrix values = warm ? new SimpleMatrix(repValues.length, 1, false, repValues)
+                : new SimpleMatrix(repStates.size(), 1);
+        int i = 0;
+        for (; i < steps; i++) {
             // SimpleMatrix[] newVals = new SimpleMatrix[ys.length];
             for (int a = 0; a < ys.length; a++) {
                 qValues[a] = repRewards[a].plus(instance.getDiscountFactor(),
@@ -173,17 +165,22 @@ public class Kbrl {
             }
             values = newVals;
             if (max - min < .00001) {
-                System.out.println("Computation converged in " + i + " iterations.");
                 break;
             }
         }
+        reportRounds(i, steps, warm);
+        if (repValues != null) {
+            for (int j = 0; j < repValues.length; j++) {
+                repValues[j] = values.get(j);
+            }
+        }
         for (int a = 0; a < ys.length; a++) {
             qValues[a] = dMatrix[a].mult(qValues[a]);
         }
         double[][] qValArray = new double[qValues.length][xs.length];
         for (int a = 0; a < ys.length; a++) {
-            for (int i = 0; i < qValArray[a].length; i++) {
-                qValArray[a][i] = qValues[a].get(i);
+            for (int s = 0; s < qValArray[a].length; s++) {
+                qValArray[a][s] = qValues[a].get(s);
             }
         }
 
@@ -191,41 +188,344 @@ public class Kbrl {
         return qval.update(qValArray);
     }
 
+    /**
+     * Solve an MDP using KBSF without forming the representative-state
+     * transition matrices. The stochastic factors {@code K} and {@code D_a}
+     * are stored as sparse matrices and applied to the values on every round,
+     * so memory grows with the number of samples times the number of
+     * representative states rather than with the square of the latter.
+     * 
+     * @param instance
+     *            The MDP to be solved.
+     * @param repStates
+     *            The representative states.
+     * @param samples
+     *            The sample transitions.
+     * @param adf
+     *            The action dependent metric.
+     * @param bandwidth
+     *            The bandwidth to use.
+     * @param steps
+     *            The maximum number of rounds of value iteration to perform.
+     * @return The resulting Q-values.
+     */
+    public static <S extends State, A extends Action> KernelQValue<S, A> solveByFactoredKbsf(
+            MDP<S, A> instance, List<S> repStates, SampleTransitions<S, A> samples,
+            ActionDistanceFn<A> adf, double bandwidth, int steps) {
+        return solveByFactoredKbsf(instance,
+                repStates,
+                samples,
+                adf,
+                bandwidth,
+                steps,
+                0,
+                0,
+                null);
+    }
+
+    /**
+     * Solve an MDP using factored KBSF with sparsified factors. Every row of
+     * {@code K} and {@code D_a} keeps only its largest kernel weights and is
+     * renormalized.
+     * 
+     * @param neighbors
+     *            The number of weights to keep per row, that is, the number of
+     *            nearest samples of a representative state and of nearest
+     *            representative states of a sample. Set to 0 for no limit.
+     * @param threshold
+     *            Weights below this fraction of the sum of their row are
+     *            dropped. Set to 0 to keep them.
+     * @param repValues
+     *            The initial values of the representative states, overwritten
+     *            with the final values. May be {@code null} to start from
+     *            zero.
+     * @see #solveByFactoredKbsf(MDP, List, SampleTransitions, ActionDistanceFn,
+     *      double, int)
+     */
+    public static <S extends State, A extends Action> KernelQValue<S, A> solveByFactoredKbsf(
+            MDP<S, A> instance, List<S> repStates, SampleTransitions<S, A> samples,
+            ActionDistanceFn<A> adf, double bandwidth, int steps, int neighbors, double threshold,
+            double[] repValues) {
+        System.out.println("Starting factored KBSF");
+        KbsfOperator op = KbsfOperator.compile(instance,
+                repStates,
+                samples,
+                adf,
+                bandwidth,
+                neighbors,
+                threshold);
+        long time = System.currentTimeMillis();
+        int m = op.getNumReps();
+        double[][] qValues = new double[op.getNumActions()][m];
+        boolean warm = !isZero(repValues);
+        double[] values = warm ? Arrays.copyOf(repValues, m) : new double[m];
+        double[] news = new double[m];
+        double[] scratch = new double[samples.size(0)];
+        int i = 0;
+        for (; i < steps; i++) {
+            double diff = op.sweep(values, news, qValues, scratch);
+            double[] temp = values;
+            values = news;
+            news = temp;
+            report(diff, i, time);
+            if (diff < .00001) {
+                break;
+            }
+        }
+        reportRounds(i, steps, warm);
+        if (repValues != null) {
+            System.arraycopy(values, 0, repValues, 0, m);
+        }
+        double[][] qValArray = new double[qValues.length][samples.size(0)];
+        for (int a = 0; a < qValues.length; a++) {
+            op.toSamples(a, qValues[a], qValArray[a]);
+        }
+        KernelQValue<S, A> qval = KernelQValue.of(instance, samples, adf, bandwidth);
+        return qval.update(qValArray);
+    }
+
     public static <S extends State, A extends Action> KernelQValue<S, A> solve(
             KernelQValue<S, A> qval, MDP<S, A> mdp, SampleTransitions<S, A> samples, int steps) {
+        return solve(qval, mdp, samples, steps, SweepMode.JACOBI);
+    }
+
+    /**
+     * Solves an MDP using KBRL.
+     * 
+     * @param qval
+     *            Initial value for the Q-values when starting value iteration.
+     * @param mdp
+     *            The MDP to be solved.
+     * @param samples
+     *            The sample transitions.
+     * @param steps
+     *            The maximum number of rounds of value iteration to perform.
+     * @param mode
+     *            The order of the updates. Prioritized sweeps need the kernel
+     *            weights between samples, so they run on the operator compiled
+     *            without a threshold (see {@link #solveCompiled}).
+     * @return The resulting Q-values.
+     */
+    public static <S extends State, A extends Action> KernelQValue<S, A> solve(
+            KernelQValue<S, A> qval, MDP<S, A> mdp, SampleTransitions<S, A> samples, int steps,
+            SweepMode mode) {
+        if (mode == SweepMode.PRIORITIZED) {
+            return solveCompiled(qval, mdp, samples, steps, 0, mode);
+        }
+        if (mode == SweepMode.GAUSS_SEIDEL) {
+            return solveInPlace(qval, mdp, samples, steps);
+        }
         System.out.println("Starting KBRL.");
+        boolean warm = !qval.isCold();
+        long time = System.currentTimeMillis();
         A[] actions = mdp.getActions();
+        double[] scratch = new double[actions.length];
         double[][] news = new double[actions.length][];
         for (int i = 0; i < news.length; i++) {
-            news[i] = new double[samples.get(actions[i]).size()];
+            news[i] = new double[samples.size(i)];
         }
 
-        for (int trial = 0; trial < steps; trial++) {
+        int trial = 0;
+        for (; trial < steps; trial++) {
             for (A action : actions) {
                 int a = action.ordinal();
+                Vector[] ys = samples.getEndVectors(a);
                 for (int i = 0; i < news[a].length; i++) {
                     double val = Double.NEGATIVE_INFINITY;
-                    List<Transition<S, A>> data = samples.get(action);
-                    if (mdp.isTerminal(data.get(i).getEndState())) {
+                    if (samples.isTerminal(a, i)) {
                         val = 0;
                     } else {
-                        for (A a2 : actions) {
-                            val = Math.max(val, qval.getValue(data.get(i).getEndVector(), a2));
-                        }
+                        val = qval.getMaxValue(ys[i], scratch);
                     }
                     news[a][i] = val;
                 }
             }
             KernelQValue<S, A> newQval = qval.update(news);
             double diff = qval.difference(newQval);
-            System.out.println("#" + diff + " on iteration" + trial);
+            report(diff, trial, time);
             qval = newQval;
             if (diff < .0001) {
-                System.out.println("Converged after " + trial + " rounds of value iteration.");
                 break;
             }
         }
+        reportRounds(trial, steps, warm);
+        return qval;
+    }
+
+    private static <S extends State, A extends Action> KernelQValue<S, A> solveInPlace(
+            KernelQValue<S, A> qval, MDP<S, A> mdp, SampleTransitions<S, A> samples, int steps) {
+        System.out.println("Starting Gauss-Seidel KBRL.");
+        boolean warm = !qval.isCold();
+        long time = System.currentTimeMillis();
+        A[] actions = mdp.getActions();
+        double[] scratch = new double[actions.length];
+        qval = qval.update(qval.copyValues());
+        double[][] values = qval.copyValues();
+        int trial = 0;
+        for (; trial < steps; trial++) {
+            double max = Double.NEGATIVE_INFINITY;
+            double min = Double.POSITIVE_INFINITY;
+            for (A action : actions) {
+                int a = action.ordinal();
+                Vector[] ys = samples.getEndVectors(a);
+                for (int i = 0; i < values[a].length; i++) {
+                    double val = Double.NEGATIVE_INFINITY;
+                    if (samples.isTerminal(a, i)) {
+                        val = 0;
+                    } else {
+                        val = qval.getMaxValue(ys[i], scratch);
+                    }
+                    max = Math.max(max, val - values[a][i]);
+                    min = Math.min(min, val - values[a][i]);
+                    values[a][i] = val;
+                    qval.setValue(a, i, val);
+                }
+            }
+            double diff = max - min;
+            report(diff, trial, time);
+            if (diff < .0001) {
+                break;
+            }
+        }
+        reportRounds(trial, steps, warm);
         return qval;
     }
 
+    /**
+     * Reports the number of rounds value iteration took and whether it started
+     * from earlier values, so that warm and cold starts can be compared in
+     * the logs.
+     */
+    static void reportRounds(int rounds, int steps, boolean warm) {
+        String start = warm ? "warm start" : "cold start";
+        if (rounds < steps) {
+            System.out.println("Converged after " + rounds + " rounds of value iteration ("
+                    + start + ").");
+        } else {
+            System.out.println("Stopped after " + steps + " rounds of value iteration (" + start
+                    + ").");
+        }
+    }
+
+    static boolean isZero(double[] values) {
+        if (values != null) {
+            for (double d : values) {
+                if (d != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void report(double diff, int trial, long start) {
+        System.out.println("#" + diff + " on iteration" + trial + " ("
+                + (System.currentTimeMillis() - start) + " ms)");
+    }
+
+    /**
+     * Solves an MDP using KBRL with the Bellman operator compiled into sparse
+     * matrices. The kernel weights are computed once, so each round of value
+     * iteration costs one pass over the stored weights instead of one metric
+     * evaluation per pair of samples.
+     * 
+     * @param qval
+     *            Initial value for the Q-values when starting value iteration.
+     *            The bandwidth and metric are read from {@code qval}.
+     * @param mdp
+     *            The MDP to be solved.
+     * @param samples
+     *            The sample transitions.
+     * @param steps
+     *            The maximum number of rounds of value iteration to perform.
+     * @param threshold
+     *            Normalized kernel weights below this value are dropped. Set
+     *            to 0 for results identical (up to rounding) to
+     *            {@link #solve}.
+     * @return The resulting Q-values.
+     */
+    public static <S extends State, A extends Action> KernelQValue<S, A> solveCompiled(
+            KernelQValue<S, A> qval, MDP<S, A> mdp, SampleTransitions<S, A> samples, int steps,
+            double threshold) {
+        return solveCompiled(qval, mdp, samples, steps, threshold, SweepMode.JACOBI);
+    }
+
+    /**
+     * Solves an MDP using KBRL with the Bellman operator compiled into sparse
+     * matrices, updating the values in the given order. For
+     * {@link SweepMode#PRIORITIZED}, a round is as many backups as there are
+     * samples and the reported residual bounds the Bellman residual rather
+     * than the change over the round.
+     * 
+     * @see #solveCompiled(KernelQValue, MDP, SampleTransitions, int, double)
+     */
+    public static <S extends State, A extends Action> KernelQValue<S, A> solveCompiled(
+            KernelQValue<S, A> qval, MDP<S, A> mdp, SampleTransitions<S, A> samples, int steps,
+            double threshold, SweepMode mode) {
+        System.out.println("Starting compiled KBRL (" + mode + ").");
+        KernelOperator op = KernelOperator.compile(mdp,
+                samples,
+                qval.getActionDistanceFn(),
+                qval.getBandwidth(),
+                threshold);
+        return solveCompiled(qval, op, steps, mode);
+    }
+
+    /**
+     * Solves an MDP using KBRL with the Bellman operator compiled from sample
+     * distances kept across rounds of DKBRL, so that the metric of
+     * {@code qval} is never evaluated between samples.
+     * 
+     * @param distances
+     *            The distances between the samples under the metric of
+     *            {@code qval}.
+     * @throws IllegalArgumentException
+     *             If {@code distances} belong to another metric.
+     * @see #solveCompiled(KernelQValue, MDP, SampleTransitions, int, double)
+     */
+    public static <S extends State, A extends Action> KernelQValue<S, A> solveCompiled(
+            KernelQValue<S, A> qval, MDP<S, A> mdp, SampleTransitions<S, A> samples, int steps,
+            double threshold, SampleDistances<S, A> distances) {
+        if (distances.getActionDistanceFn() != qval.getActionDistanceFn()) {
+            throw new IllegalArgumentException("Distances belong to another metric");
+        }
+        System.out.println("Starting compiled KBRL from stored distances.");
+        KernelOperator op = KernelOperator.compile(mdp,
+                samples,
+                distances,
+                qval.getBandwidth(),
+                threshold);
+        return solveCompiled(qval, op, steps, SweepMode.JACOBI);
+    }
+
+    private static <S extends State, A extends Action> KernelQValue<S, A> solveCompiled(
+            KernelQValue<S, A> qval, KernelOperator op, int steps, SweepMode mode) {
+        boolean warm = !qval.isCold();
+        long time = System.currentTimeMillis();
+        double[][] values = qval.copyValues();
+        double[][] news = mode == SweepMode.JACOBI ? qval.copyValues() : null;
+        KernelOperator.PrioritizedSweeper sweeper = mode == SweepMode.PRIORITIZED ? op
+                .prioritize(values) : null;
+        int trial = 0;
+        for (; trial < steps; trial++) {
+            double diff;
+            if (mode == SweepMode.PRIORITIZED) {
+                diff = sweeper.run(op.size(), .0001);
+            } else if (mode == SweepMode.GAUSS_SEIDEL) {
+                diff = op.sweepInPlace(values);
+            } else {
+                diff = op.sweep(values, news);
+                double[][] temp = values;
+                values = news;
+                news = temp;
+            }
+            report(diff, trial, time);
+            if (diff < .0001) {
+                break;
+            }
+        }
+        reportRounds(trial, steps, warm);
+        return qval.update(values);
+    }
+
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.solver.smoothing;
+
+import java.util.List;
+
+import drl.math.algs.SparseMatrix;
+import drl.math.geom.Vector;
+import drl.math.tfs.DistanceFunction;
+import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
+import drl.mdp.api.State;
+
+/**
+ * The KBSF transition model kept as its two stochastic factors. For each
+ * action {@code a}, {@code K} (representative states by samples) and
+ * {@code D_a} (samples by representative states) are stored separately and
+ * applied one after the other, so the representative-state model
+ * {@code K * D_a} is never formed.
+ * 
+ * @author Dawit
+ * 
+ */
+final class KbsfOperator {
+
+    private final double gamma;
+    private final int numReps;
+    // kMatrix[a] is shared between actions with the same metric.
+    private final SparseMatrix[] kMatrix;
+    private final SparseMatrix[] dMatrix;
+    private final double[][] rewards;
+
+    private KbsfOperator(double gamma, int numReps, SparseMatrix[] kMatrix,
+            SparseMatrix[] dMatrix, double[][] rewards) {
+        this.gamma = gamma;
+        this.numReps = numReps;
+        this.kMatrix = kMatrix;
+        this.dMatrix = dMatrix;
+        this.rewards = rewards;
+    }
+
+    /**
+     * Builds the factors. As for {@link Kbrl#solveByKbsf}, every action must
+     * have the same start states.
+     * 
+     * @param neighbors
+     *            The maximum number of entries per row of each factor, or 0
+     *            for no limit.
+     * @param threshold
+     *            Entries below this fraction of the sum of their row are
+     *            dropped. Set to 0 to keep them.
+     */
+    static <S extends State, A extends Action> KbsfOperator compile(MDP<S, A> mdp,
+            List<S> repStates, SampleTransitions<S, A> samples, ActionDistanceFn<A> adf,
+            double bandwidth, int neighbors, double threshold) {
+        long time = System.currentTimeMillis();
+        A[] actions = mdp.getActions();
+        Vector[] xs = samples.getStartVectors(0);
+        for (Vector x : xs) {
+            adf.memoize(x);
+        }
+        Vector[] rxs = new Vector[repStates.size()];
+        for (int j = 0; j < rxs.length; j++) {
+            rxs[j] = mdp.vectorFromState(repStates.get(j));
+        }
+        for (Vector rx : rxs) {
+            adf.memoize(rx);
+        }
+
+        SparseMatrix[] kMatrix = new SparseMatrix[actions.length];
+        SparseMatrix[] dMatrix = new SparseMatrix[actions.length];
+        double[][] rewards = new double[actions.length][];
+        long memory = 0;
+        for (A action : actions) {
+            int a = action.ordinal();
+            DistanceFunction df = adf.get(action);
+            for (int b = 0; b < a && kMatrix[a] == null; b++) {
+                if (adf.get(actions[b]) == df) {
+                    kMatrix[a] = kMatrix[b];
+                }
+            }
+            KernelMatrixBuilder builder = KernelMatrixBuilder.of(df, bandwidth);
+            if (kMatrix[a] == null) {
+                kMatrix[a] = builder.sparse(rxs, xs, neighbors, threshold);
+                memory += kMatrix[a].getMemoryUsage();
+            }
+            Vector[] ys = samples.getEndVectors(a);
+            dMatrix[a] = builder.sparse(ys, rxs, neighbors, threshold);
+            memory += dMatrix[a].getMemoryUsage();
+            rewards[a] = samples.getRewards(a);
+            System.out.println("Preprocessed action " + action);
+        }
+        System.out.println(String.format(
+                "Factored KBSF operator: %d reps, %d samples, %d KB in %d ms (dense K*D: %d KB)",
+                rxs.length,
+                xs.length,
+                memory / 1024,
+                System.currentTimeMillis() - time,
+                8L * actions.length * rxs.length * rxs.length / 1024));
+        return new KbsfOperator(mdp.getDiscountFactor(), rxs.length, kMatrix, dMatrix, rewards);
+    }
+
+    int getNumReps() {
+        return numReps;
+    }
+
+    int getNumActions() {
+        return rewards.length;
+    }
+
+    /**
+     * Computes {@code q[a] = K * (r_a + gamma * D_a * values)} for every action
+     * and stores the maximum over actions in {@code out}.
+     * 
+     * @param scratch
+     *            Space for one value per sample.
+     * @return The span (max minus min) of {@code out - values}.
+     */
+    double sweep(double[] values, double[] out, double[][] q, double[] scratch) {
+        for (int a = 0; a < rewards.length; a++) {
+            backup(a, values, q[a], scratch);
+        }
+        double max = Double.NEGATIVE_INFINITY;
+        double min = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < numReps; j++) {
+            double val = Double.NEGATIVE_INFINITY;
+            for (int a = 0; a < q.length; a++) {
+                val = Math.max(val, q[a][j]);
+            }
+            out[j] = val;
+            max = Math.max(max, val - values[j]);
+            min = Math.min(min, val - values[j]);
+        }
+        return max - min;
+    }
+
+    private void backup(int a, double[] values, double[] q, double[] scratch) {
+        SparseMatrix d = dMatrix[a];
+        double[] r = rewards[a];
+        for (int i = 0; i < d.getNumRows(); i++) {
+            scratch[i] = r[i] + gamma * d.multiplyRow(i, values);
+        }
+        kMatrix[a].multiply(scratch, q);
+    }
+
+    /**
+     * Maps representative-state values back to the end states of the samples
+     * of action {@code a}, {@code out = D_a * q}.
+     */
+    void toSamples(int a, double[] q, double[] out) {
+        dMatrix[a].multiply(q, out);
+    }
+
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.solver.smoothing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+import drl.math.MathUtils;
+import drl.math.algs.SparseMatrix;
+import drl.math.geom.Vector;
+import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.IndexedDF;
+import drl.math.tfs.IndexedDistanceFunction;
+
+/**
+ * Builds row-normalized Gaussian kernel matrices, dense or sparse, for every
+ * kernel based solver. Row {@code j} of a matrix built from {@code rows} and
+ * {@code cols} holds the weights from {@code rows[j]} to each vector of
+ * {@code cols}, normalized to sum to one. A row whose weights all underflow
+ * puts all of its mass on the closest column.
+ * <p>
+ * Rows are split into blocks that are computed in parallel, and each block
+ * walks the columns in tiles so that a tile of column vectors stays in cache
+ * while every row of the block visits it. Dense blocks write straight into the
+ * array backing the returned matrix. Every vector is registered with the
+ * metric, viewed as an {@link IndexedDistanceFunction}, on the calling thread
+ * before the parallel phase, and the blocks only evaluate distances by id.
+ * 
+ * @author Dawit
+ * 
+ */
+final class KernelMatrixBuilder {
+
+    private static final int ROW_BLOCK = 64;
+    private static final int COL_TILE = 256;
+    private static ExecutorService shared = null;
+
+    private final IndexedDistanceFunction df;
+    private final double bandwidth;
+    private final ExecutorService exec;
+    private final int threads;
+
+    private KernelMatrixBuilder(DistanceFunction df, double bandwidth, ExecutorService exec,
+            int threads) {
+        this.df = IndexedDF.of(df);
+        this.bandwidth = bandwidth;
+        this.exec = exec;
+        this.threads = threads;
+    }
+
+    /**
+     * A builder that runs on a shared pool with one thread per available
+     * processor.
+     */
+    static KernelMatrixBuilder of(DistanceFunction df, double bandwidth) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return new KernelMatrixBuilder(df, bandwidth, sharedPool(), threads);
+    }
+
+    /**
+     * A builder that runs on the given executor, with at most
+     * {@code threads} blocks in flight at a time.
+     */
+    static KernelMatrixBuilder of(DistanceFunction df, double bandwidth, ExecutorService exec,
+            int threads) {
+        return new KernelMatrixBuilder(df, bandwidth, exec, Math.max(1, threads));
+    }
+
+    private static synchronized ExecutorService sharedPool() {
+        if (shared == null) {
+            shared = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "kernel-matrix-builder");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return shared;
+    }
+
+    /**
+     * @return The dense normalized kernel matrix from {@code rows} to
+     *         {@code cols}.
+     */
+    SimpleMatrix dense(Vector[] rows, Vector[] cols) {
+        long time = System.nanoTime();
+        double[] data = new double[rows.length * cols.length];
+        List<Block> blocks = run(register(rows), null, register(cols), data, 0, 0);
+        int zeroRows = 0;
+        for (Block b : blocks) {
+            zeroRows += b.zeroRows;
+        }
+        warnZeroRows(zeroRows);
+        System.out.println(String.format("Kernel matrix %dx%d (dense): %s",
+                rows.length,
+                cols.length,
+                throughput((long) rows.length * cols.length, time)));
+        return SimpleMatrix.wrap(DenseMatrix64F.wrap(rows.length, cols.length, data));
+    }
+
+    /**
+     * @return The sparse normalized kernel matrix from {@code rows} to
+     *         {@code cols}.
+     * @see #sparse(Vector[], boolean[], Vector[], int, double)
+     */
+    SparseMatrix sparse(Vector[] rows, Vector[] cols, int neighbors, double threshold) {
+        return sparse(rows, null, cols, neighbors, threshold);
+    }
+
+    /**
+     * The sparse counterpart of {@link #dense}. Rows are sparsified before
+     * normalization and then renormalized; the largest weight of a row is
+     * always kept.
+     * 
+     * @param skip
+     *            Rows flagged here are left empty. May be {@code null}.
+     * @param neighbors
+     *            Keep at most this many of the largest weights per row. Set to
+     *            0 to keep every non-zero weight.
+     * @param threshold
+     *            Drop weights smaller than {@code threshold} times the sum of
+     *            the row. Set to 0 to keep every non-zero weight.
+     */
+    SparseMatrix sparse(Vector[] rows, boolean[] skip, Vector[] cols, int neighbors,
+            double threshold) {
+        long time = System.nanoTime();
+        List<Block> blocks = run(register(rows), skip, register(cols), null, neighbors,
+                threshold);
+        int expected = 0;
+        for (Block b : blocks) {
+            expected += b.rowStart[b.rowStart.length - 1];
+        }
+        SparseMatrix.Builder builder = new SparseMatrix.Builder(cols.length,
+                rows.length,
+                expected);
+        double total = 0;
+        double dropped = 0;
+        int zeroRows = 0;
+        for (Block b : blocks) {
+            for (int r = 0; r + 1 < b.rowStart.length; r++) {
+                builder.addRow(b.index,
+                        b.weights,
+                        b.rowStart[r],
+                        b.rowStart[r + 1] - b.rowStart[r]);
+            }
+            total += b.total;
+            dropped += b.dropped;
+            zeroRows += b.zeroRows;
+        }
+        warnZeroRows(zeroRows);
+        SparseMatrix mat = builder.build();
+        System.out.println(String.format(
+                "Kernel matrix %dx%d: %d entries, %d KB, %.4f%% of kernel mass dropped, %s",
+                mat.getNumRows(),
+                mat.getNumCols(),
+                mat.getNumNonZeros(),
+                mat.getMemoryUsage() / 1024,
+                total > 0 ? 100 * dropped / total : 0,
+                throughput((long) rows.length * cols.length, time)));
+        return mat;
+    }
+
+    private int[] register(Vector[] vs) {
+        int[] ids = new int[vs.length];
+        for (int i = 0; i < vs.length; i++) {
+            ids[i] = df.register(vs[i]);
+        }
+        return ids;
+    }
+
+    private List<Block> run(int[] rows, boolean[] skip, int[] cols, double[] dense,
+            int neighbors, double threshold) {
+        int size = Math.max(1, Math.min(ROW_BLOCK, (rows.length + 4 * threads - 1)
+                / (4 * threads)));
+        if (dense == null) {
+            // Sparse blocks buffer their full rows, so bound them to ~8MB.
+            size = Math.min(size, Math.max(1, (1 << 20) / Math.max(1, cols.length)));
+        }
+        final List<Block> blocks = new ArrayList<Block>();
+        for (int start = 0; start < rows.length; start += size) {
+            blocks.add(new Block(rows,
+                    skip,
+                    cols,
+                    start,
+                    Math.min(rows.length, start + size),
+                    dense,
+                    neighbors,
+                    threshold));
+        }
+        if (threads == 1 || blocks.size() == 1) {
+            for (Block b : blocks) {
+                b.call();
+            }
+            return blocks;
+        }
+        // At most threads workers, each pulling the next block off a cursor.
+        final AtomicInteger cursor = new AtomicInteger();
+        int workers = Math.min(threads, blocks.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+            for (int w = 0; w < workers; w++) {
+                futures.add(exec.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        int i;
+                        while ((i = cursor.getAndIncrement()) < blocks.size()) {
+                            blocks.get(i).call();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
+        return blocks;
+    }
+
+    private static void warnZeroRows(int zeroRows) {
+        if (zeroRows > 0) {
+            System.out.println(zeroRows + " all-zero rows in kernel matrix. Bandwidth too small?");
+        }
+    }
+
+    private static String throughput(long entries, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return String.format("%d ms, %.3g entries/s",
+                (long) (seconds * 1000),
+                seconds > 0 ? entries / seconds : 0);
+    }
+
+    /**
+     * A contiguous range of rows. Dense blocks write into the shared output
+     * array; sparse blocks keep their rows in a local CSR layout until they
+     * are appended in order.
+     */
+    private class Block implements Callable<Block> {
+        private final int[] rows;
+        private final boolean[] skip;
+        private final int[] cols;
+        private final int start;
+        private final int end;
+        private final double[] dense;
+        private final int neighbors;
+        private final double threshold;
+        private int[] rowStart;
+        private int[] index;
+        private double[] weights;
+        private double total = 0;
+        private double dropped = 0;
+        private int zeroRows = 0;
+
+        Block(int[] rows, boolean[] skip, int[] cols, int start, int end, double[] dense,
+                int neighbors, double threshold) {
+            this.rows = rows;
+            this.skip = skip;
+            this.cols = cols;
+            this.start = start;
+            this.end = end;
+            this.dense = dense;
+            this.neighbors = neighbors;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public Block call() {
+            int n = cols.length;
+            double[] out = dense;
+            int base = start * n;
+            if (out == null) {
+                out = new double[(end - start) * n];
+                base = 0;
+            }
+            double[] sums = new double[end - start];
+            for (int c0 = 0; c0 < n; c0 += COL_TILE) {
+                int c1 = Math.min(n, c0 + COL_TILE);
+                for (int j = start; j < end; j++) {
+                    if (skip != null && skip[j]) {
+                        continue;
+                    }
+                    int x = rows[j];
+                    int row = base + (j - start) * n;
+                    double sum = 0;
+                    for (int i = c0; i < c1; i++) {
+                        double w = KbUtils.gaussian(df.distance(x, cols[i]), bandwidth);
+                        out[row + i] = w;
+                        sum += w;
+                    }
+                    sums[j - start] += sum;
+                }
+            }
+            if (dense != null) {
+                for (int j = start; j < end; j++) {
+                    int row = base + (j - start) * n;
+                    double sum = sums[j - start];
+                    if (skip != null && skip[j]) {
+                        continue;
+                    } else if (sum == 0.0) {
+                        zeroRows++;
+                        out[row + closest(rows[j])] = 1.0;
+                    } else {
+                        for (int i = 0; i < n; i++) {
+                            out[row + i] /= sum;
+                        }
+                    }
+                }
+            } else {
+                sparsify(out, sums);
+            }
+            return this;
+        }
+
+        private void sparsify(double[] out, double[] sums) {
+            int n = cols.length;
+            int cap = neighbors > 0 ? Math.min(neighbors, n) : n;
+            rowStart = new int[end - start + 1];
+            index = new int[Math.max(1, (end - start) * Math.min(cap, 16))];
+            weights = new double[index.length];
+            int[] rowIndex = new int[n];
+            double[] rowWeights = new double[n];
+            double[] scratch = new double[n];
+            for (int j = start; j < end; j++) {
+                int r = j - start;
+                int kept = 0;
+                if (skip == null || !skip[j]) {
+                    kept = sparsifyRow(out, r * n, sums[r], j, rowIndex, rowWeights, scratch);
+                }
+                int at = rowStart[r];
+                if (at + kept > index.length) {
+                    int size = Math.max(at + kept, 2 * index.length);
+                    index = Arrays.copyOf(index, size);
+                    weights = Arrays.copyOf(weights, size);
+                }
+                System.arraycopy(rowIndex, 0, index, at, kept);
+                System.arraycopy(rowWeights, 0, weights, at, kept);
+                rowStart[r + 1] = at + kept;
+            }
+        }
+
+        private int sparsifyRow(double[] out, int row, double sum, int j, int[] rowIndex,
+                double[] rowWeights, double[] scratch) {
+            if (sum == 0.0) {
+                zeroRows++;
+                rowIndex[0] = closest(rows[j]);
+                rowWeights[0] = 1.0;
+                return 1;
+            }
+            int n = 0;
+            double max = 0;
+            for (int i = 0; i < cols.length; i++) {
+                double w = out[row + i];
+                if (w > 0) {
+                    rowIndex[n] = i;
+                    rowWeights[n++] = w;
+                    max = Math.max(max, w);
+                }
+            }
+            double cut = threshold * sum;
+            int ties = n;
+            if (neighbors > 0 && n > neighbors) {
+                double kth = MathUtils.kthLargest(rowWeights, n, neighbors, scratch);
+                int above = 0;
+                for (int k = 0; k < n; k++) {
+                    if (rowWeights[k] > kth) {
+                        above++;
+                    }
+                }
+                // Entries equal to the k-th weight fill the remaining slots.
+                ties = neighbors - above;
+                cut = Math.max(cut, kth);
+            }
+            int kept = 0;
+            double keptSum = 0;
+            for (int k = 0; k < n; k++) {
+                double w = rowWeights[k];
+                boolean keep = w > cut || w == max;
+                if (!keep && w == cut && ties > 0) {
+                    keep = true;
+                    ties--;
+                }
+                if (keep) {
+                    rowIndex[kept] = rowIndex[k];
+                    rowWeights[kept++] = w;
+                    keptSum += w;
+                }
+            }
+            for (int k = 0; k < kept; k++) {
+                rowWeights[k] /= keptSum;
+            }
+            total += sum;
+            dropped += sum - keptSum;
+            return kept;
+        }
+
+        private int closest(int x) {
+            int indexOfClosest = -1;
+            double closest = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < cols.length; i++) {
+                double dist = df.distance(x, cols[i]);
+                if (dist < closest) {
+                    closest = dist;
+                    indexOfClosest = i;
+                }
+            }
+            return indexOfClosest;
+        }
+    }
+
+}
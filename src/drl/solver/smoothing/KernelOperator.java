@@ -0,0 +1,485 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.solver.smoothing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import drl.math.algs.SparseMatrix;
+import drl.math.geom.Vector;
+import drl.math.tfs.DistanceFunction;
+import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
+import drl.mdp.api.State;
+
+/**
+ * The KBRL Bellman operator compiled into row-normalized sparse matrices. Row
+ * {@code i} of the matrix for the pair {@code (a, g)} holds the kernel weights
+ * from the end vector of the {@code i}-th sample of action {@code a} to the
+ * start vectors of the samples of the actions in group {@code g}. Actions are
+ * grouped when they share both their metric and their start vectors, so the
+ * usual case of one metric and common start states needs a single matrix per
+ * action.
+ * 
+ * @author Dawit
+ * 
+ */
+final class KernelOperator {
+
+    private final double gamma;
+    private final double[][] rewards;
+    private final boolean[][] terminal;
+    // groups[g] lists the actions that share the columns of group g.
+    private final int[][] groups;
+    private final SparseMatrix[][] matrices;
+    // The sample (a, i) has the id offsets[a] + i.
+    private final int[] offsets;
+    // Built on first use by prioritized sweeps. For column j of group g, the
+    // entries predStart[g][j] to predStart[g][j + 1] of predIds[g] and
+    // predWeights[g] list the samples whose backup reads column j.
+    private int[][] predStart;
+    private int[][] predIds;
+    private double[][] predWeights;
+
+    private KernelOperator(double gamma, double[][] rewards, boolean[][] terminal, int[][] groups,
+            SparseMatrix[][] matrices) {
+        this.gamma = gamma;
+        this.rewards = rewards;
+        this.terminal = terminal;
+        this.groups = groups;
+        this.matrices = matrices;
+        this.offsets = new int[rewards.length + 1];
+        for (int a = 0; a < rewards.length; a++) {
+            offsets[a + 1] = offsets[a] + rewards[a].length;
+        }
+    }
+
+    /**
+     * Builds the operator for the given samples and metric.
+     * 
+     * @param threshold
+     *            Normalized weights below this value are dropped and the
+     *            remaining weights of the row are renormalized. The largest
+     *            weight of a row is always kept. Set to 0 to keep every
+     *            non-zero weight.
+     */
+    static <S extends State, A extends Action> KernelOperator compile(MDP<S, A> mdp,
+            SampleTransitions<S, A> samples, ActionDistanceFn<A> adf, double bandwidth,
+            double threshold) {
+        long time = System.currentTimeMillis();
+        A[] actions = mdp.getActions();
+        double[][] rewards = new double[actions.length][];
+        boolean[][] terminal = new boolean[actions.length][];
+        fillSamples(samples, rewards, terminal);
+        int[][] groups = group(actions, samples, adf);
+
+        SparseMatrix[][] matrices = new SparseMatrix[actions.length][groups.length];
+        long entries = 0;
+        for (A action : actions) {
+            int a = action.ordinal();
+            Vector[] ys = samples.getEndVectors(a);
+            for (int g = 0; g < groups.length; g++) {
+                Vector[] cols = samples.getStartVectors(groups[g][0]);
+                DistanceFunction df = adf.get(actions[groups[g][0]]);
+                matrices[a][g] = KernelMatrixBuilder.of(df, bandwidth).sparse(ys,
+                        terminal[a],
+                        cols,
+                        0,
+                        threshold);
+                entries += matrices[a][g].getNumNonZeros();
+            }
+        }
+        System.out.println(String.format("Compiled KBRL operator: %d groups, %d entries in %d ms",
+                groups.length,
+                entries,
+                System.currentTimeMillis() - time));
+        return new KernelOperator(mdp.getDiscountFactor(), rewards, terminal, groups, matrices);
+    }
+
+    /**
+     * Builds the operator from distances kept by {@code distances}, which
+     * must belong to the metric the operator is for.
+     * 
+     * @see #compile(MDP, SampleTransitions, ActionDistanceFn, double, double)
+     */
+    static <S extends State, A extends Action> KernelOperator compile(MDP<S, A> mdp,
+            SampleTransitions<S, A> samples, SampleDistances<S, A> distances, double bandwidth,
+            double threshold) {
+        long time = System.currentTimeMillis();
+        A[] actions = mdp.getActions();
+        double[][] rewards = new double[actions.length][];
+        boolean[][] terminal = new boolean[actions.length][];
+        fillSamples(samples, rewards, terminal);
+        int[][] groups = distances.getGroups();
+        SparseMatrix[][] matrices = new SparseMatrix[actions.length][groups.length];
+        long entries = 0;
+        for (int a = 0; a < actions.length; a++) {
+            for (int g = 0; g < groups.length; g++) {
+                matrices[a][g] = distances.kernel(a, g, bandwidth, threshold);
+                entries += matrices[a][g].getNumNonZeros();
+            }
+        }
+        System.out.println(String.format(
+                "Compiled KBRL operator from stored distances: %d groups, %d entries in %d ms",
+                groups.length,
+                entries,
+                System.currentTimeMillis() - time));
+        return new KernelOperator(mdp.getDiscountFactor(), rewards, terminal, groups, matrices);
+    }
+
+    private static void fillSamples(SampleTransitions<?, ?> samples, double[][] rewards,
+            boolean[][] terminal) {
+        for (int a = 0; a < rewards.length; a++) {
+            rewards[a] = samples.getRewards(a);
+            terminal[a] = new boolean[samples.size(a)];
+            for (int i = 0; i < terminal[a].length; i++) {
+                terminal[a][i] = samples.isTerminal(a, i);
+            }
+        }
+    }
+
+    /**
+     * Groups the actions that share both their metric and their start
+     * vectors.
+     * 
+     * @return The ordinals of the actions of each group.
+     */
+    static <S extends State, A extends Action> int[][] group(A[] actions,
+            SampleTransitions<S, A> samples, ActionDistanceFn<A> adf) {
+        List<List<Vector>> starts = new ArrayList<List<Vector>>(actions.length);
+        for (A action : actions) {
+            starts.add(Arrays.asList(samples.getStartVectors(action.ordinal())));
+        }
+        List<int[]> groupList = new ArrayList<int[]>();
+        for (A action : actions) {
+            int a = action.ordinal();
+            boolean grouped = false;
+            for (int g = 0; g < groupList.size() && !grouped; g++) {
+                int rep = groupList.get(g)[0];
+                if (adf.get(actions[rep]) == adf.get(action)
+                        && starts.get(rep).equals(starts.get(a))) {
+                    int[] old = groupList.get(g);
+                    int[] members = new int[old.length + 1];
+                    System.arraycopy(old, 0, members, 0, old.length);
+                    members[old.length] = a;
+                    groupList.set(g, members);
+                    grouped = true;
+                }
+            }
+            if (!grouped) {
+                groupList.add(new int[] { a });
+            }
+        }
+        return groupList.toArray(new int[groupList.size()][]);
+    }
+
+    /**
+     * @return The number of actions.
+     */
+    int getNumActions() {
+        return rewards.length;
+    }
+
+    /**
+     * @return The number of samples of action {@code a}.
+     */
+    int getNumSamples(int a) {
+        return rewards[a].length;
+    }
+
+    /**
+     * The Bellman backup of one sample: the maximum over actions of the
+     * Q-value at the end vector of sample {@code i} of action {@code a}.
+     * 
+     * @param values
+     *            The current end state values, indexed by action ordinal.
+     * @param acc
+     *            Scratch space with one entry per action.
+     */
+    double backup(int a, int i, double[][] values, double[] acc) {
+        if (terminal[a][i]) {
+            return 0;
+        }
+        double best = Double.NEGATIVE_INFINITY;
+        for (int g = 0; g < groups.length; g++) {
+            int[] members = groups[g];
+            SparseMatrix mat = matrices[a][g];
+            int[] cols = mat.getColumns();
+            double[] ws = mat.getValues();
+            for (int m = 0; m < members.length; m++) {
+                acc[m] = 0;
+            }
+            for (int k = mat.getRowStart(i); k < mat.getRowStart(i + 1); k++) {
+                double w = ws[k];
+                int j = cols[k];
+                for (int m = 0; m < members.length; m++) {
+                    int a2 = members[m];
+                    acc[m] += w * (rewards[a2][j] + gamma * values[a2][j]);
+                }
+            }
+            for (int m = 0; m < members.length; m++) {
+                best = Math.max(best, acc[m]);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Performs one Jacobi sweep, {@code out = T(in)}.
+     * 
+     * @return The span (max minus min) of {@code out - in}.
+     */
+    double sweep(double[][] in, double[][] out) {
+        double[] acc = new double[rewards.length];
+        double max = Double.NEGATIVE_INFINITY;
+        double min = Double.POSITIVE_INFINITY;
+        for (int a = 0; a < rewards.length; a++) {
+            for (int i = 0; i < rewards[a].length; i++) {
+                out[a][i] = backup(a, i, in, acc);
+                max = Math.max(max, out[a][i] - in[a][i]);
+                min = Math.min(min, out[a][i] - in[a][i]);
+            }
+        }
+        return max - min;
+    }
+
+    /**
+     * Performs one Gauss-Seidel sweep, replacing every value by its backup in
+     * place so that later backups of the sweep already use it.
+     * 
+     * @return The span (max minus min) of the changes made by the sweep.
+     */
+    double sweepInPlace(double[][] values) {
+        double[] acc = new double[rewards.length];
+        double max = Double.NEGATIVE_INFINITY;
+        double min = Double.POSITIVE_INFINITY;
+        for (int a = 0; a < rewards.length; a++) {
+            for (int i = 0; i < rewards[a].length; i++) {
+                double val = backup(a, i, values, acc);
+                max = Math.max(max, val - values[a][i]);
+                min = Math.min(min, val - values[a][i]);
+                values[a][i] = val;
+            }
+        }
+        return max - min;
+    }
+
+    /**
+     * @return The total number of samples.
+     */
+    int size() {
+        return offsets[rewards.length];
+    }
+
+    /**
+     * Starts prioritized sweeping on {@code values}, which is updated in
+     * place by the returned sweeper.
+     */
+    PrioritizedSweeper prioritize(double[][] values) {
+        if (predStart == null) {
+            transpose();
+        }
+        return new PrioritizedSweeper(values);
+    }
+
+    private void transpose() {
+        predStart = new int[groups.length][];
+        predIds = new int[groups.length][];
+        predWeights = new double[groups.length][];
+        for (int g = 0; g < groups.length; g++) {
+            int[] start = new int[rewards[groups[g][0]].length + 1];
+            for (int a = 0; a < rewards.length; a++) {
+                int[] cols = matrices[a][g].getColumns();
+                for (int k = 0; k < matrices[a][g].getNumNonZeros(); k++) {
+                    start[cols[k] + 1]++;
+                }
+            }
+            for (int j = 0; j + 1 < start.length; j++) {
+                start[j + 1] += start[j];
+            }
+            int[] ids = new int[start[start.length - 1]];
+            double[] ws = new double[ids.length];
+            int[] next = Arrays.copyOf(start, start.length - 1);
+            for (int a = 0; a < rewards.length; a++) {
+                SparseMatrix mat = matrices[a][g];
+                int[] cols = mat.getColumns();
+                double[] vals = mat.getValues();
+                for (int i = 0; i < mat.getNumRows(); i++) {
+                    for (int k = mat.getRowStart(i); k < mat.getRowStart(i + 1); k++) {
+                        int slot = next[cols[k]]++;
+                        ids[slot] = offsets[a] + i;
+                        ws[slot] = vals[k];
+                    }
+                }
+            }
+            predStart[g] = start;
+            predIds[g] = ids;
+            predWeights[g] = ws;
+        }
+    }
+
+    /**
+     * Prioritized sweeping over the samples. The priority of a sample is an
+     * upper bound on how far its value is from its backup: it starts as the
+     * exact Bellman residual and, whenever a value changes by {@code delta},
+     * every sample reading it with weight {@code w} gains
+     * {@code gamma * w * |delta|}.
+     */
+    final class PrioritizedSweeper {
+        private final double[][] values;
+        private final double[] acc = new double[rewards.length];
+        private final MaxHeap heap = new MaxHeap(size());
+        // group[a] is the group whose columns include the samples of a.
+        private final int[] group = new int[rewards.length];
+        private final int[] actionOf = new int[size()];
+
+        private PrioritizedSweeper(double[][] values) {
+            this.values = values;
+            for (int g = 0; g < groups.length; g++) {
+                for (int a : groups[g]) {
+                    group[a] = g;
+                }
+            }
+            for (int a = 0; a < rewards.length; a++) {
+                for (int i = 0; i < rewards[a].length; i++) {
+                    actionOf[offsets[a] + i] = a;
+                    heap.raise(offsets[a] + i, Math.abs(backup(a, i, values, acc) - values[a][i]));
+                }
+            }
+        }
+
+        /**
+         * Backs up samples in order of priority until {@code budget} backups
+         * were made or no priority reaches {@code tolerance}.
+         * 
+         * @return The largest remaining priority, which bounds the Bellman
+         *         residual of {@code values}.
+         */
+        double run(int budget, double tolerance) {
+            for (int n = 0; n < budget && heap.topKey() >= tolerance; n++) {
+                int id = heap.poll();
+                int a = actionOf[id];
+                int i = id - offsets[a];
+                double val = backup(a, i, values, acc);
+                double delta = Math.abs(val - values[a][i]);
+                values[a][i] = val;
+                if (delta == 0) {
+                    continue;
+                }
+                int g = group[a];
+                int[] ids = predIds[g];
+                double[] ws = predWeights[g];
+                for (int k = predStart[g][i]; k < predStart[g][i + 1]; k++) {
+                    heap.raise(ids[k], heap.key(ids[k]) + gamma * ws[k] * delta);
+                }
+            }
+            return heap.topKey();
+        }
+    }
+
+    /**
+     * A binary max-heap over the ids 0 to n - 1 with a key per id. Ids that
+     * are not in the heap have key 0.
+     */
+    private static final class MaxHeap {
+        private final double[] keys;
+        private final int[] heap;
+        private final int[] pos;
+        private int size = 0;
+
+        MaxHeap(int n) {
+            keys = new double[n];
+            heap = new int[n];
+            pos = new int[n];
+            Arrays.fill(pos, -1);
+        }
+
+        double key(int id) {
+            return keys[id];
+        }
+
+        double topKey() {
+            return size == 0 ? 0 : keys[heap[0]];
+        }
+
+        /**
+         * Sets the key of {@code id} to {@code key}, which must not be
+         * smaller than its current key, adding {@code id} if needed.
+         */
+        void raise(int id, double key) {
+            if (key <= 0) {
+                return;
+            }
+            keys[id] = key;
+            if (pos[id] < 0) {
+                pos[id] = size;
+                heap[size++] = id;
+            }
+            up(pos[id]);
+        }
+
+        int poll() {
+            int top = heap[0];
+            keys[top] = 0;
+            pos[top] = -1;
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                pos[heap[0]] = 0;
+                down(0);
+            }
+            return top;
+        }
+
+        private void up(int k) {
+            int id = heap[k];
+            while (k > 0) {
+                int parent = (k - 1) / 2;
+                if (keys[heap[parent]] >= keys[id]) {
+                    break;
+                }
+                heap[k] = heap[parent];
+                pos[heap[k]] = k;
+                k = parent;
+            }
+            heap[k] = id;
+            pos[id] = k;
+        }
+
+        private void down(int k) {
+            int id = heap[k];
+            while (2 * k + 1 < size) {
+                int child = 2 * k + 1;
+                if (child + 1 < size && keys[heap[child + 1]] > keys[heap[child]]) {
+                    child++;
+                }
+                if (keys[id] >= keys[heap[child]]) {
+                    break;
+                }
+                heap[k] = heap[child];
+                pos[heap[k]] = k;
+                k = child;
+            }
+            heap[k] = id;
+            pos[id] = k;
+        }
+    }
+
+}
@@ -18,15 +18,18 @@
 
 package drl.solver.smoothing;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import drl.math.algs.MetricTree;
 import drl.math.geom.Vector;
 import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.IndexedDF;
+import drl.math.tfs.IndexedDistanceFunction;
 import drl.mdp.api.Action;
 import drl.mdp.api.MDP;
 import drl.mdp.api.State;
-import drl.mdp.utils.Transition;
 
 /**
  * Implementation of a Q-Value implemented by kernel regression.
@@ -36,20 +39,104 @@ import drl.mdp.utils.Transition;
  */
 public class KernelQValue<S extends State, A extends Action> extends AbstractKernelQValue<S, A> {
 
+    /**
+     * The default cutoff radius of the spatial index, in units of the
+     * bandwidth. Samples further away carry less than {@code exp(-16)} of the
+     * weight of a sample at distance zero.
+     */
+    public static final double DEFAULT_CUTOFF = 4;
+
     private final SampleTransitions<S, A> samples;
     private final double bandwidth;
     private final ActionDistanceFn<A> adf;
     private final MDP<S, A> mdp;
     private final double[][] endStateValues;
+    private final MetricTree[] indexes;
+    private final double cutoff;
+    // fused[g] lists the ordinals of actions sharing both their metric and
+    // their start vectors, so that getValues visits those samples once.
+    private final int[][] fused;
+    // The metric of each action and the ids of its start vectors in it. Shared
+    // by all copies with the same metric, since registering is not free.
+    private final IndexedDistanceFunction[] metrics;
+    private final int[][] ids;
 
     private KernelQValue(SampleTransitions<S, A> samples, MDP<S, A> mdp, ActionDistanceFn<A> df,
             double bandwidth, double[][] endStateValues) {
+        this(samples, mdp, df, bandwidth, endStateValues, null, 0, null);
+    }
+
+    private KernelQValue(SampleTransitions<S, A> samples, MDP<S, A> mdp, ActionDistanceFn<A> df,
+            double bandwidth, double[][] endStateValues, MetricTree[] indexes, double cutoff,
+            KernelQValue<S, A> sameMetric) {
         super(mdp);
         this.samples = samples;
         this.adf = df;
         this.bandwidth = bandwidth;
         this.mdp = mdp;
         this.endStateValues = endStateValues;
+        this.indexes = indexes;
+        this.cutoff = cutoff;
+        this.fused = fuse(mdp.getActions(), samples, df);
+        if (sameMetric == null) {
+            this.metrics = new IndexedDistanceFunction[mdp.getActions().length];
+            this.ids = new int[metrics.length][];
+            register(mdp.getActions());
+        } else {
+            this.metrics = sameMetric.metrics;
+            this.ids = sameMetric.ids;
+        }
+    }
+
+    /**
+     * Registers the start vectors of every action with its metric, once per
+     * metric and group of start vectors.
+     */
+    private void register(A[] actions) {
+        for (int a = 0; a < actions.length; a++) {
+            DistanceFunction df = adf.get(actions[a]);
+            for (int b = 0; b < a; b++) {
+                if (adf.get(actions[b]) == df) {
+                    metrics[a] = metrics[b];
+                    if (samples.getStartGroup(b) == samples.getStartGroup(a)) {
+                        ids[a] = ids[b];
+                    }
+                }
+            }
+            if (metrics[a] == null) {
+                metrics[a] = IndexedDF.of(df, samples.size(a));
+            }
+            if (ids[a] == null) {
+                Vector[] xs = samples.getStartVectors(a);
+                ids[a] = new int[xs.length];
+                for (int i = 0; i < xs.length; i++) {
+                    ids[a][i] = metrics[a].register(xs[i]);
+                }
+            }
+        }
+    }
+
+    private static <S extends State, A extends Action> int[][] fuse(A[] actions,
+            SampleTransitions<S, A> samples, ActionDistanceFn<A> adf) {
+        List<int[]> groups = new ArrayList<int[]>();
+        boolean[] done = new boolean[actions.length];
+        int[] members = new int[actions.length];
+        for (int a = 0; a < actions.length; a++) {
+            if (done[a]) {
+                continue;
+            }
+            DistanceFunction df = adf.get(actions[a]);
+            int n = 0;
+            for (int b = a; b < actions.length; b++) {
+                if (!done[b] && adf.get(actions[b]) == df
+                        && samples.getStartGroup(b) == samples.getStartGroup(a)) {
+                    done[b] = true;
+                    members[n++] = b;
+                }
+            }
+            groups.add(Arrays.copyOf(members, n));
+        }
+        return groups.toArray(new int[groups.size()][]);
     }
 
     /**
@@ -65,7 +152,7 @@ public class KernelQValue<S extends State, A extends Action> extends AbstractKer
             SampleTransitions<S, A> samples, ActionDistanceFn<A> df, double bandwidth) {
         double[][] values = new double[mdp.getActions().length][];
         for (int i = 0; i < values.length; i++) {
-            values[i] = new double[samples.get(mdp.getActions()[i]).size()];
+            values[i] = new double[samples.size(i)];
         }
         return new KernelQValue<S, A>(samples, mdp, df, bandwidth, values);
     }
@@ -88,19 +175,114 @@ public class KernelQValue<S extends State, A extends Action> extends AbstractKer
 
     @Override
     protected double getValue(Vector x, A action) {
+        if (indexes != null) {
+            return getIndexedValue(x, action);
+        }
+        return getExactValue(x, action);
+    }
+
+    @Override
+    protected void getValues(Vector x, double[] out) {
+        A[] actions = mdp.getActions();
+        for (int[] group : fused) {
+            if (group.length == 1) {
+                out[group[0]] = getValue(x, actions[group[0]]);
+            } else if (indexes != null) {
+                getIndexedValues(x, group, out);
+            } else {
+                getExactValues(x, group, out);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #getExactValue} for every action in {@code group},
+     * evaluating each distance once.
+     */
+    private void getExactValues(Vector x, int[] group, double[] out) {
+        double gamma = mdp.getDiscountFactor();
+        IndexedDistanceFunction df = metrics[group[0]];
+        int[] xs = ids[group[0]];
+        int id = df.indexOf(x);
+        double sum = 0;
+        double minDist = Double.POSITIVE_INFINITY;
+        int closest = -1;
+        for (int a : group) {
+            out[a] = 0;
+        }
+        for (int i = 0; i < xs.length; i++) {
+            double dist = id >= 0 ? df.distance(id, xs[i]) : df.distance(x, xs[i]);
+            if (dist < minDist) {
+                minDist = dist;
+                closest = i;
+            }
+            double k = KbUtils.gaussian(dist, bandwidth);
+            sum += k;
+            for (int a : group) {
+                out[a] += k * (samples.getReward(a, i) + gamma * endStateValues[a][i]);
+            }
+        }
+        for (int a : group) {
+            if (Double.isNaN(out[a] / sum)) {
+                out[a] = closest < 0 ? Double.NaN : samples.getReward(a, closest) + gamma
+                        * endStateValues[a][closest];
+            } else {
+                out[a] /= sum;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #getIndexedValue} for every action in {@code group},
+     * making a single range query.
+     */
+    private void getIndexedValues(Vector x, final int[] group, final double[] out) {
+        final double gamma = mdp.getDiscountFactor();
+        final double[] sum = new double[1];
+        for (int a : group) {
+            out[a] = 0;
+        }
+        MetricTree tree = indexes[group[0]];
+        tree.range(x, cutoff * bandwidth, new MetricTree.Visitor() {
+
+            @Override
+            public void visit(int index, double distance) {
+                double k = KbUtils.gaussian(distance, bandwidth);
+                sum[0] += k;
+                for (int a : group) {
+                    out[a] += k * (samples.getReward(a, index) + gamma * endStateValues[a][index]);
+                }
+            }
+        });
+        if (sum[0] > 0) {
+            for (int a : group) {
+                out[a] /= sum[0];
+            }
+            return;
+        }
+        int closest = tree.nearest(x);
+        for (int a : group) {
+            out[a] = closest < 0 ? Double.NaN : samples.getReward(a, closest) + gamma
+                    * endStateValues[a][closest];
+        }
+    }
+
+    private double getExactValue(Vector x, A action) {
         double sum = 0;
         double value = 0;
         double gamma = mdp.getDiscountFactor();
         double minDist = Double.POSITIVE_INFINITY;
         double minDistVal = Double.NaN;
 
-        List<Transition<S, A>> transitions = samples.get(action);
-        DistanceFunction df = adf.get(action);
-        int i = 0;
-        double[] values = endStateValues[action.ordinal()];
-        for (Transition<S, A> datum : transitions) {
-            double dist = df.distance(x, datum.getStartVector());
-            double val = datum.getReward() + gamma * values[i++];
+        int a = action.ordinal();
+        int[] xs = ids[a];
+        double[] rewards = samples.getRewards(a);
+        IndexedDistanceFunction df = metrics[a];
+        int id = df.indexOf(x);
+        double[] values = endStateValues[a];
+        for (int i = 0; i < xs.length; i++) {
+            double dist = id >= 0 ? df.distance(id, xs[i]) : df.distance(x, xs[i]);
+            double val = rewards[i] + gamma * values[i];
             if (dist < minDist) {
                 minDist = dist;
                 minDistVal = val;
@@ -115,21 +297,211 @@ public class KernelQValue<S extends State, A extends Action> extends AbstractKer
         return value / sum;
     }
 
+    /**
+     * Sums the kernel only over the samples that the spatial index reports
+     * within {@code cutoff * bandwidth} of {@code x}. Falls back to the value
+     * of the nearest sample when that ball is empty.
+     */
+    private double getIndexedValue(Vector x, A action) {
+        final double[] values = endStateValues[action.ordinal()];
+        final double[] rewards = samples.getRewards(action.ordinal());
+        final double gamma = mdp.getDiscountFactor();
+        final double[] acc = new double[2];
+        MetricTree tree = indexes[action.ordinal()];
+        tree.range(x, cutoff * bandwidth, new MetricTree.Visitor() {
+
+            @Override
+            public void visit(int index, double distance) {
+                double k = KbUtils.gaussian(distance, bandwidth);
+                acc[0] += k;
+                acc[1] += k * (rewards[index] + gamma * values[index]);
+            }
+        });
+        if (acc[0] > 0) {
+            return acc[1] / acc[0];
+        }
+        int closest = tree.nearest(x);
+        if (closest < 0) {
+            return Double.NaN;
+        }
+        return rewards[closest] + gamma * values[closest];
+    }
+
+    /**
+     * Measures the error introduced by the spatial index.
+     * 
+     * @param state
+     * @param action
+     * @return The absolute difference between Q(state, action) as computed
+     *         through the spatial index and as computed by summing over every
+     *         sample. Zero if no index is in use.
+     */
+    public double indexError(S state, A action) {
+        if (indexes == null) {
+            return 0;
+        }
+        Vector x = mdp.vectorFromState(state);
+        return Math.abs(getIndexedValue(x, action) - getExactValue(x, action));
+    }
+
+    /**
+     * Returns a copy of this Q-value that only sums the kernel over nearby
+     * samples. A metric tree is built over the start vectors of each action,
+     * so the distance function of every action must satisfy the triangle
+     * inequality.
+     * 
+     * @param cutoff
+     *            The search radius in units of the bandwidth. Samples further
+     *            away are ignored. See {@link #DEFAULT_CUTOFF}.
+     * @return A new KernelQValue that shares samples and values with
+     *         {@code this}.
+     */
+    public KernelQValue<S, A> withSpatialIndex(double cutoff) {
+        if (cutoff <= 0) {
+            throw new IllegalArgumentException("Cutoff must be positive: " + cutoff);
+        }
+        return new KernelQValue<S, A>(samples, mdp, adf, bandwidth, endStateValues,
+                buildIndexes(adf), cutoff, this);
+    }
+
+    /**
+     * @return A copy of this Q-value that sums the kernel over every sample.
+     */
+    public KernelQValue<S, A> withoutSpatialIndex() {
+        return new KernelQValue<S, A>(samples, mdp, adf, bandwidth, endStateValues, null, 0,
+                this);
+    }
+
+    private MetricTree[] buildIndexes(ActionDistanceFn<A> f) {
+        A[] actions = mdp.getActions();
+        MetricTree[] trees = new MetricTree[actions.length];
+        List<List<Vector>> starts = new ArrayList<List<Vector>>(actions.length);
+        for (A action : actions) {
+            List<Vector> vecs = Arrays.asList(samples.getStartVectors(action.ordinal()));
+            DistanceFunction df = f.get(action);
+            // Actions usually share both their metric and their start states,
+            // in which case a single tree serves all of them.
+            for (int a = 0; a < action.ordinal(); a++) {
+                if (trees[a].getDistanceFunction() == df && starts.get(a).equals(vecs)) {
+                    trees[action.ordinal()] = trees[a];
+                    break;
+                }
+            }
+            if (trees[action.ordinal()] == null) {
+                trees[action.ordinal()] = MetricTree.of(vecs, df);
+            }
+            starts.add(vecs);
+        }
+        return trees;
+    }
+
+    /**
+     * @return The sample transitions this Q-value averages over.
+     */
+    public SampleTransitions<S, A> getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return The metric of each action.
+     */
+    public ActionDistanceFn<A> getActionDistanceFn() {
+        return adf;
+    }
+
+    double getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @return A copy of the values of the end states of the samples.
+     */
+    double[][] copyValues() {
+        double[][] ret = new double[endStateValues.length][];
+        for (int a = 0; a < ret.length; a++) {
+            ret[a] = Arrays.copyOf(endStateValues[a], endStateValues[a].length);
+        }
+        return ret;
+    }
+
+    /**
+     * @return Whether every end state value is zero, as in a KernelQValue
+     *         fresh from {@link #of}.
+     */
+    boolean isCold() {
+        for (double[] values : endStateValues) {
+            if (!Kbrl.isZero(values)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a copy of this Q-value whose end state values are taken from
+     * {@code previous}, so that value iteration can resume from an earlier
+     * solution (for instance the previous round of DKBRL). If both were built
+     * on the same samples the values are copied; otherwise they are
+     * evaluated through {@code previous} at the end states of the samples.
+     * 
+     * @param previous
+     * @return A new KernelQValue with the metric and bandwidth of {@code this}.
+     */
+    public KernelQValue<S, A> startingFrom(KernelQValue<S, A> previous) {
+        if (previous.samples == samples) {
+            return update(previous.endStateValues);
+        }
+        double[][] values = new double[endStateValues.length][];
+        double[] scratch = new double[values.length];
+        for (int a = 0; a < values.length; a++) {
+            values[a] = new double[endStateValues[a].length];
+            for (int i = 0; i < values[a].length; i++) {
+                if (!samples.isTerminal(a, i)) {
+                    values[a][i] = previous.getMaxValue(samples.getEndVector(a, i), scratch);
+                }
+            }
+        }
+        return update(values);
+    }
+
+    /**
+     * @return The value of the end state of sample {@code i} of the action
+     *         with ordinal {@code a}.
+     */
+    double getEndStateValue(int a, int i) {
+        return endStateValues[a][i];
+    }
+
+    /**
+     * Overwrites the value of the end state of sample {@code i} of the action
+     * with ordinal {@code a}. Only meant for solvers working on an instance
+     * they created, since all other instances are treated as immutable.
+     */
+    void setValue(int a, int i, double value) {
+        endStateValues[a][i] = value;
+    }
+
     protected KernelQValue<S, A> update(double[][] values) {
         double[][] newVals = new double[values.length][];
         for (int i = 0; i < newVals.length; i++) {
             newVals[i] = Arrays.copyOf(values[i], values[i].length);
         }
-        return new KernelQValue<S, A>(samples, mdp, adf, bandwidth, newVals);
+        return new KernelQValue<S, A>(samples, mdp, adf, bandwidth, newVals, indexes, cutoff,
+                this);
     }
 
     @Override
     public KernelQValue<S, A> withBandwidth(double b) {
-        return new KernelQValue<S, A>(samples, mdp, adf, b, endStateValues);
+        return new KernelQValue<S, A>(samples, mdp, adf, b, endStateValues, indexes, cutoff,
+                this);
     }
 
     public KernelQValue<S, A> withDistanceFunction(ActionDistanceFn<A> f) {
-        return new KernelQValue<S, A>(samples, mdp, f, bandwidth, endStateValues);
+        if (indexes == null) {
+            return new KernelQValue<S, A>(samples, mdp, f, bandwidth, endStateValues);
+        }
+        return new KernelQValue<S, A>(samples, mdp, f, bandwidth, endStateValues,
+                buildIndexes(f), cutoff, null);
     }
 
     protected double difference(KernelQValue<S, A> other) {
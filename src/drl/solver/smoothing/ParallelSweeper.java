@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.solver.smoothing;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
+import drl.mdp.api.State;
+
+/**
+ * Jacobi value iteration for KBRL on a fixed set of worker threads. The
+ * workers live for the whole solve and meet the calling thread at a
+ * {@link Phaser} twice per round: once to start the round and once when every
+ * sample has been backed up. Values are double buffered between two
+ * KernelQValues, so rounds allocate nothing. Samples are handed out in small
+ * chunks from a shared counter, so a worker that draws cheap (for instance
+ * terminal) samples simply takes more chunks.
+ * 
+ * @author Dawit
+ * 
+ */
+final class ParallelSweeper<S extends State, A extends Action> {
+
+    private final SampleTransitions<S, A> samples;
+    private final int threads;
+    private final int[] offsets;
+    private final int chunk;
+    private final Phaser phaser;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final double[] maxs;
+    private final double[] mins;
+    private final long[] busy;
+    // Written by the calling thread between rounds; the phaser makes the
+    // writes visible to the workers.
+    private KernelQValue<S, A> current;
+    private KernelQValue<S, A> next;
+    private boolean done = false;
+    private volatile Throwable error = null;
+
+    private ParallelSweeper(KernelQValue<S, A> qval, SampleTransitions<S, A> samples,
+            int numActions, int threads) {
+        this.samples = samples;
+        this.threads = threads;
+        this.offsets = new int[numActions + 1];
+        for (int a = 0; a < numActions; a++) {
+            offsets[a + 1] = offsets[a] + samples.size(a);
+        }
+        this.chunk = Math.max(16, offsets[numActions] / (threads * 64));
+        this.phaser = new Phaser(threads + 1);
+        this.maxs = new double[threads];
+        this.mins = new double[threads];
+        this.busy = new long[threads];
+        this.current = qval.update(qval.copyValues());
+        this.next = qval.update(qval.copyValues());
+    }
+
+    /**
+     * Runs value iteration as {@link MultithreadedKbrl#solve}. {@code exec}
+     * must be able to run {@code threads} tasks at the same time, since every
+     * worker waits for the others at the end of each round.
+     */
+    static <S extends State, A extends Action> KernelQValue<S, A> solve(KernelQValue<S, A> qval,
+            MDP<S, A> mdp, SampleTransitions<S, A> samples, ExecutorService exec, int threads,
+            int steps) {
+        ParallelSweeper<S, A> sweeper = new ParallelSweeper<S, A>(qval,
+                samples,
+                mdp.getActions().length,
+                threads);
+        return sweeper.run(mdp, exec, steps);
+    }
+
+    private KernelQValue<S, A> run(MDP<S, A> mdp, ExecutorService exec, int steps) {
+        boolean warm = !current.isCold();
+        for (int w = 0; w < threads; w++) {
+            exec.execute(new Worker(w, mdp.getActions().length));
+        }
+        long start = System.nanoTime();
+        int trial = 0;
+        for (; trial < steps; trial++) {
+            cursor.set(0);
+            await();
+            await();
+            double max = Double.NEGATIVE_INFINITY;
+            double min = Double.POSITIVE_INFINITY;
+            for (int w = 0; w < threads; w++) {
+                max = Math.max(max, maxs[w]);
+                min = Math.min(min, mins[w]);
+            }
+            KernelQValue<S, A> temp = current;
+            current = next;
+            next = temp;
+            double diff = max - min;
+            System.out.println("#" + diff + " on iteration" + trial);
+            if (diff < .0001) {
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        done = true;
+        phaser.arriveAndDeregister();
+        long total = 0;
+        for (long b : busy) {
+            total += b;
+        }
+        System.out.println(String.format("Worker utilization: %.1f%% of %d threads",
+                elapsed > 0 ? 100. * total / (elapsed * (double) threads) : 0,
+                threads));
+        Kbrl.reportRounds(trial, steps, warm);
+        return current;
+    }
+
+    private void await() {
+        if (phaser.arriveAndAwaitAdvance() < 0) {
+            throw new RuntimeException(error);
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final int id;
+        private final double[] scratch;
+
+        Worker(int id, int numActions) {
+            this.id = id;
+            this.scratch = new double[numActions];
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    if (phaser.arriveAndAwaitAdvance() < 0) {
+                        return;
+                    }
+                    if (done) {
+                        phaser.arriveAndDeregister();
+                        return;
+                    }
+                    long time = System.nanoTime();
+                    sweep();
+                    busy[id] += System.nanoTime() - time;
+                    if (phaser.arriveAndAwaitAdvance() < 0) {
+                        return;
+                    }
+                }
+            } catch (Throwable t) {
+                error = t;
+                phaser.forceTermination();
+            }
+        }
+
+        private void sweep() {
+            double max = Double.NEGATIVE_INFINITY;
+            double min = Double.POSITIVE_INFINITY;
+            int total = offsets[offsets.length - 1];
+            for (int c = cursor.getAndIncrement(); c * chunk < total; c = cursor
+                    .getAndIncrement()) {
+                int end = Math.min(total, (c + 1) * chunk);
+                int a = 0;
+                for (int n = c * chunk; n < end; n++) {
+                    while (n >= offsets[a + 1]) {
+                        a++;
+                    }
+                    int i = n - offsets[a];
+                    double val = 0;
+                    if (!samples.isTerminal(a, i)) {
+                        val = current.getMaxValue(samples.getEndVector(a, i), scratch);
+                    }
+                    double diff = val - current.getEndStateValue(a, i);
+                    max = Math.max(max, diff);
+                    min = Math.min(min, diff);
+                    next.setValue(a, i, val);
+                }
+            }
+            maxs[id] = max;
+            mins[id] = min;
+        }
+    }
+
+}
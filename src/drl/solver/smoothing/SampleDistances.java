@@ -0,0 +1,494 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package drl.solver.smoothing;
+
+import java.util.Arrays;
+
+import drl.math.algs.MetricTree;
+import drl.math.algs.SparseMatrix;
+import drl.math.geom.Vector;
+import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.EmbeddingDF;
+import drl.math.tfs.IndexedDF;
+import drl.math.tfs.IndexedDistanceFunction;
+import drl.math.tfs.ValueSmoothingDF;
+import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
+import drl.mdp.api.State;
+
+/**
+ * The squared distances from the end vectors to the start vectors of a set of
+ * sample transitions, kept from one round of DKBRL to the next. A
+ * {@link ValueSmoothingDF} turns a squared distance {@code d^2} of the old
+ * metric into {@code (d^2 + c1 * dv^2) / (1 + alpha^2)}, where {@code dv} is
+ * the difference of the smoothed values, so {@link #relax} brings every
+ * stored distance up to date in one pass instead of evaluating the new
+ * metric.
+ * <p>
+ * Distances are stored for each action and each group of actions that share
+ * their metric and their start vectors, as in {@link KernelOperator}. They
+ * are either dense or sparse. A sparse store holds every pair within a radius
+ * and is exact inside it. Relaxing shrinks a distance by at most a factor of
+ * {@code sqrt(1 + alpha^2)}, so the radius shrinks by that factor each round
+ * and should start out large enough for the last round. Rows of terminal
+ * samples are never filled.
+ * 
+ * @author Dawit
+ * 
+ */
+public final class SampleDistances<S extends State, A extends Action> {
+
+    private final MDP<S, A> mdp;
+    private final SampleTransitions<S, A> samples;
+    private ActionDistanceFn<A> adf;
+    private int[][] groups;
+    // matrices[a][g] holds the distances from the end vectors of action a to
+    // the start vectors of group g.
+    private Matrix[][] matrices;
+    private double[] radius;
+
+    private SampleDistances(MDP<S, A> mdp, SampleTransitions<S, A> samples,
+            ActionDistanceFn<A> adf) {
+        this.mdp = mdp;
+        this.samples = samples;
+        this.adf = adf;
+        this.groups = KernelOperator.group(mdp.getActions(), samples, adf);
+        this.matrices = new Matrix[mdp.getActions().length][groups.length];
+        this.radius = new double[groups.length];
+    }
+
+    /**
+     * Computes every distance from an end vector to a start vector.
+     */
+    public static <S extends State, A extends Action> SampleDistances<S, A> dense(MDP<S, A> mdp,
+            SampleTransitions<S, A> samples, ActionDistanceFn<A> adf) {
+        SampleDistances<S, A> ret = new SampleDistances<S, A>(mdp, samples, adf);
+        ret.fill(Double.POSITIVE_INFINITY);
+        return ret;
+    }
+
+    /**
+     * Computes the distances from each end vector to the start vectors within
+     * {@code radius} of it, through a {@link MetricTree}. The metrics must
+     * satisfy the triangle inequality.
+     */
+    public static <S extends State, A extends Action> SampleDistances<S, A> sparse(
+            MDP<S, A> mdp, SampleTransitions<S, A> samples, ActionDistanceFn<A> adf,
+            double radius) {
+        if (radius <= 0) {
+            throw new IllegalArgumentException("Radius must be positive: " + radius);
+        }
+        SampleDistances<S, A> ret = new SampleDistances<S, A>(mdp, samples, adf);
+        ret.fill(radius);
+        return ret;
+    }
+
+    /**
+     * @return The radius a sparse store must start with to stay complete
+     *         within {@code cutoff * bandwidth} through {@code relaxations}
+     *         relaxations at rate {@code alpha}.
+     */
+    public static double initialRadius(double cutoff, double bandwidth, double alpha,
+            int relaxations) {
+        return cutoff * bandwidth * Math.pow(1 + alpha * alpha, .5 * relaxations);
+    }
+
+    private void fill(double r) {
+        long time = System.currentTimeMillis();
+        A[] actions = mdp.getActions();
+        long entries = 0;
+        for (int g = 0; g < groups.length; g++) {
+            radius[g] = r;
+            DistanceFunction df = adf.get(actions[groups[g][0]]);
+            Vector[] cols = samples.getStartVectors(groups[g][0]);
+            IndexedDistanceFunction idf = IndexedDF.of(df, cols.length);
+            MetricTree tree = r < Double.POSITIVE_INFINITY ? MetricTree.of(Arrays.asList(cols),
+                    df) : null;
+            int[] ids = new int[cols.length];
+            for (int j = 0; j < cols.length; j++) {
+                ids[j] = idf.register(cols[j]);
+            }
+            for (A action : actions) {
+                int a = action.ordinal();
+                Vector[] rows = samples.getEndVectors(a);
+                Matrix m = tree == null ? Matrix.dense(rows.length, cols.length) : Matrix
+                        .sparse(rows.length, cols.length);
+                for (int i = 0; i < rows.length; i++) {
+                    if (samples.isTerminal(a, i)) {
+                        m.endRow(i);
+                    } else if (tree == null) {
+                        for (int j = 0; j < cols.length; j++) {
+                            double d = idf.distance(rows[i], ids[j]);
+                            m.d2[i * cols.length + j] = d * d;
+                        }
+                    } else {
+                        m.addRow(i, rows[i], tree, r);
+                    }
+                }
+                matrices[a][g] = m;
+                entries += m.size();
+            }
+        }
+        System.out.println(String.format("Sample distances: %d groups, %d entries in %d ms",
+                groups.length,
+                entries,
+                System.currentTimeMillis() - time));
+    }
+
+    /**
+     * @return The metric the stored distances belong to.
+     */
+    public ActionDistanceFn<A> getActionDistanceFn() {
+        return adf;
+    }
+
+    /**
+     * @return The radius within which the stored distances of group
+     *         {@code g} are complete. Infinite for dense distances.
+     */
+    public double getRadius(int g) {
+        return radius[g];
+    }
+
+    int[][] getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return The number of stored distances.
+     */
+    public long size() {
+        long ret = 0;
+        for (Matrix[] ms : matrices) {
+            for (Matrix m : ms) {
+                ret += m.size();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Updates the distances in place to those of {@code next}. The metric of
+     * each action in {@code next} must be a {@link ValueSmoothingDF}, or an
+     * {@link EmbeddingDF} ending in one, that relaxes the metric of that
+     * action in the current {@code ActionDistanceFn}. Actions may stop
+     * sharing a metric, in which case their distances are copied first.
+     * 
+     * @throws IllegalArgumentException
+     *             If {@code next} is not such a relaxation.
+     */
+    public void relax(ActionDistanceFn<A> next) {
+        long time = System.currentTimeMillis();
+        A[] actions = mdp.getActions();
+        int[][] nextGroups = KernelOperator.group(actions, samples, next);
+        Matrix[][] nextMatrices = new Matrix[actions.length][nextGroups.length];
+        double[] nextRadius = new double[nextGroups.length];
+        // The last new group made from an old group may relax its distances
+        // in place; the others work on copies.
+        int[] users = new int[groups.length];
+        for (int[] members : nextGroups) {
+            users[groupOf(members[0])]++;
+        }
+        for (int g2 = 0; g2 < nextGroups.length; g2++) {
+            int rep = nextGroups[g2][0];
+            int g = groupOf(rep);
+            for (int b : nextGroups[g2]) {
+                if (groupOf(b) != g) {
+                    throw new IllegalArgumentException("Actions " + actions[rep] + " and "
+                            + actions[b] + " did not share a metric before");
+                }
+            }
+            ValueSmoothingDF relaxation = lastRelaxation(next.get(actions[rep]));
+            if (relaxation == null
+                    || relaxation.getOldMetric() != adf.get(actions[groups[g][0]])) {
+                throw new IllegalArgumentException("Not a relaxation of the metric of "
+                        + actions[rep]);
+            }
+            double scale = relaxation.getScale();
+            nextRadius[g2] = radius[g] * scale;
+            double[] colValues = values(relaxation, samples.getStartVectors(rep), null);
+            for (A action : actions) {
+                int a = action.ordinal();
+                Matrix m = users[g] > 1 ? matrices[a][g].copy() : matrices[a][g];
+                double[] rowValues = values(relaxation, samples.getEndVectors(a), terminals(a));
+                m.relax(rowValues,
+                        colValues,
+                        relaxation.getValueWeight(),
+                        scale * scale,
+                        nextRadius[g2]);
+                nextMatrices[a][g2] = m;
+            }
+            users[g]--;
+        }
+        this.adf = next;
+        this.groups = nextGroups;
+        this.matrices = nextMatrices;
+        this.radius = nextRadius;
+        System.out.println(String.format("Relaxed %d sample distances in %d ms",
+                size(),
+                System.currentTimeMillis() - time));
+    }
+
+    private int groupOf(int a) {
+        for (int g = 0; g < groups.length; g++) {
+            for (int b : groups[g]) {
+                if (b == a) {
+                    return g;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static ValueSmoothingDF lastRelaxation(DistanceFunction df) {
+        if (df instanceof ValueSmoothingDF) {
+            return (ValueSmoothingDF) df;
+        } else if (df instanceof EmbeddingDF) {
+            return ((EmbeddingDF) df).getLastRelaxation();
+        }
+        return null;
+    }
+
+    private boolean[] terminals(int a) {
+        boolean[] ret = new boolean[samples.size(a)];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = samples.isTerminal(a, i);
+        }
+        return ret;
+    }
+
+    private static double[] values(ValueSmoothingDF df, Vector[] vs, boolean[] skip) {
+        double[] ret = new double[vs.length];
+        for (int i = 0; i < vs.length; i++) {
+            if (skip == null || !skip[i]) {
+                ret[i] = df.getValue(vs[i]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The row-normalized Gaussian kernel matrix from the end vectors of action
+     * {@code a} to the start vectors of group {@code g}, sparsified as by
+     * {@link KernelMatrixBuilder#sparse} without a neighbor limit. Rows of
+     * terminal samples are empty.
+     */
+    SparseMatrix kernel(int a, int g, double bandwidth, double threshold) {
+        Matrix m = matrices[a][g];
+        Vector[] rows = samples.getEndVectors(a);
+        Vector[] cols = samples.getStartVectors(groups[g][0]);
+        DistanceFunction df = adf.get(mdp.getActions()[groups[g][0]]);
+        SparseMatrix.Builder builder = new SparseMatrix.Builder(m.cols,
+                m.rows,
+                (int) Math.min(m.size(), 16L * m.rows));
+        int[] index = new int[m.cols];
+        double[] weights = new double[m.cols];
+        for (int i = 0; i < m.rows; i++) {
+            int n = 0;
+            if (!samples.isTerminal(a, i)) {
+                n = m.kernelRow(i, bandwidth, threshold, index, weights);
+                if (n == 0) {
+                    // Nothing stored within the radius.
+                    index[0] = closest(df, rows[i], cols);
+                    weights[0] = 1;
+                    n = 1;
+                }
+            }
+            builder.addRow(index, weights, n);
+        }
+        return builder.build();
+    }
+
+    private static int closest(DistanceFunction df, Vector x, Vector[] cols) {
+        int ret = -1;
+        double best = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < cols.length; j++) {
+            double d = df.distance(x, cols[j]);
+            if (d < best) {
+                best = d;
+                ret = j;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Squared distances from rows to columns, either row-major dense or in
+     * compressed rows.
+     */
+    private static final class Matrix {
+        private final int rows;
+        private final int cols;
+        // Null for dense matrices.
+        private int[] rowStart;
+        private int[] index;
+        private double[] d2;
+
+        private Matrix(int rows, int cols, int[] rowStart, int[] index, double[] d2) {
+            this.rows = rows;
+            this.cols = cols;
+            this.rowStart = rowStart;
+            this.index = index;
+            this.d2 = d2;
+        }
+
+        static Matrix dense(int rows, int cols) {
+            return new Matrix(rows, cols, null, null, new double[rows * cols]);
+        }
+
+        static Matrix sparse(int rows, int cols) {
+            int expected = Math.max(16, 4 * rows);
+            return new Matrix(rows, cols, new int[rows + 1], new int[expected],
+                    new double[expected]);
+        }
+
+        Matrix copy() {
+            return new Matrix(rows,
+                    cols,
+                    rowStart == null ? null : rowStart.clone(),
+                    index == null ? null : index.clone(),
+                    d2.clone());
+        }
+
+        long size() {
+            return rowStart == null ? d2.length : rowStart[rows];
+        }
+
+        /**
+         * Leaves row {@code i} of a sparse matrix empty.
+         */
+        void endRow(int i) {
+            if (rowStart != null) {
+                rowStart[i + 1] = rowStart[i];
+            }
+        }
+
+        /**
+         * Fills row {@code i} of a sparse matrix with the columns within
+         * {@code r} of {@code x}.
+         */
+        void addRow(final int i, Vector x, MetricTree tree, double r) {
+            rowStart[i + 1] = rowStart[i];
+            tree.range(x, r, new MetricTree.Visitor() {
+
+                @Override
+                public void visit(int j, double distance) {
+                    int at = rowStart[i + 1];
+                    if (at == index.length) {
+                        index = Arrays.copyOf(index, 2 * at);
+                        d2 = Arrays.copyOf(d2, 2 * at);
+                    }
+                    index[at] = j;
+                    d2[at] = distance * distance;
+                    rowStart[i + 1] = at + 1;
+                }
+            });
+        }
+
+        /**
+         * Replaces every entry by {@code (d2 + c1 * dv^2) * s2}, dropping
+         * sparse entries that end up further than {@code r}.
+         */
+        void relax(double[] rowValues, double[] colValues, double c1, double s2, double r) {
+            if (rowStart == null) {
+                for (int i = 0; i < rows; i++) {
+                    double v = rowValues[i];
+                    int row = i * cols;
+                    for (int j = 0; j < cols; j++) {
+                        double dv = v - colValues[j];
+                        d2[row + j] = (d2[row + j] + c1 * dv * dv) * s2;
+                    }
+                }
+                return;
+            }
+            double r2 = r * r;
+            int at = 0;
+            for (int i = 0; i < rows; i++) {
+                double v = rowValues[i];
+                int start = rowStart[i];
+                int end = rowStart[i + 1];
+                rowStart[i] = at;
+                for (int k = start; k < end; k++) {
+                    double dv = v - colValues[index[k]];
+                    double d = (d2[k] + c1 * dv * dv) * s2;
+                    if (d <= r2) {
+                        index[at] = index[k];
+                        d2[at++] = d;
+                    }
+                }
+            }
+            rowStart[rows] = at;
+        }
+
+        /**
+         * Writes the normalized kernel weights of row {@code i} into
+         * {@code index} and {@code weights}.
+         * 
+         * @return The number of weights kept, or 0 if the row is empty.
+         */
+        int kernelRow(int i, double bandwidth, double threshold, int[] index, double[] weights) {
+            int start = rowStart == null ? i * cols : rowStart[i];
+            int end = rowStart == null ? start + cols : rowStart[i + 1];
+            if (start == end) {
+                return 0;
+            }
+            double b2 = bandwidth * bandwidth;
+            double sum = 0;
+            double max = 0;
+            double minD2 = Double.POSITIVE_INFINITY;
+            int closest = -1;
+            int n = 0;
+            for (int k = start; k < end; k++) {
+                int j = rowStart == null ? k - start : this.index[k];
+                if (d2[k] < minD2) {
+                    minD2 = d2[k];
+                    closest = j;
+                }
+                double w = Math.exp(-d2[k] / b2);
+                if (w > 0) {
+                    index[n] = j;
+                    weights[n++] = w;
+                    sum += w;
+                    max = Math.max(max, w);
+                }
+            }
+            if (sum == 0.0) {
+                index[0] = closest;
+                weights[0] = 1;
+                return 1;
+            }
+            double cut = threshold * sum;
+            int kept = 0;
+            double keptSum = 0;
+            for (int k = 0; k < n; k++) {
+                double w = weights[k];
+                if (w > cut || w == max) {
+                    index[kept] = index[k];
+                    weights[kept++] = w;
+                    keptSum += w;
+                }
+            }
+            for (int k = 0; k < kept; k++) {
+                weights[k] /= keptSum;
+            }
+            return kept;
+        }
+    }
+
+}
@@ -18,15 +18,25 @@
 
 package drl.solver.smoothing;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import drl.math.geom.Vector;
 import drl.mdp.api.Action;
+import drl.mdp.api.MDP;
 import drl.mdp.api.State;
 import drl.mdp.utils.Transition;
 
 /**
- * A container for a list of transitions partitioned by action.
+ * A container for a list of transitions partitioned by action. The original
+ * Transition objects are kept in a read-only list per action, which
+ * {@link #get} returns. For the solvers, the start and end vectors and the
+ * rewards of each action are also kept in arrays indexed by action ordinal,
+ * and whether each end state is terminal is computed once up front.
  * 
  * @author Dawit
  * 
@@ -35,23 +45,130 @@ import drl.mdp.utils.Transition;
  */
 public class SampleTransitions<S extends State, A extends Action> {
 
-    private final Map<A, List<Transition<S, A>>> data;
+    private final List<List<Transition<S, A>>> transitions;
+    private final Vector[][] startVectors;
+    private final Vector[][] endVectors;
+    private final double[][] rewards;
+    private final BitSet[] terminal;
+    private final int[] startGroup;
 
     /**
+     * @param mdp
+     *            The MDP the transitions were sampled from.
      * @param data
-     *            The partitioned list of sample transitions. Do not modify
-     *            {@code data} after calling this method.
+     *            The partitioned list of sample transitions. Actions missing
+     *            from {@code data} get no transitions. {@code data} is copied,
+     *            so it may be discarded after calling this method.
      */
-    public SampleTransitions(Map<A, List<Transition<S, A>>> data) {
-        this.data = data;
+    public SampleTransitions(MDP<S, A> mdp, Map<A, List<Transition<S, A>>> data) {
+        A[] actions = mdp.getActions();
+        int n = actions.length;
+        transitions = new ArrayList<List<Transition<S, A>>>(n);
+        startVectors = new Vector[n][];
+        endVectors = new Vector[n][];
+        rewards = new double[n][];
+        terminal = new BitSet[n];
+        for (A action : actions) {
+            int a = action.ordinal();
+            List<Transition<S, A>> ts = data.get(action);
+            if (ts == null) {
+                ts = Collections.emptyList();
+            }
+            List<Transition<S, A>> copy = new ArrayList<Transition<S, A>>(ts);
+            transitions.add(Collections.unmodifiableList(copy));
+            int size = copy.size();
+            startVectors[a] = new Vector[size];
+            endVectors[a] = new Vector[size];
+            rewards[a] = new double[size];
+            terminal[a] = new BitSet(size);
+            for (int i = 0; i < size; i++) {
+                Transition<S, A> t = copy.get(i);
+                startVectors[a][i] = t.getStartVector();
+                endVectors[a][i] = t.getEndVector();
+                rewards[a][i] = t.getReward();
+                terminal[a].set(i, mdp.isTerminal(t.getEndState()));
+            }
+        }
+        startGroup = new int[n];
+        for (int a = 0; a < n; a++) {
+            startGroup[a] = a;
+            for (int b = 0; b < a; b++) {
+                if (startGroup[b] == b && Arrays.equals(startVectors[a], startVectors[b])) {
+                    startGroup[a] = b;
+                    break;
+                }
+            }
+        }
     }
 
     /**
      * @param action
-     * @return A list of transitions associated with {@code action}.
+     * @return A read-only list of the transitions associated with
+     *         {@code action}.
      */
     public List<Transition<S, A>> get(A action) {
-        return data.get(action);
+        return transitions.get(action.ordinal());
+    }
+
+    /**
+     * @return The number of transitions of the action with ordinal {@code a}.
+     */
+    public int size(int a) {
+        return rewards[a].length;
+    }
+
+    public Vector getStartVector(int a, int i) {
+        return startVectors[a][i];
+    }
+
+    public Vector getEndVector(int a, int i) {
+        return endVectors[a][i];
+    }
+
+    public double getReward(int a, int i) {
+        return rewards[a][i];
+    }
+
+    /**
+     * @return Whether the end state of transition {@code i} of the action with
+     *         ordinal {@code a} is terminal.
+     */
+    public boolean isTerminal(int a, int i) {
+        return terminal[a].get(i);
+    }
+
+    /**
+     * @return The smallest ordinal of an action whose transitions have the
+     *         same start vectors, in the same order, as those of the action
+     *         with ordinal {@code a}. This is {@code a} itself for an action
+     *         whose start vectors are unique.
+     */
+    public int getStartGroup(int a) {
+        return startGroup[a];
+    }
+
+    /**
+     * @return The start vectors of the action with ordinal {@code a}. Do not
+     *         modify the returned array.
+     */
+    public Vector[] getStartVectors(int a) {
+        return startVectors[a];
+    }
+
+    /**
+     * @return The end vectors of the action with ordinal {@code a}. Do not
+     *         modify the returned array.
+     */
+    public Vector[] getEndVectors(int a) {
+        return endVectors[a];
+    }
+
+    /**
+     * @return The rewards of the action with ordinal {@code a}. Do not modify
+     *         the returned array.
+     */
+    public double[] getRewards(int a) {
+        return rewards[a];
     }
 
 }
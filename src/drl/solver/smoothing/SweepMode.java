@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.solver.smoothing;
+
+/**
+ * The order in which KBRL value iteration updates the values of the sample end
+ * states.
+ * 
+ * @author Dawit
+ * 
+ */
+public enum SweepMode {
+    /**
+     * Every round computes all new values from the values of the previous
+     * round.
+     */
+    JACOBI,
+    /**
+     * Every round updates the values in place, so later updates in a round
+     * already see the earlier ones.
+     */
+    GAUSS_SEIDEL,
+    /**
+     * Samples are updated in order of how much their successors' values have
+     * changed. A round is as many updates as there are samples.
+     */
+    PRIORITIZED;
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.tests.functional;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.ejml.simple.SimpleMatrix;
+
+import drl.math.algs.ParallelMultiply;
+
+public class ParallelMultiplyTest {
+
+    /**
+     * Times the K*D product of KBSF, a reps x samples matrix times a samples x
+     * reps matrix, from 1 thread up to every core, against the single threaded
+     * EJML product. The default is 5000 reps and 20000 samples, which needs
+     * about 2GB of heap; pass {@code reps samples} to change it.
+     */
+    public static void main(String[] args) {
+        int reps = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        Random random = new Random(0);
+        SimpleMatrix k = SimpleMatrix.random(reps, samples, 0, 1, random);
+        SimpleMatrix d = SimpleMatrix.random(samples, reps, 0, 1, random);
+
+        long time = System.currentTimeMillis();
+        SimpleMatrix expected = k.mult(d);
+        long base = System.currentTimeMillis() - time;
+        System.out.println(String.format("EJML: %d ms", base));
+        for (int threads = 1; threads <= cores; threads = threads == cores ? cores + 1 : Math
+                .min(cores, 2 * threads)) {
+            // A pool of exactly as many threads as measured, since the product is
+            // split into more bands than threads.
+            ExecutorService exec = Executors.newFixedThreadPool(threads);
+            time = System.currentTimeMillis();
+            SimpleMatrix product = ParallelMultiply.multiply(k, d, exec, threads);
+            long elapsed = System.currentTimeMillis() - time;
+            exec.shutdown();
+            System.out.println(String.format("%d threads: %d ms (%.2fx EJML), max error %.3g",
+                    threads,
+                    elapsed,
+                    base / (double) Math.max(1, elapsed),
+                    product.minus(expected).elementMaxAbs()));
+        }
+    }
+
+}
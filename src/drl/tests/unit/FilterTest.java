@@ -26,10 +26,14 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
 import drl.math.MathUtils;
+import drl.math.algs.ConcurrentGridFilter;
 import drl.math.algs.GridFilter;
 import drl.math.geom.Cell;
 import drl.math.geom.Interval;
@@ -125,4 +129,51 @@ public class FilterTest {
         }
     }
 
+    @Test
+    public void testConcurrent() throws Exception {
+        final Cell domain = Cell.of(new Interval(5, 2.3), new Interval(-.8, 2.1));
+        final List<Vector> added = new ArrayList<Vector>();
+        for (int i = 0; i < 12000; i++) {
+            added.add(MathUtils.sampleUniformly(domain));
+        }
+        GridFilter filter = new GridFilter(domain, 10);
+        filter.addAll(added);
+        final ConcurrentGridFilter all = new ConcurrentGridFilter(domain, 10, Integer.MAX_VALUE);
+        final ConcurrentGridFilter few = new ConcurrentGridFilter(domain, 10, 3);
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 4; t++) {
+                final List<Vector> part = added.subList(t * 3000, (t + 1) * 3000);
+                futures.add(exec.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        all.addAll(part);
+                        few.addAll(part);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            exec.shutdown();
+        }
+        assertEquals(added.size(), all.size());
+        assertEquals(added.size(), few.size());
+        assertEquals(filter.binsReached(), all.binsReached());
+        assertEquals(filter.binsReached(), few.binsReached());
+        assertEquals(added.size(), all.getKept().size());
+        assertEquals(4 * few.binsReached(), few.getKept().size());
+        assertEquals(few.binsReached(), few.subsample(few.binsReached()).size());
+        for (int i = 0; i < 10; i++) {
+            Vector v = MathUtils.sampleUniformly(domain);
+            for (double eps : new double[] { .1, .5 }) {
+                Set<Vector> expected = new HashSet<Vector>(filter.getNeighbors(v, eps));
+                assertEquals(expected, new HashSet<Vector>(all.getNeighbors(v, eps)));
+                assertTrue(expected.containsAll(few.getNeighbors(v, eps)));
+            }
+        }
+    }
+
 }
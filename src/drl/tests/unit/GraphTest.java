@@ -23,12 +23,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
+import drl.math.MathUtils;
 import drl.math.algs.APSP;
+import drl.math.algs.GraphBuilder;
+import drl.math.geom.Cell;
+import drl.math.geom.Interval;
 import drl.math.geom.Vector;
 import drl.math.tfs.EuclideanDF;
+import drl.math.tfs.GeodesicDF;
 
 public class GraphTest {
 
@@ -80,6 +86,74 @@ public class GraphTest {
         }
     }
 
+    @Test
+    public void testGeodesic() {
+        // Samples around a wall, with a few stray ones that form their own
+        // components.
+        Cell domain = Cell.of(new Interval(0, 1), new Interval(0, 1));
+        List<Vector> vectors = new ArrayList<Vector>();
+        while (vectors.size() < 300) {
+            Vector v = MathUtils.sampleUniformly(domain);
+            if (v.get(0) < .45 || v.get(0) > .55 || v.get(1) > .8) {
+                vectors.add(v);
+            }
+        }
+        vectors.add(Vector.asVector(1.5, 1.5));
+        vectors.add(Vector.asVector(1.6, 1.5));
+        double eps = .12;
+        double[][] dists = APSP.floydWarshall(vectors,
+                GraphBuilder.buildConnectedGraph(vectors, eps));
+        GeodesicDF df = GeodesicDF.of(vectors, eps, 4);
+        assertEquals(vectors.size(), df.getNumNodes());
+        for (int i = 0; i < vectors.size(); i++) {
+            assertEquals(i, df.indexOf(vectors.get(i)));
+            for (int j = 0; j < vectors.size(); j++) {
+                assertEquals(dists[i][j], df.distance(i, j), 1e-9);
+                assertEquals(dists[i][j], df.distance(vectors.get(i), vectors.get(j)), 1e-9);
+            }
+        }
+
+        for (int k = 0; k < 500; k++) {
+            int i = (7 * k) % vectors.size();
+            int j = (13 * k + 5) % vectors.size();
+            assertEquals(dists[i][j], df.distance(i, j), 1e-9);
+        }
+
+        // An off-graph vector is connected to the samples within eps.
+        Vector query = Vector.asVector(.3, .3);
+        double[] expected = new double[vectors.size()];
+        for (int j = 0; j < vectors.size(); j++) {
+            double direct = EuclideanDF.instance.distance(query, vectors.get(j));
+            expected[j] = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < vectors.size(); i++) {
+                double offset = EuclideanDF.instance.distance(query, vectors.get(i));
+                if (offset <= eps) {
+                    expected[j] = Math.min(expected[j], offset + dists[i][j]);
+                }
+            }
+            expected[j] = direct <= eps ? direct : expected[j];
+            assertEquals(expected[j], df.distance(query, j), 1e-9);
+        }
+        int id = df.register(query);
+        assertEquals(vectors.size(), id);
+        for (int j = 0; j < vectors.size(); j++) {
+            assertEquals(expected[j], df.distance(j, id), 1e-9);
+        }
+
+        // Beyond the cutoff only lower bounds are computed.
+        df.setCutoff(.5);
+        for (int i = 0; i < vectors.size(); i++) {
+            for (int j = 0; j < vectors.size(); j++) {
+                double d = df.distance(i, j);
+                if (dists[i][j] <= .5) {
+                    assertEquals(dists[i][j], d, 1e-9);
+                } else {
+                    assertTrue(d >= .5 && d <= dists[i][j] + 1e-9);
+                }
+            }
+        }
+    }
+
     private static Set<Integer> setof(int... is) {
         Set<Integer> ret = new HashSet<Integer>();
         for (int i : is) {
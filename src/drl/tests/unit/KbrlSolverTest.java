@@ -0,0 +1,329 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import drl.math.geom.Cell;
+import drl.math.geom.Interval;
+import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.Normalizer;
+import drl.mdp.instance.mtncar.CarAction;
+import drl.mdp.instance.mtncar.CarState;
+import drl.mdp.instance.mtncar.MountainCarMdp;
+import drl.mdp.utils.MdpUtils;
+import drl.mdp.utils.Transition;
+import drl.solver.ConcurrencyUtils;
+import drl.solver.StateSampler;
+import drl.solver.smoothing.ActionDistanceFn;
+import drl.solver.smoothing.IncrementalKbrl;
+import drl.solver.smoothing.KbUtils;
+import drl.solver.smoothing.Kbrl;
+import drl.solver.smoothing.KernelQValue;
+import drl.solver.smoothing.MultithreadedKbrl;
+import drl.solver.smoothing.SampleDistances;
+import drl.solver.smoothing.SampleTransitions;
+import drl.solver.smoothing.SweepMode;
+
+public class KbrlSolverTest {
+
+    private final MountainCarMdp mdp = MountainCarMdp.defaultParams();
+    private final SampleTransitions<CarState, CarAction> samples;
+    private final KernelQValue<CarState, CarAction> initial;
+
+    public KbrlSolverTest() {
+        List<CarState> states = StateSampler.tilingSample(mdp, 300);
+        samples = KbUtils.generateTransitions(mdp, states);
+        initial = KernelQValue.of(mdp,
+                samples,
+                ActionDistanceFn.of(mdp.getActions(), Normalizer.df(mdp.getStateSpace())),
+                .06);
+    }
+
+    private void assertClose(KernelQValue<CarState, CarAction> expected,
+            KernelQValue<CarState, CarAction> actual, double tolerance) {
+        for (int i = 0; i < 100; i++) {
+            CarState state = MdpUtils.sampleState(mdp);
+            for (CarAction a : mdp.getActions()) {
+                assertEquals(expected.getValue(state, a), actual.getValue(state, a), tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void testCompiled() {
+        KernelQValue<CarState, CarAction> plain = Kbrl.solve(initial, mdp, samples, 25);
+        KernelQValue<CarState, CarAction> compiled = Kbrl.solveCompiled(initial,
+                mdp,
+                samples,
+                25,
+                0);
+        assertClose(plain, compiled, 1e-8);
+    }
+
+    @Test
+    public void testInPlace() {
+        KernelQValue<CarState, CarAction> plain = Kbrl.solve(initial,
+                mdp,
+                samples,
+                10,
+                SweepMode.GAUSS_SEIDEL);
+        KernelQValue<CarState, CarAction> compiled = Kbrl.solveCompiled(initial,
+                mdp,
+                samples,
+                10,
+                0,
+                SweepMode.GAUSS_SEIDEL);
+        assertClose(plain, compiled, 1e-8);
+    }
+
+    @Test
+    public void testMultithreaded() {
+        KernelQValue<CarState, CarAction> plain = Kbrl.solve(initial, mdp, samples, 10);
+        ExecutorService exec = Executors.newFixedThreadPool(3);
+        try {
+            KernelQValue<CarState, CarAction> parallel = MultithreadedKbrl.solve(initial,
+                    mdp,
+                    samples,
+                    exec,
+                    3,
+                    10);
+            assertClose(plain, parallel, 1e-8);
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testSampleDistances() {
+        ActionDistanceFn<CarAction> adf = initial.getActionDistanceFn();
+        double radius = KernelQValue.DEFAULT_CUTOFF * .06 * 1.25;
+        List<SampleDistances<CarState, CarAction>> all = Arrays.asList(SampleDistances.dense(mdp,
+                samples,
+                adf), SampleDistances.sparse(mdp, samples, adf, radius));
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        try {
+            for (SampleDistances<CarState, CarAction> distances : all) {
+                KernelQValue<CarState, CarAction> qvf = initial;
+                for (int round = 0; round < 2; round++) {
+                    if (round > 0) {
+                        adf = ConcurrencyUtils.parallelMakeAdfn(mdp,
+                                qvf,
+                                adf,
+                                samples,
+                                new ArrayList<CarState>(),
+                                exec,
+                                .5,
+                                false);
+                        distances.relax(adf);
+                        qvf = qvf.withDistanceFunction(adf);
+                    }
+                    KernelQValue<CarState, CarAction> expected = Kbrl.solveCompiled(qvf,
+                            mdp,
+                            samples,
+                            10,
+                            0);
+                    qvf = Kbrl.solveCompiled(qvf, mdp, samples, 10, 0, distances);
+                    // Sparse distances drop weights below exp(-16) of the largest.
+                    boolean dense = distances.getRadius(0) == Double.POSITIVE_INFINITY;
+                    assertClose(expected, qvf, dense ? 1e-8 : 1e-5);
+                }
+                adf = initial.getActionDistanceFn();
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testSweepModes() {
+        KernelQValue<CarState, CarAction> jacobi = Kbrl.solveCompiled(initial,
+                mdp,
+                samples,
+                3000,
+                0);
+        KernelQValue<CarState, CarAction> compiled = Kbrl.solveCompiled(initial,
+                mdp,
+                samples,
+                3000,
+                0,
+                SweepMode.GAUSS_SEIDEL);
+        KernelQValue<CarState, CarAction> prioritized = Kbrl.solve(initial,
+                mdp,
+                samples,
+                3000,
+                SweepMode.PRIORITIZED);
+        assertClose(jacobi, compiled, .05);
+        assertClose(jacobi, prioritized, .05);
+    }
+
+    @Test
+    public void testFusedValues() {
+        KernelQValue<CarState, CarAction> qvf = Kbrl.solve(initial, mdp, samples, 10);
+        KernelQValue<CarState, CarAction> indexed = qvf
+                .withSpatialIndex(KernelQValue.DEFAULT_CUTOFF);
+        for (int i = 0; i < 100; i++) {
+            CarState state = MdpUtils.sampleState(mdp);
+            for (KernelQValue<CarState, CarAction> q : Arrays.asList(qvf, indexed)) {
+                double max = Double.NEGATIVE_INFINITY;
+                for (CarAction a : mdp.getActions()) {
+                    max = Math.max(max, q.getValue(state, a));
+                }
+                assertEquals(max, q.getValue(state), 0);
+                assertEquals(max, q.getValue(state, q.getAction(state)), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testFactoredKbsf() {
+        List<CarState> reps = StateSampler.tilingSample(mdp, 80);
+        ActionDistanceFn<CarAction> adf = ActionDistanceFn.of(mdp.getActions(),
+                Normalizer.df(mdp.getStateSpace()));
+        KernelQValue<CarState, CarAction> dense = Kbrl.solveByKbsf(mdp,
+                reps,
+                samples,
+                adf,
+                .06,
+                200);
+        KernelQValue<CarState, CarAction> factored = Kbrl.solveByFactoredKbsf(mdp,
+                reps,
+                samples,
+                adf,
+                .06,
+                200);
+        assertClose(dense, factored, 1e-6);
+        KernelQValue<CarState, CarAction> sparse = Kbrl.solveByFactoredKbsf(mdp,
+                reps,
+                samples,
+                adf,
+                .06,
+                200,
+                40,
+                1e-6,
+                null);
+        assertClose(dense, sparse, .01);
+    }
+
+    @Test
+    public void testWarmStart() {
+        KernelQValue<CarState, CarAction> cold = Kbrl.solveCompiled(initial,
+                mdp,
+                samples,
+                3000,
+                0);
+        KernelQValue<CarState, CarAction> warm = Kbrl.solveCompiled(initial.startingFrom(cold),
+                mdp,
+                samples,
+                3,
+                0);
+        assertClose(cold, warm, 1e-3);
+    }
+
+    @Test
+    public void testIncremental() {
+        KernelQValue<CarState, CarAction> indexed = initial
+                .withSpatialIndex(KernelQValue.DEFAULT_CUTOFF);
+        KernelQValue<CarState, CarAction> solved = Kbrl.solveCompiled(indexed,
+                mdp,
+                samples,
+                3000,
+                0);
+        IncrementalKbrl<CarState, CarAction> engine = IncrementalKbrl.of(solved,
+                mdp,
+                KernelQValue.DEFAULT_CUTOFF);
+        engine.setUpdateBudget(1000);
+        List<CarState> more = StateSampler.tilingSample(mdp, 40);
+        SampleTransitions<CarState, CarAction> extra = KbUtils.generateTransitions(mdp, more);
+        List<Transition<CarState, CarAction>> batch;
+        batch = new ArrayList<Transition<CarState, CarAction>>();
+        for (CarAction a : mdp.getActions()) {
+            batch.addAll(extra.get(a));
+        }
+        assertTrue(engine.add(batch) <= 1000 * batch.size());
+        assertEquals(samples.size(0) + extra.size(0), engine.size(mdp.getActions()[0]));
+
+        // The local updates alone should get close to the full solution.
+        KernelQValue<CarState, CarAction> snapshot = engine.snapshot();
+        KernelQValue<CarState, CarAction> full = Kbrl.solveCompiled(snapshot,
+                mdp,
+                snapshot.getSamples(),
+                3000,
+                0);
+        assertClose(full, snapshot, .05);
+
+        engine.solve(3000);
+        snapshot = engine.snapshot();
+        full = Kbrl.solveCompiled(snapshot, mdp, snapshot.getSamples(), 3000, 0);
+        assertClose(full, snapshot, .05);
+    }
+
+    @Test
+    public void testIncrementalMetrics() {
+        // Each action reads the samples of action 1 through a wider metric.
+        Cell space = mdp.getStateSpace();
+        Interval x = space.getInterval(0);
+        Interval v = space.getInterval(1);
+        Cell wide = Cell.of(new Interval(x.getStart(), 8 * x.getWidth()),
+                new Interval(v.getStart(), 8 * v.getWidth()));
+        Map<CarAction, DistanceFunction> metrics = new Hashtable<CarAction, DistanceFunction>();
+        for (CarAction a : mdp.getActions()) {
+            metrics.put(a, Normalizer.df(a.ordinal() == 1 ? wide : space));
+        }
+        IncrementalKbrl<CarState, CarAction> engine = IncrementalKbrl.of(mdp,
+                ActionDistanceFn.of(metrics),
+                .06,
+                KernelQValue.DEFAULT_CUTOFF).setUpdateBudget(100000).setTolerance(1e-6);
+        List<Transition<CarState, CarAction>> first, second;
+        first = new ArrayList<Transition<CarState, CarAction>>();
+        second = new ArrayList<Transition<CarState, CarAction>>();
+        for (CarAction a : mdp.getActions()) {
+            List<Transition<CarState, CarAction>> ts = samples.get(a);
+            for (int i = 0; i < ts.size(); i++) {
+                (i % 3 == 0 ? first : second).add(ts.get(i));
+            }
+        }
+        // The first batch is seeded while no action has samples.
+        engine.add(first);
+        CarState state = MdpUtils.sampleState(mdp);
+        for (CarAction a : mdp.getActions()) {
+            assertTrue(!Double.isNaN(engine.getValue(state, a)));
+        }
+        engine.add(second);
+        KernelQValue<CarState, CarAction> snapshot = engine.snapshot();
+        KernelQValue<CarState, CarAction> full = Kbrl.solveCompiled(snapshot,
+                mdp,
+                snapshot.getSamples(),
+                3000,
+                0);
+        assertClose(full, snapshot, .01);
+    }
+
+}
@@ -24,8 +24,10 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.HashSet;
 import java.util.List;
+import java.util.SplittableRandom;
 
 import drl.math.MathUtils;
+import drl.math.RandomSource;
 import drl.math.geom.Cell;
 import drl.math.geom.Interval;
 import drl.math.geom.Vector;
@@ -34,6 +36,39 @@ import org.junit.Test;
 
 public class MathUtilsTest {
 
+    @Test
+    public void testRandomSource() {
+        RandomSource.setSeed(42);
+        double first = RandomSource.derive(RandomSource.EVALUATOR, 3, 1).nextDouble();
+        assertThat(RandomSource.derive(RandomSource.EVALUATOR, 3, 1).nextDouble(), equalTo(first));
+        assertTrue(RandomSource.derive(RandomSource.EVALUATOR, 3, 2).nextDouble() != first);
+        // Consumers with different tags get different streams from the same ids.
+        assertTrue(RandomSource.derive(RandomSource.SWEEP_RUN, 3, 1).nextDouble() != first);
+        assertTrue(RandomSource.derive(RandomSource.SWEEP_INPUT, 0).nextDouble() != RandomSource
+                .derive(RandomSource.DEFAULT_THREAD, 0).nextDouble());
+
+        SplittableRandom old = RandomSource.use(RandomSource.derive(RandomSource.EVALUATOR, 3, 1));
+        try {
+            assertThat(RandomSource.nextDouble(), equalTo(first));
+        } finally {
+            RandomSource.use(old);
+        }
+        assertTrue(RandomSource.current() == old);
+    }
+
+    @Test
+    public void testKthLargest() {
+        double[] values = { 3, -1, 7, 7, 2, 9, 0, 5 };
+        double[] sorted = { 9, 7, 7, 5, 3, 2, 0, -1 };
+        double[] scratch = new double[values.length];
+        for (int k = 1; k <= values.length; k++) {
+            assertThat(MathUtils.kthLargest(values, values.length, k, scratch),
+                    equalTo(sorted[k - 1]));
+        }
+        assertThat(MathUtils.kthLargest(values, 3, 2, scratch), equalTo(3.0));
+        assertThat(values[2], equalTo(7.0));
+    }
+
     @Test
     public void testIncrement1d() {
         int radix = 10;
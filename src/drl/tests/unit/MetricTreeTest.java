@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 Dawit Zewdie (dawit at alum dot mit dot edu)
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ * 
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package drl.tests.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import drl.math.MathUtils;
+import drl.math.algs.MetricForest;
+import drl.math.algs.MetricTree;
+import drl.math.geom.Cell;
+import drl.math.geom.Interval;
+import drl.math.geom.Vector;
+import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.Normalizer;
+import drl.mdp.instance.mtncar.CarAction;
+import drl.mdp.instance.mtncar.CarState;
+import drl.mdp.instance.mtncar.MountainCarMdp;
+import drl.mdp.utils.MdpUtils;
+import drl.solver.StateSampler;
+import drl.solver.smoothing.ActionDistanceFn;
+import drl.solver.smoothing.KbUtils;
+import drl.solver.smoothing.Kbrl;
+import drl.solver.smoothing.KernelQValue;
+import drl.solver.smoothing.SampleTransitions;
+
+public class MetricTreeTest {
+
+    @Test
+    public void testQueries() {
+        Cell domain = Cell.of(new Interval(5, 2.3), new Interval(-.8, 2.1), new Interval(9, 2.4));
+        DistanceFunction df = Normalizer.df(domain);
+        List<Vector> vecs = new ArrayList<Vector>();
+        for (int i = 0; i < 3000; i++) {
+            vecs.add(MathUtils.sampleUniformly(domain));
+        }
+        MetricTree tree = MetricTree.of(vecs, df);
+        assertEquals(vecs.size(), tree.size());
+
+        for (int trial = 0; trial < 50; trial++) {
+            Vector q = MathUtils.sampleUniformly(domain);
+            final double r = .15;
+            final Set<Integer> found = new HashSet<Integer>();
+            int reported = tree.range(q, r, new MetricTree.Visitor() {
+
+                @Override
+                public void visit(int index, double distance) {
+                    assertTrue(distance <= r);
+                    found.add(index);
+                }
+            });
+            assertEquals(found.size(), reported);
+
+            int closest = -1;
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < vecs.size(); i++) {
+                double d = df.distance(q, vecs.get(i));
+                assertEquals(d <= r, found.contains(i));
+                if (d < min) {
+                    min = d;
+                    closest = i;
+                }
+            }
+            assertEquals(min, df.distance(q, vecs.get(tree.nearest(q))), 0);
+            System.out.println(found.size() + " in range, nearest " + closest);
+        }
+    }
+
+    @Test
+    public void testForest() {
+        Cell domain = Cell.of(new Interval(0, 1), new Interval(0, 1));
+        DistanceFunction df = Normalizer.df(domain);
+        MetricForest forest = MetricForest.of(df);
+        final List<Vector> vecs = new ArrayList<Vector>();
+        for (int batch = 1; batch <= 40; batch++) {
+            List<Vector> added = new ArrayList<Vector>();
+            for (int i = 0; i < batch; i++) {
+                added.add(MathUtils.sampleUniformly(domain));
+            }
+            vecs.addAll(added);
+            forest.addAll(added);
+            assertEquals(vecs.size(), forest.size());
+            assertTrue(forest.getNumTrees() <= 2 * Math.log(vecs.size()) / Math.log(2) + 1);
+
+            Vector q = MathUtils.sampleUniformly(domain);
+            final Set<Integer> found = new HashSet<Integer>();
+            forest.range(q, .1, new MetricTree.Visitor() {
+
+                @Override
+                public void visit(int index, double distance) {
+                    found.add(index);
+                }
+            });
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < vecs.size(); i++) {
+                double d = df.distance(q, vecs.get(i));
+                assertEquals(d <= .1, found.contains(i));
+                assertEquals(vecs.get(i), forest.get(i));
+                min = Math.min(min, d);
+            }
+            assertEquals(min, df.distance(q, forest.get(forest.nearest(q))), 0);
+        }
+    }
+
+    @Test
+    public void testIndexedQValue() {
+        MountainCarMdp mdp = MountainCarMdp.defaultParams();
+        List<CarState> states = StateSampler.tilingSample(mdp, 400);
+        SampleTransitions<CarState, CarAction> samples = KbUtils.generateTransitions(mdp, states);
+        ActionDistanceFn<CarAction> adf = ActionDistanceFn.of(mdp.getActions(),
+                Normalizer.df(mdp.getStateSpace()));
+        KernelQValue<CarState, CarAction> qvf = Kbrl.solve(KernelQValue.of(mdp,
+                samples,
+                adf,
+                .05), mdp, samples, 30);
+        KernelQValue<CarState, CarAction> indexed = qvf.withSpatialIndex(KernelQValue.DEFAULT_CUTOFF);
+
+        for (int i = 0; i < 200; i++) {
+            CarState state = MdpUtils.sampleState(mdp);
+            for (CarAction a : mdp.getActions()) {
+                double error = indexed.indexError(state, a);
+                assertTrue(error < 1e-4);
+                assertEquals(qvf.getValue(state, a), indexed.getValue(state, a), 1e-4);
+            }
+        }
+    }
+
+}
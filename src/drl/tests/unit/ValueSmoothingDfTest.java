@@ -18,6 +18,7 @@
 
 package drl.tests.unit;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
@@ -27,8 +28,14 @@ import drl.math.geom.Cell;
 import drl.math.geom.Interval;
 import drl.math.geom.Vector;
 import drl.math.tfs.DistanceFunction;
+import drl.math.tfs.EmbeddingDF;
+import drl.math.tfs.EuclideanDF;
+import drl.math.tfs.IndexedDF;
+import drl.math.tfs.IndexedDistanceFunction;
+import drl.math.tfs.Normalizer;
 import drl.math.tfs.Transform;
 import drl.math.tfs.TransformDF;
+import drl.math.tfs.ValueCache;
 import drl.math.tfs.ValueSmoothingDF;
 import drl.math.vfa.ValueFunction;
 
@@ -74,6 +81,172 @@ public class ValueSmoothingDfTest {
 
     }
 
+    @Test
+    public void testValueCache() {
+        for (boolean threadSafe : new boolean[] { false, true }) {
+            ValueCache cache = new ValueCache(200, 0, threadSafe);
+            Vector[] hot = new Vector[10];
+            for (int i = 0; i < hot.length; i++) {
+                hot[i] = Vector.asVector(-i, .5);
+                cache.put(hot[i], i);
+            }
+            for (int i = 0; i < 5000; i++) {
+                cache.put(Vector.asVector(i, 2.5), i);
+                assertEquals(i % hot.length, cache.get(hot[i % hot.length]), 0);
+                assertTrue(cache.size() <= cache.getCapacity());
+            }
+            assertTrue(Double.isNaN(cache.get(Vector.asVector(-1, 2.5))));
+            assertEquals(4999, cache.get(Vector.asVector(4999, 2.5)), 0);
+            assertEquals(5001, cache.getHits());
+            assertEquals(1, cache.getMisses());
+            assertEquals(5010 - cache.size(), cache.getEvictions());
+        }
+    }
+
+    @Test
+    public void testIndexedDistance() {
+        Cell domain = Cell.of(new Interval(-1, 1), new Interval(0, 2));
+        ValueFunction func = new ValueFunction() {
+
+            @Override
+            public double difference(ValueFunction vf) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public double value(Vector v) {
+                return Math.sin(3 * v.get(0)) + v.get(1) * v.get(1);
+            }
+        };
+        ValueSmoothingDF d1 = ValueSmoothingDF.of(EuclideanDF.instance, func, 1, .5, false);
+        ValueSmoothingDF d2 = ValueSmoothingDF.of(d1, func, 2, .8, true, 4);
+        for (IndexedDistanceFunction df : new IndexedDistanceFunction[] {
+                IndexedDF.of(EuclideanDF.instance), d1, d2 }) {
+            Vector[] vs = new Vector[50];
+            int[] ids = new int[vs.length];
+            for (int i = 0; i < vs.length; i++) {
+                vs[i] = MathUtils.sampleUniformly(domain);
+                ids[i] = df.register(vs[i]);
+                assertEquals(ids[i], df.register(Vector.asVector(vs[i].get(0), vs[i].get(1))));
+                assertEquals(ids[i], df.indexOf(vs[i]));
+            }
+            Vector query = MathUtils.sampleUniformly(domain);
+            assertEquals(-1, df.indexOf(query));
+            for (int i = 0; i < vs.length; i++) {
+                assertEquals(vs[i], df.getVector(ids[i]));
+                assertEquals(df.distance(query, vs[i]), df.distance(query, ids[i]), 1e-12);
+                for (int j = 0; j < vs.length; j++) {
+                    assertEquals(df.distance(vs[i], vs[j]), df.distance(ids[i], ids[j]), 1e-12);
+                }
+            }
+        }
+        // The chained metric registers its vectors with the inner one.
+        assertTrue(d1.indexOf(d2.getVector(0)) >= 0);
+    }
+
+    @Test
+    public void testEmbedding() {
+        Cell domain = Cell.of(new Interval(-1, 3), new Interval(0, 2));
+        DistanceFunction chain = Normalizer.df(domain);
+        DistanceFunction flat = chain;
+        Vector[] vs = new Vector[40];
+        for (int i = 0; i < vs.length; i++) {
+            vs[i] = MathUtils.sampleUniformly(domain);
+        }
+        for (int k = 1; k <= 3; k++) {
+            final int freq = k;
+            ValueFunction func = new ValueFunction() {
+
+                @Override
+                public double difference(ValueFunction vf) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public double value(Vector v) {
+                    return Math.cos(freq * v.get(0)) * v.get(1);
+                }
+            };
+            chain = ValueSmoothingDF.of(chain, func, .7 * k, .5, false);
+            ValueSmoothingDF relaxed = ValueSmoothingDF.of(flat, func, .7 * k, .5, false);
+            for (int i = 0; i < vs.length / 2; i++) {
+                relaxed.memoize(vs[i]);
+            }
+            // Each round wraps the flattened metric of the previous one.
+            flat = EmbeddingDF.flatten(relaxed);
+            assertTrue(flat instanceof EmbeddingDF);
+            EmbeddingDF embedding = (EmbeddingDF) flat;
+            assertEquals(k, embedding.getDepth());
+            assertEquals(2 + k, embedding.getDimensions());
+            for (int i = 0; i < vs.length / 2; i++) {
+                assertEquals(i, embedding.indexOf(vs[i]));
+            }
+            for (int i = 0; i < vs.length; i++) {
+                for (int j = 0; j < vs.length; j++) {
+                    double expected = chain.distance(vs[i], vs[j]);
+                    assertEquals(expected, flat.distance(vs[i], vs[j]), 1e-12);
+                    if (j < vs.length / 2) {
+                        assertEquals(expected, embedding.distance(vs[i], j), 1e-12);
+                    }
+                }
+            }
+        }
+        DistanceFunction other = new DistanceFunction() {
+
+            @Override
+            public double distance(Vector v1, Vector v2) {
+                return Math.abs(v1.get(0) - v2.get(0));
+            }
+
+            @Override
+            public void memoize(Vector v) {
+            }
+        };
+        assertTrue(EmbeddingDF.canFlatten(chain));
+        assertTrue(!EmbeddingDF.canFlatten(other));
+        assertTrue(EmbeddingDF.flatten(other) == other);
+    }
+
+    @Test
+    public void testTransformDistance() {
+        Cell domain = Cell.of(new Interval(-1, 3), new Interval(0, .5));
+        final Normalizer normalizer = new Normalizer(domain);
+        // The same transform without the diagonal fast path.
+        Transform generic = new Transform() {
+
+            @Override
+            public Vector transform(Vector v) {
+                return normalizer.transform(v);
+            }
+        };
+        TransformDF diagonal = new TransformDF(normalizer);
+        TransformDF cached = new TransformDF(generic);
+        Vector[] vs = new Vector[30];
+        for (int i = 0; i < vs.length; i++) {
+            vs[i] = MathUtils.sampleUniformly(domain);
+            if (i % 2 == 0) {
+                assertEquals(i / 2, diagonal.register(vs[i]));
+                assertEquals(i / 2, cached.register(vs[i]));
+            }
+        }
+        for (int i = 0; i < vs.length; i++) {
+            for (int j = 0; j < vs.length; j++) {
+                double expected = EuclideanDF.instance.distance(normalizer.transform(vs[i]),
+                        normalizer.transform(vs[j]));
+                assertEquals(expected, diagonal.distance(vs[i], vs[j]), 1e-12);
+                assertEquals(expected, cached.distance(vs[i], vs[j]), 1e-12);
+                if (j % 2 == 0) {
+                    assertEquals(expected, diagonal.distance(vs[i], j / 2), 1e-12);
+                    assertEquals(expected, cached.distance(vs[i], j / 2), 1e-12);
+                    if (i % 2 == 0) {
+                        assertEquals(expected, diagonal.distance(i / 2, j / 2), 1e-12);
+                    }
+                }
+            }
+        }
+        assertTrue(IndexedDF.of(diagonal) == diagonal);
+    }
+
     private static double sq(double a) {
         return a * a;
     }